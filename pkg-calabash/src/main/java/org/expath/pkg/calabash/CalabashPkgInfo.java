@@ -11,6 +11,8 @@ package org.expath.pkg.calabash;
 
 import com.xmlcalabash.core.XProcConfiguration;
 import com.xmlcalabash.core.XProcRuntime;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -55,6 +57,13 @@ public class CalabashPkgInfo
         return null;
     }
 
+    @Override
+    public Collection<String> getPublicUris(URISpace space)
+    {
+        // consistent with resolve(), nothing to index
+        return Collections.emptySet();
+    }
+
     public boolean hasJars()
     {
         return ! myJars.isEmpty();
@@ -0,0 +1,55 @@
+package org.expath.pkg.repo;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Read a byte buffer, from its position to its limit.
+ *
+ * The buffer is not copied, so reading a mapped buffer reads the file (the
+ * pages are loaded on demand).  Not thread-safe, like any input stream.
+ */
+class BufferInputStream
+        extends InputStream
+{
+    BufferInputStream(ByteBuffer buffer)
+    {
+        myBuffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+        return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( ! myBuffer.hasRemaining() ) {
+            return -1;
+        }
+        int n = Math.min(len, myBuffer.remaining());
+        myBuffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        int k = (int) Math.max(0, Math.min(n, myBuffer.remaining()));
+        myBuffer.position(myBuffer.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available()
+    {
+        return myBuffer.remaining();
+    }
+
+    private final ByteBuffer myBuffer;
+}
@@ -0,0 +1,144 @@
+package org.expath.pkg.repo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+
+/**
+ * The SHA-256 of the files of a package, in [pkg-dir]/expath-pkg.sha256.
+ *
+ * Recorded when the package is extracted, from the same read of the archive
+ * (see {@link Repository#setRecordChecksums(boolean)}).  The format is the
+ * one of {@code sha256sum}, so the files can also be checked with {@code
+ * sha256sum -c expath-pkg.sha256} from the package dir:
+ *
+ * <pre>
+ * [sha-256]  [path]
+ * </pre>
+ */
+final class Checksums
+{
+    private Checksums()
+    {
+        // utility class
+    }
+
+    /**
+     * Write the checksums of a package dir.
+     *
+     * @param dir the package dir
+     * @param digests the SHA-256 of the files, by path relative to the dir
+     */
+    static void write(Path dir, Map<String, String> digests)
+            throws IOException
+    {
+        try ( Writer out = Files.newBufferedWriter(dir.resolve(FILE_NAME), StandardCharsets.UTF_8) ) {
+            for ( Map.Entry<String, String> e : new TreeMap<>(digests).entrySet() ) {
+                out.write(e.getValue());
+                out.write("  ");
+                out.write(e.getKey());
+                out.write("\n");
+            }
+        }
+    }
+
+    /**
+     * Read the checksums of a package dir.
+     *
+     * @param dir the package dir
+     *
+     * @return the SHA-256 of the files, by path relative to the dir, or null
+     * if they were not recorded.
+     */
+    @Nullable
+    static Map<String, String> read(Path dir)
+            throws IOException
+    {
+        Path file = dir.resolve(FILE_NAME);
+        if ( ! Files.exists(file) ) {
+            return null;
+        }
+        Map<String, String> digests = new TreeMap<>();
+        try ( BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8) ) {
+            String line;
+            while ( (line = in.readLine()) != null ) {
+                int pos = line.indexOf("  ");
+                if ( pos < 0 ) {
+                    throw new IOException("Invalid checksum line in " + file + ": " + line);
+                }
+                digests.put(line.substring(pos + 2), line.substring(0, pos));
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Check the files of a package dir against its checksums, in parallel.
+     *
+     * @param dir the package dir
+     * @param executor runs the check of each file
+     *
+     * @return the paths of the files missing or changed, relative to the dir,
+     * sorted (empty if all is fine).
+     *
+     * @throws PackageException if the checksums were not recorded, or on error
+     */
+    static List<String> verify(Path dir, Executor executor)
+            throws PackageException
+    {
+        final Map<String, String> digests;
+        try {
+            digests = read(dir);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the checksums of: " + dir, ex);
+        }
+        if ( digests == null ) {
+            throw new PackageException("No checksums recorded for: " + dir);
+        }
+        List<CompletableFuture<String>> tasks = new ArrayList<>(digests.size());
+        for ( final Map.Entry<String, String> e : digests.entrySet() ) {
+            tasks.add(CompletableFuture.supplyAsync(() -> {
+                Path f = dir.resolve(e.getKey());
+                try {
+                    if ( ! Files.isRegularFile(f) || ! e.getValue().equals(ObjectStore.digest(f)) ) {
+                        return e.getKey();
+                    }
+                    return null;
+                }
+                catch ( IOException ex ) {
+                    throw new CompletionException(ex);
+                }
+            }, executor));
+        }
+        List<String> failed = new ArrayList<>();
+        for ( CompletableFuture<String> t : tasks ) {
+            try {
+                String path = t.join();
+                if ( path != null ) {
+                    failed.add(path);
+                }
+            }
+            catch ( CompletionException ex ) {
+                throw new PackageException("Error checking the files of: " + dir, ex.getCause());
+            }
+        }
+        Collections.sort(failed);
+        return failed;
+    }
+
+    /** The name of the checksums file, at the root of the package dir. */
+    static final String FILE_NAME = "expath-pkg.sha256";
+}
@@ -9,12 +9,30 @@
 
 package org.expath.pkg.repo;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
 import javax.xml.transform.stream.StreamSource;
 import org.expath.pkg.repo.tools.PackagesTxtFile;
 import org.slf4j.Logger;
@@ -23,6 +41,15 @@ import org.slf4j.LoggerFactory;
 /**
  * Storage using the classpath.
  *
+ * The root can be in several directories and JAR files of the classpath,
+ * each with its own package list, see {@link #listPackageEntries()}.
+ *
+ * All the resources under the root are indexed once, when the storage is
+ * created, by scanning the directories and JAR files it is in.  All lookups
+ * are then resolved from the index, without searching the classloader again
+ * (which can be slow with many JAR files, e.g. in a fat JAR).  If the root is
+ * in a location which cannot be scanned, the classloader is used instead.
+ *
  * @author Florent Georges
  */
 public class ClasspathStorage
@@ -32,8 +59,18 @@ public class ClasspathStorage
      * @param root The common prefix for all resources.
      */
     public ClasspathStorage(String root)
+    {
+        this(root, ClasspathStorage.class.getClassLoader());
+    }
+
+    /**
+     * @param root The common prefix for all resources.
+     * @param loader The classloader to look the resources up.
+     */
+    public ClasspathStorage(String root, ClassLoader loader)
     {
         myRoot = root;
+        myResources = Resources.scan(loader, root.replace('.', '/') + "/");
     }
 
     @Override
@@ -47,18 +84,53 @@ public class ClasspathStorage
             throws PackageException
     {
         String pkg_root = myRoot.replace('.', '/') + "/" + rsrc_name + "/";
-        return new ClasspathResolver(pkg_root, abbrev, rsrc_name);
+        return new ClasspathResolver(pkg_root, abbrev, rsrc_name, myResources);
     }
 
+    /**
+     * The package dirs of all the package lists in the classpath, merged.
+     *
+     * See {@link #listPackageEntries()}.
+     */
     @Override
     public Set<String> listPackageDirectories()
             throws PackageException
     {
-        String rsrc = myRoot.replace('.', '/') + "/" + ".expath-pkg/packages.txt";
-        ClassLoader loader = ClasspathStorage.class.getClassLoader();
-        InputStream res = loader.getResourceAsStream(rsrc);
-        LOG.debug("Resolve resource .expath-pkg/packages.txt to '{}'", res);
-        return PackagesTxtFile.parseDirectories(res);
+        Set<String> dirs = new LinkedHashSet<>();
+        for ( PackageEntry e : listPackageEntries() ) {
+            dirs.add(e.getDir());
+        }
+        return dirs;
+    }
+
+    /**
+     * The packages of all the package lists in the classpath, merged.
+     *
+     * All the {@code .expath-pkg/packages.txt} under the root are used, in
+     * the classpath order.  In case of conflict (the same package dir, or
+     * the same package name and version in several JAR files), the first one
+     * is used, see {@link #getConflicts()}.
+     */
+    @Override
+    public List<PackageEntry> listPackageEntries()
+            throws PackageException
+    {
+        List<PackageEntry> entries = myResources.entries();
+        if ( entries == null ) {
+            String rsrc = myRoot.replace('.', '/') + "/" + PACKAGE_LIST;
+            throw new PackageException("Package list not found in the classpath: " + rsrc);
+        }
+        return entries;
+    }
+
+    /**
+     * The conflicts found when merging the package lists, if any.
+     *
+     * @return the conflicts, as messages (they are also logged).
+     */
+    public List<String> getConflicts()
+    {
+        return myResources.conflicts();
     }
 
     @Override
@@ -111,17 +183,275 @@ public class ClasspathStorage
     }
 
     private final String myRoot;
+    private final Resources myResources;
+
+    /**
+     * Look the resources up, in the index if any, or with the classloader.
+     */
+    static class Resources
+    {
+        private Resources(ClassLoader loader, Map<String, URL> index, Set<String> dirs, Lists lists)
+        {
+            myLoader = loader;
+            myIndex = index;
+            myDirs = dirs;
+            myEntries = lists.entries;
+            myListed = lists.listed;
+            myConflicts = Collections.unmodifiableList(lists.conflicts);
+        }
+
+        /**
+         * Index all the resources under a root, or use the classloader if it cannot be scanned.
+         *
+         * @param root the root, ending with a slash (e.g. {@code org/example/repo/})
+         */
+        static Resources scan(ClassLoader loader, String root)
+        {
+            try {
+                // the package lists, then the root dirs without any (the JARs might have no entry for dirs)
+                Map<String, URL> lists = new LinkedHashMap<>();
+                for ( URL u : Collections.list(loader.getResources(root + PACKAGE_LIST)) ) {
+                    String s = u.toString();
+                    lists.put(s.substring(0, s.length() - PACKAGE_LIST.length()), u);
+                }
+                Lists merged = Lists.merge(lists);
+                Set<String> bases = new LinkedHashSet<>(lists.keySet());
+                for ( URL u : Collections.list(loader.getResources(root)) ) {
+                    String s = u.toString();
+                    bases.add(s.endsWith("/") ? s : s + "/");
+                }
+                Map<String, URL> index = new HashMap<>();
+                Set<String> dirs = new HashSet<>();
+                for ( String b : bases ) {
+                    if ( ! scanBase(new URL(b), root, merged.owners, index, dirs) ) {
+                        LOG.debug("Cannot scan {}, use the classloader for {}", b, root);
+                        return new Resources(loader, null, null, merged);
+                    }
+                }
+                LOG.debug("Indexed {} resources in {} for {}", index.size(), bases, root);
+                return new Resources(loader, index, dirs, merged);
+            }
+            catch ( IOException | URISyntaxException | PackageException ex ) {
+                LOG.warn("Error indexing the classpath, use the classloader for " + root, ex);
+                return new Resources(loader, null, null, new Lists());
+            }
+        }
+
+        /**
+         * The URL of a resource, or null if it does not exist.
+         */
+        URL find(String rsrc)
+        {
+            if ( myIndex == null ) {
+                return myLoader.getResource(rsrc);
+            }
+            return myIndex.get(rsrc);
+        }
+
+        /**
+         * Whether a directory exists (its name ends with a slash).
+         */
+        boolean dirExists(String dir)
+        {
+            if ( myIndex == null ) {
+                return myLoader.getResource(dir) != null;
+            }
+            return myDirs.contains(dir);
+        }
+
+        /**
+         * The packages of all the package lists, merged, or null if there is no package list.
+         */
+        List<PackageEntry> entries()
+        {
+            return myListed ? new ArrayList<>(myEntries) : null;
+        }
+
+        List<String> conflicts()
+        {
+            return myConflicts;
+        }
+
+        /**
+         * Add the resources under the base URL, return false if it cannot be scanned.
+         *
+         * The first one wins, like with the classloader (the bases are in the
+         * classpath order).  The files within a package dir are only taken
+         * from the base owning it, so a package is never mixed from several
+         * JAR files.
+         */
+        private static boolean scanBase(URL base, String root, Map<String, String> owners,
+                Map<String, URL> index, Set<String> dirs)
+                throws IOException
+                     , URISyntaxException
+        {
+            if ( "file".equals(base.getProtocol()) ) {
+                Path dir = Paths.get(base.toURI());
+                try ( Stream<Path> files = Files.walk(dir) ) {
+                    for ( Path f : (Iterable<Path>) files::iterator ) {
+                        String rel = dir.relativize(f).toString().replace('\\', '/');
+                        if ( rel.isEmpty() || ! isOwner(base, rel, owners) ) {
+                            continue;
+                        }
+                        if ( Files.isDirectory(f) ) {
+                            dirs.add(root + rel + "/");
+                        }
+                        else {
+                            add(base, root, rel, index, dirs);
+                        }
+                    }
+                }
+                return true;
+            }
+            URLConnection conn = base.openConnection();
+            if ( ! (conn instanceof JarURLConnection) ) {
+                return false;
+            }
+            // the JAR itself, the dir might have no entry
+            String prefix = ((JarURLConnection) conn).getEntryName();
+            URL jar_url = ((JarURLConnection) conn).getJarFileURL();
+            JarURLConnection jar_conn = (JarURLConnection) new URL("jar:" + jar_url + "!/").openConnection();
+            jar_conn.setUseCaches(false);
+            try ( JarFile jar = jar_conn.getJarFile() ) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while ( entries.hasMoreElements() ) {
+                    JarEntry e = entries.nextElement();
+                    String name = e.getName();
+                    if ( name.length() <= prefix.length() || ! name.startsWith(prefix) ) {
+                        continue;
+                    }
+                    String rel = name.substring(prefix.length());
+                    if ( ! isOwner(base, rel, owners) ) {
+                        continue;
+                    }
+                    if ( e.isDirectory() ) {
+                        dirs.add(root + rel);
+                    }
+                    else {
+                        add(base, root, rel, index, dirs);
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * False if the path is in a package dir owned by another base.
+         */
+        private static boolean isOwner(URL base, String rel, Map<String, String> owners)
+        {
+            int slash = rel.indexOf('/');
+            String owner = owners.get(slash < 0 ? rel : rel.substring(0, slash));
+            return owner == null || owner.equals(base.toString());
+        }
+
+        private static void add(URL base, String root, String rel, Map<String, URL> index, Set<String> dirs)
+                throws MalformedURLException
+                     , URISyntaxException
+        {
+            String rsrc = root + rel;
+            if ( index.containsKey(rsrc) ) {
+                return;
+            }
+            // relative to the base, encoded (and with "./", in case of a colon)
+            index.put(rsrc, new URL(base, "./" + new URI(null, null, rel, null).getRawPath()));
+            for ( int i = rel.indexOf('/'); i >= 0; i = rel.indexOf('/', i + 1) ) {
+                dirs.add(root + rel.substring(0, i + 1));
+            }
+        }
+
+        private final ClassLoader myLoader;
+        /** The URL of each resource, by name, or null to use the classloader. */
+        private final Map<String, URL> myIndex;
+        /** The directories, ending with a slash, or null to use the classloader. */
+        private final Set<String> myDirs;
+        /** The packages of all the package lists. */
+        private final List<PackageEntry> myEntries;
+        /** Whether there was at least one package list. */
+        private final boolean myListed;
+        /** The conflicts between the package lists. */
+        private final List<String> myConflicts;
+    }
+
+    /**
+     * The package lists of several bases, merged.
+     */
+    private static class Lists
+    {
+        /**
+         * Merge the package lists, in order.
+         *
+         * The first base listing a package dir owns it.  A dir listed again
+         * in another base, or the same name and version in another dir, is
+         * a conflict: it is reported, and the package is ignored.
+         *
+         * @param lists the URL of each list, by base URL (ending with a slash)
+         */
+        static Lists merge(Map<String, URL> lists)
+                throws IOException
+                     , PackageException
+        {
+            Lists merged = new Lists();
+            Map<String, String> versions = new HashMap<>();
+            for ( Map.Entry<String, URL> l : lists.entrySet() ) {
+                String base = l.getKey();
+                List<PackageEntry> entries;
+                try ( InputStream in = l.getValue().openStream() ) {
+                    entries = PackagesTxtFile.parsePackages(in);
+                }
+                merged.listed = true;
+                for ( PackageEntry e : entries ) {
+                    String owner = merged.owners.get(e.getDir());
+                    String key = e.getName() + " " + e.getVersion();
+                    String other = versions.get(key);
+                    if ( owner != null ) {
+                        merged.conflict("Package dir '" + e.getDir() + "' in both " + owner + " and " + base
+                                + ", the first one is used");
+                    }
+                    else if ( other != null ) {
+                        merged.conflict("Package " + e.getName() + ", version " + e.getVersion() + ", in both "
+                                + other + " and " + base + e.getDir() + ", the first one is used");
+                    }
+                    else {
+                        merged.owners.put(e.getDir(), base);
+                        versions.put(key, base + e.getDir());
+                        merged.entries.add(e);
+                    }
+                }
+            }
+            return merged;
+        }
+
+        private void conflict(String msg)
+        {
+            LOG.warn(msg);
+            conflicts.add(msg);
+        }
+
+        /** The packages, in order. */
+        final List<PackageEntry> entries = new ArrayList<>();
+        /** The base URL owning each package dir. */
+        final Map<String, String> owners = new HashMap<>();
+        final List<String> conflicts = new ArrayList<>();
+        boolean listed = false;
+    }
 
     public static class ClasspathResolver
             extends PackageResolver
     {
         public ClasspathResolver(String pkg_root, String abbrev, String rsrc_name)
                 throws PackageException
+        {
+            this(pkg_root, abbrev, rsrc_name, new Resources(ClasspathResolver.class.getClassLoader(), null, null, new Lists()));
+        }
+
+        ClasspathResolver(String pkg_root, String abbrev, String rsrc_name, Resources resources)
+                throws PackageException
         {
             myPkgRoot = pkg_root;
             myRsrcName = rsrc_name;
-            myLoader = ClasspathResolver.class.getClassLoader();
-            myContent = getContent(myLoader, pkg_root, abbrev);
+            myAbbrev = abbrev;
+            myResources = resources;
         }
 
         @Override
@@ -129,7 +459,7 @@ public class ClasspathStorage
                 throws PackageException
         {
             String rsrc = myPkgRoot + "expath-pkg.xml";
-            URL sysid = myLoader.getResource(rsrc);
+            URL sysid = myResources.find(rsrc);
             if ( sysid == null ) {
                 throw new PackageException("The package descriptor exists, but has no URL: " + rsrc);
             }
@@ -145,25 +475,25 @@ public class ClasspathStorage
         }
 
         // TODO: Use getContentDirBaseURI() instead?
-        private static String getContent(ClassLoader loader, String pkg_root, String abbrev)
+        private static String getContent(Resources resources, String pkg_root, String abbrev)
                 throws PackageException
         {
             String old_style = pkg_root + abbrev + "/";
             String new_style = pkg_root + "content/";
-            URL old_url = loader.getResource(old_style);
-            URL new_url = loader.getResource(new_style);
-            LOG.trace("Content dir '{}' is '{}', and '{}' is '{}'", new_style, new_url, old_style, old_url);
-            if ( old_url == null && new_url == null ) {
+            boolean old_exists = abbrev != null && resources.dirExists(old_style);
+            boolean new_exists = resources.dirExists(new_style);
+            LOG.trace("Content dir '{}' exists: {}, and '{}': {}", new_style, new_exists, old_style, old_exists);
+            if ( ! old_exists && ! new_exists ) {
                 String msg = "None of content dirs exist: '" + new_style + "' and '" + old_style + "'";
                 LOG.info(msg);
                 throw new PackageException(msg);
             }
-            else if ( old_url != null && new_url != null ) {
+            else if ( old_exists && new_exists ) {
                 String msg = "Both content dirs exist: '" + new_style + "' and '" + old_style + "'";
                 LOG.info(msg);
                 throw new PackageException(msg);
             }
-            else if ( old_url == null ) {
+            else if ( ! old_exists ) {
                 return new_style;
             }
             else {
@@ -189,7 +519,13 @@ public class ClasspathStorage
         public StreamSource resolveComponent(String path)
                 throws PackageException
         {
-            return resolveWithin(path, myContent);
+            // looked up on first use, the package descriptor is resolved without abbrev
+            String content = myContent;
+            if ( content == null ) {
+                content = getContent(myResources, myPkgRoot, myAbbrev);
+                myContent = content;
+            }
+            return resolveWithin(path, content);
         }
 
         private StreamSource resolveWithin(String path, String root)
@@ -199,25 +535,31 @@ public class ClasspathStorage
                 path = path.substring(1);
             }
             String rsrc = root + path;
-            InputStream in = myLoader.getResourceAsStream(rsrc);
-            if ( in == null ) {
+            // one lookup, then the URL is opened directly
+            URL sysid = myResources.find(rsrc);
+            if ( sysid == null ) {
                 return null;
             }
-            URL sysid = myLoader.getResource(rsrc);
-            if ( sysid == null ) {
-                throw new PackageException("The resource exists, but has no URL: " + rsrc);
+            InputStream in;
+            try {
+                in = sysid.openStream();
+            }
+            catch ( IOException ex ) {
+                throw new PackageException("Error opening the resource: " + sysid, ex);
             }
             StreamSource src = new StreamSource(in);
             src.setSystemId(sysid.toString());
             return src;
         }
 
-        private final String      myPkgRoot;
-        private final String      myContent;
-        private final String      myRsrcName;
-        private final ClassLoader myLoader;
+        private final String    myPkgRoot;
+        private final String    myAbbrev;
+        private final String    myRsrcName;
+        private final Resources myResources;
+        private volatile String myContent = null;
     }
 
+    private static final String PACKAGE_LIST = ".expath-pkg/packages.txt";
     private static final Logger LOG = LoggerFactory.getLogger(ClasspathStorage.class);
 }
 
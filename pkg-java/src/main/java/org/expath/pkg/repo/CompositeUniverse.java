@@ -58,6 +58,19 @@ public class CompositeUniverse
         return null;
     }
 
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        for ( Universe sub : mySubUniverses ) {
+            Source src = sub.resolveSystemId(sysid);
+            if ( src != null ) {
+                return src;
+            }
+        }
+        return null;
+    }
+
     private boolean myTransitive;
     private Collection<Universe> mySubUniverses = new ArrayList<Universe>();
     private static final Logger LOG = LoggerFactory.getLogger(CompositeUniverse.class);
@@ -0,0 +1,199 @@
+package org.expath.pkg.repo;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Objects;
+import javax.annotation.Nullable;
+import javax.xml.transform.stream.StreamSource;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolve resources and components within a package stored as named entries.
+ *
+ * For the storages not keeping the files of a package in a directory, but as
+ * entries named by their path within the package, with slashes (in a XAR
+ * file, in memory, in a pack file...).  Subclasses only look entries up,
+ * this class finds the content dir, and falls back to the package root for
+ * components, like {@link FileSystemStorage} does.
+ */
+abstract class EntryResolver
+        extends Storage.PackageResolver
+{
+    /**
+     * @param rsrc_name the resource name of the package (its key in the storage)
+     * @param abbrev the package abbrev, for the old-style content dir, or null
+     */
+    EntryResolver(String rsrc_name, @Nullable String abbrev)
+    {
+        myRsrcName = rsrc_name;
+        myPkgAbbrev = abbrev;
+    }
+
+    @Override
+    public String getResourceName()
+    {
+        return myRsrcName;
+    }
+
+    /**
+     * Set the resource name, once the package has been stored under its final key.
+     */
+    synchronized void setResourceName(String rsrc_name)
+    {
+        myRsrcName = rsrc_name;
+        myContentResolved = false;
+        myContentDir = null;
+    }
+
+    @Override
+    public StreamSource resolveResource(String path)
+            throws PackageException
+                 , Storage.NotExistException
+    {
+        StreamSource src = tryResolve(trimPath(path));
+        if ( src == null ) {
+            String msg = "Entry '" + path + "' does not exist in: " + getLocation();
+            LOG.debug(msg);
+            throw new Storage.NotExistException(msg);
+        }
+        return src;
+    }
+
+    @Override
+    public StreamSource resolveComponent(String path)
+            throws PackageException
+                 , Storage.NotExistException
+    {
+        path = trimPath(path);
+        String content = getContentDir();
+        StreamSource src = null;
+        if ( content != null ) {
+            src = tryResolve(content + path);
+        }
+        if ( src == null ) {
+            // fallback to the package root, like on the file system
+            src = tryResolve(path);
+        }
+        if ( src == null ) {
+            String msg = "Could not locate component '" + path + "' in: " + getLocation();
+            LOG.debug(msg);
+            throw new Storage.NotExistException(msg);
+        }
+        return src;
+    }
+
+    /**
+     * Open an entry, by its full name within the package.
+     *
+     * @return the source, with its system ID set, or null if there is no such entry.
+     */
+    @Nullable
+    protected abstract StreamSource tryResolve(String name)
+            throws PackageException;
+
+    /**
+     * Whether there is any entry within a dir.
+     *
+     * @param dir the dir name, ending with a slash
+     */
+    protected abstract boolean hasDir(String dir)
+            throws PackageException;
+
+    /**
+     * Where the package is, for the error messages.
+     */
+    protected abstract String getLocation();
+
+    /**
+     * The content dir prefix, {@code content/} or (old style) {@code [abbrev]/}.
+     *
+     * There might be no entries for directories themselves, so look for
+     * entries within them, once.
+     *
+     * @return the content dir, or null if there is none.
+     */
+    @Nullable
+    protected synchronized String getContentDir()
+            throws PackageException
+    {
+        if ( myContentResolved ) {
+            return myContentDir;
+        }
+        String new_style = "content/";
+        String old_style = myPkgAbbrev == null ? null : myPkgAbbrev + "/";
+        boolean new_exists = hasDir(new_style);
+        boolean old_exists = old_style != null && hasDir(old_style);
+        if ( new_exists && old_exists ) {
+            String msg = "Both content dirs exist: '" + new_style + "' and '" + old_style + "'";
+            LOG.info(msg);
+            throw new PackageException(msg + ", in: " + getLocation());
+        }
+        else if ( old_exists ) {
+            LOG.info("Warning: package uses old-style content dir: '{}'", old_style);
+            myContentDir = old_style;
+        }
+        else if ( new_exists ) {
+            myContentDir = new_style;
+        }
+        myContentResolved = true;
+        return myContentDir;
+    }
+
+    /**
+     * Split a system ID of the form {@code [base][key]/[name]}.
+     *
+     * The URIs are compared once parsed, as resolving a relative URI can
+     * change their form (e.g. {@code file:///} becomes {@code file:/}).
+     *
+     * @param sysid the system ID
+     * @param base the base of the system IDs of the storage, ending with a slash
+     *
+     * @return the key and the name, or null if the system ID does not have this form.
+     */
+    @Nullable
+    static String[] splitSystemId(String sysid, String base)
+    {
+        URI uri;
+        URI prefix;
+        try {
+            uri = new URI(sysid).normalize();
+            prefix = new URI(base);
+        }
+        catch ( URISyntaxException ex ) {
+            return null;
+        }
+        String path = uri.getPath();
+        String start = prefix.getPath();
+        boolean same = prefix.getScheme().equalsIgnoreCase(uri.getScheme())
+                && Objects.equals(emptyToNull(prefix.getAuthority()), emptyToNull(uri.getAuthority()))
+                && path != null && path.startsWith(start);
+        if ( ! same ) {
+            return null;
+        }
+        int slash = path.indexOf('/', start.length());
+        if ( slash < 0 ) {
+            return null;
+        }
+        return new String[] { path.substring(start.length(), slash), path.substring(slash + 1) };
+    }
+
+    @Nullable
+    private static String emptyToNull(@Nullable String s)
+    {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    private static String trimPath(String path)
+    {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private volatile String myRsrcName;
+    @Nullable private final String myPkgAbbrev;
+    @GuardedBy("this") private String myContentDir = null;
+    @GuardedBy("this") private boolean myContentResolved = false;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(EntryResolver.class);
+}
@@ -9,6 +9,9 @@
 
 package org.expath.pkg.repo;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -78,6 +81,55 @@ public abstract class Extension
     public abstract void install(Repository repo, Package pkg)
             throws PackageException;
 
+    /**
+     * Write the extension-specific information of a package to the repository index.
+     * 
+     * The repository can keep a binary index of its packages (see {@link
+     * Repository#setBinaryIndex(boolean)}), so it does not have to parse all
+     * the descriptors at startup.  An extension supporting it writes whatever
+     * {@code init()} would set up on the package (including the fact there is
+     * nothing to set up), and returns true.  It is then given the same data
+     * back in {@link #readInfo(Package, DataInput)}, instead of {@code init()}
+     * being called.
+     * 
+     * The default implementation returns false, so {@code init()} is always
+     * called on packages loaded from the index.
+     *
+     * @param pkg the package descriptor
+     * @param out where to write the information
+     *
+     * @return true if the information has been written, false if not supported.
+     *
+     * @throws IOException if an error occurs writing the data
+     * @throws PackageException if an error occurs
+     */
+    public boolean writeInfo(Package pkg, DataOutput out)
+            throws IOException
+                 , PackageException
+    {
+        return false;
+    }
+
+    /**
+     * Initialize a package from the repository index.
+     * 
+     * Read the information written by {@link #writeInfo(Package, DataOutput)},
+     * and set up the package the same way {@code init()} would do.  Only called
+     * if {@code writeInfo()} returned true.
+     *
+     * @param pkg the package descriptor
+     * @param in where to read the information from
+     *
+     * @throws IOException if an error occurs reading the data
+     * @throws PackageException if an error occurs
+     */
+    public void readInfo(Package pkg, DataInput in)
+            throws IOException
+                 , PackageException
+    {
+        throw new PackageException("Extension does not support the repository index: " + myName);
+    }
+
     private final String myName;
 }
 
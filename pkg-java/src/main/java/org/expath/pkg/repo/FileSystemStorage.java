@@ -12,11 +12,22 @@ package org.expath.pkg.repo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import javax.xml.transform.stream.StreamSource;
+import org.expath.pkg.repo.tools.PackagesJournal;
 import org.expath.pkg.repo.tools.PackagesTxtFile;
 import org.expath.pkg.repo.tools.PackagesXmlFile;
 import org.slf4j.Logger;
@@ -53,6 +64,8 @@ public class FileSystemStorage
         myXmlFile = new PackagesXmlFile(xmlfile);
         Path txtfile = dir.resolve("packages.txt");
         myTxtFile = new PackagesTxtFile(txtfile);
+        myJournal = new PackagesJournal(dir.resolve("packages.journal"));
+        myObjects = new ObjectStore(dir.resolve("objects"));
     }
 
     public Path getRootDirectory()
@@ -60,6 +73,129 @@ public class FileSystemStorage
         return myRoot;
     }
 
+    /**
+     * Watch this storage, and reload the repository when it changes on disk.
+     *
+     * For when other processes install or remove packages in the same
+     * repository.  See {@link RepositoryWatcher}.
+     *
+     * @param repo the repository using this storage, to reload
+     * @param delay how long to wait for the changes to settle before reloading
+     * @param unit the unit of {@code delay}
+     *
+     * @return the watcher, to close to stop watching.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public RepositoryWatcher watch(Repository repo, long delay, TimeUnit unit)
+            throws PackageException
+    {
+        if ( repo.getStorage() != this ) {
+            throw new PackageException("The repository does not use this storage: " + repo.getStorage());
+        }
+        return new RepositoryWatcher(repo, myRoot, myPrivate, delay, unit);
+    }
+
+    /**
+     * Record the updates of the package lists in a journal.
+     *
+     * If true, installing or removing a package appends a record to {@code
+     * .expath-pkg/packages.journal}, instead of rewriting {@code packages.txt}
+     * and {@code packages.xml}.  The journal is compacted into the lists when
+     * it reaches the threshold (see {@link #setJournalCompactionThreshold(int)}).
+     * If false (the default), any record left in the journal is compacted
+     * before the next update.
+     *
+     * Other processes using the same repository must either support the
+     * journal, or use it only after it has been compacted.
+     *
+     * @param value the new value
+     */
+    public void setJournal(boolean value)
+    {
+        myJournalEnabled = value;
+    }
+
+    /**
+     * The number of records in the journal triggering its compaction (1000 by default).
+     *
+     * @param records the number of records
+     */
+    public void setJournalCompactionThreshold(int records)
+    {
+        if ( records < 1 ) {
+            throw new IllegalArgumentException("The compaction threshold must be at least 1: " + records);
+        }
+        myCompactionThreshold = records;
+    }
+
+    /**
+     * Compact the journal into {@code packages.txt} and {@code packages.xml}, and empty it.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void compactJournal()
+            throws PackageException
+    {
+        myJournal.compact(records -> {
+            List<PackageEntry> entries = PackagesJournal.apply(myTxtFile.parsePackages(), records);
+            myXmlFile.setPackages(entries);
+            myTxtFile.setPackages(entries);
+        });
+    }
+
+    /**
+     * Store the files of the packages once per content.
+     *
+     * If true, the files of each package installed are hard links to {@code
+     * .expath-pkg/objects}, where each distinct content is stored once (see
+     * {@link ObjectStore}).  Removing a package then deletes the objects not
+     * used anymore.  False by default.  The installed files must not be
+     * modified in place, as they can be shared by several packages.
+     *
+     * @param value the new value
+     */
+    public void setDeduplication(boolean value)
+    {
+        myDeduplication = value;
+    }
+
+    /**
+     * Delete the objects not used anymore by any package.
+     *
+     * Done after each remove when deduplication is on.  Useful after removing
+     * packages with deduplication off.
+     *
+     * @return the number of objects deleted.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public int gc()
+            throws PackageException
+    {
+        return myObjects.gc();
+    }
+
+    /**
+     * Check the files of a package against the checksums recorded at install.
+     *
+     * The files are checked in parallel in the common fork-join pool, without
+     * the original archive.  See {@link Repository#setRecordChecksums(boolean)}.
+     *
+     * @param pkg the package, installed in this storage
+     *
+     * @return the paths of the files missing or changed, relative to the
+     * package dir (empty if the package is intact).
+     *
+     * @throws PackageException if no checksums were recorded for the package,
+     * or if an error occurs
+     */
+    public List<String> verifyPackage(Package pkg)
+            throws PackageException
+    {
+        return Checksums.verify(getResolver(pkg).myPkgDir, ForkJoinPool.commonPool());
+    }
+
     @Override
     public boolean isReadOnly()
     {
@@ -78,7 +214,57 @@ public class FileSystemStorage
     public Set<String> listPackageDirectories()
             throws PackageException
     {
-        return myTxtFile.parseDirectories();
+        if ( myJournal.size() == 0 ) {
+            return myTxtFile.parseDirectories();
+        }
+        Set<String> dirs = new LinkedHashSet<>();
+        for ( PackageEntry e : listPackageEntries() ) {
+            dirs.add(e.getDir());
+        }
+        return dirs;
+    }
+
+    @Override
+    public List<PackageEntry> listPackageEntries()
+            throws PackageException
+    {
+        return myJournal.replay(myTxtFile.parsePackages());
+    }
+
+    /**
+     * Combine the name, size and modification time of the files at the root of the package dir.
+     *
+     * That includes the package descriptor and the extension descriptors, but
+     * not the content dir (the components are not in the index).
+     */
+    @Override
+    public long getPackageStamp(String rsrc_name)
+            throws PackageException
+    {
+        Path dir = myRoot.resolve(rsrc_name);
+        long stamp = 0;
+        try ( DirectoryStream<Path> files = Files.newDirectoryStream(dir) ) {
+            for ( Path f : files ) {
+                BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class);
+                if ( attrs.isRegularFile() ) {
+                    long h = f.getFileName().toString().hashCode();
+                    h = h * 31 + attrs.size();
+                    h = h * 31 + attrs.lastModifiedTime().toMillis();
+                    // the order of the files is not specified, so combine them with a sum
+                    stamp += h * 0x9E3779B97F4A7C15L;
+                }
+            }
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the package directory: " + dir, ex);
+        }
+        return stamp == UNKNOWN_STAMP ? 0 : stamp;
+    }
+
+    @Override
+    public Path getIndexFile()
+    {
+        return myPrivate.resolve("packages.idx");
     }
 
     @Override
@@ -107,11 +293,15 @@ public class FileSystemStorage
     public void storeInstallDir(Path dir, String key, Package pkg)
             throws PackageException
     {
+        if ( myDeduplication ) {
+            myObjects.link(dir);
+        }
         // move the temporary dir content to the repository
         Path dest = myRoot.resolve(key);
         FileHelper.renameTmpDir(dir, dest);
         FileSystemResolver resolver = getResolver(pkg);
         resolver.setPkgDir(dest);
+        resolver.myRsrcName = key;
     }
 
     @Override
@@ -120,11 +310,42 @@ public class FileSystemStorage
     {
         FileSystemResolver resolver = getResolver(pkg);
         String dir = resolver.getDirName();
+        if ( myJournalEnabled ) {
+            myJournal.addPackage(pkg, dir);
+            compactIfNeeded();
+            return;
+        }
+        compactIfNeeded();
         myXmlFile.addPackage(pkg, dir);
-        Path txt_file = myPrivate.resolve("packages.txt");
         myTxtFile.addPackage(pkg, dir);
     }
 
+    /**
+     * Update {@code packages.xml} and {@code packages.txt} once for all the packages.
+     */
+    @Override
+    public void updatePackageLists(Collection<Package> pkgs)
+            throws PackageException
+    {
+        Map<String, Package> dirs = new LinkedHashMap<>();
+        for ( Package pkg : pkgs ) {
+            dirs.put(getResolver(pkg).getDirName(), pkg);
+        }
+        if ( myJournalEnabled ) {
+            List<PackageEntry> entries = new ArrayList<>();
+            for ( Map.Entry<String, Package> e : dirs.entrySet() ) {
+                Package p = e.getValue();
+                entries.add(new PackageEntry(e.getKey(), p.getName(), p.getVersion()));
+            }
+            myJournal.addPackages(entries);
+            compactIfNeeded();
+            return;
+        }
+        compactIfNeeded();
+        myXmlFile.addPackages(dirs);
+        myTxtFile.addPackages(dirs);
+    }
+
     @Override
     public void remove(Package pkg)
             throws PackageException
@@ -132,11 +353,23 @@ public class FileSystemStorage
         FileSystemResolver resolver = getResolver(pkg);
         // remove the entries from the packages.* files
         String dir = resolver.getDirName();
-        myXmlFile.removePackageByDir(dir);
-        myTxtFile.removePackageByDir(dir);
+        if ( myJournalEnabled ) {
+            myJournal.removePackageByDir(dir);
+        }
+        else {
+            compactIfNeeded();
+            myXmlFile.removePackageByDir(dir);
+            myTxtFile.removePackageByDir(dir);
+        }
         // actually delete the files
 //        deleteDirRecurse(resolver.myPkgDir);
         FileHelper.deleteQuietly(resolver.myPkgDir);
+        if ( myDeduplication ) {
+            myObjects.gc();
+        }
+        if ( myJournalEnabled ) {
+            compactIfNeeded();
+        }
     }
 
     @Override
@@ -155,6 +388,31 @@ public class FileSystemStorage
         myErrorIfNoContentDir = value;
     }
 
+    /**
+     * Replace the package lists, for packages whose dirs have been written directly.
+     *
+     * Used to unpack a pack file, see {@link PackStorage#unpack(Path, Path)}.
+     */
+    void setPackageEntries(List<PackageEntry> entries)
+            throws PackageException
+    {
+        compactIfNeeded();
+        myXmlFile.setPackages(entries);
+        myTxtFile.setPackages(entries);
+    }
+
+    /**
+     * Compact the journal if it reached the threshold, or if it is disabled and not empty.
+     */
+    private void compactIfNeeded()
+            throws PackageException
+    {
+        int size = myJournal.size();
+        if ( myJournalEnabled ? size >= myCompactionThreshold : size > 0 ) {
+            compactJournal();
+        }
+    }
+
     private FileSystemResolver getResolver(Package pkg)
             throws PackageException
     {
@@ -176,6 +434,16 @@ public class FileSystemStorage
     private final PackagesXmlFile myXmlFile;
     /** The package list, text format, in [repo]/.expath-pkg/packages.txt. */
     private final PackagesTxtFile myTxtFile;
+    /** The journal of the updates of the package lists, in [repo]/.expath-pkg/packages.journal. */
+    private final PackagesJournal myJournal;
+    /** Record the updates in the journal? */
+    private volatile boolean myJournalEnabled = false;
+    /** The number of records in the journal triggering its compaction. */
+    private volatile int myCompactionThreshold = 1000;
+    /** The files of the packages, by content, in [repo]/.expath-pkg/objects. */
+    private final ObjectStore myObjects;
+    /** Link the package files to the object store? */
+    private volatile boolean myDeduplication = false;
     /** Throw an error if none content dir exist? */
     private boolean myErrorIfNoContentDir = true;
 
@@ -349,7 +617,7 @@ public class FileSystemStorage
             return myPkgDir.getFileName().toString();
         }
 
-        private final String myRsrcName;
+        private String myRsrcName;
         private final String myPkgAbbrev;
         @Nullable private Path myPkgDir;
         @Nullable private Path myContentDir;
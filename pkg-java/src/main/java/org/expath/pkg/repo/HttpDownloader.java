@@ -0,0 +1,528 @@
+package org.expath.pkg.repo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Download archives over HTTP, with parallel range requests.
+ *
+ * If the server accepts ranges ({@code Accept-Ranges: bytes}) and gives the
+ * length of the archive, it is downloaded in chunks, by several connections
+ * at once, in a sparse {@code [dest].part} file.  A chunk interrupted by a
+ * dropped connection is resumed where it stopped.  The chunks done are
+ * recorded in {@code [dest].part.state}, so a download interrupted altogether
+ * is resumed by the next download to the same file, as long as the archive
+ * did not change on the server (same {@code ETag} or {@code Last-Modified},
+ * and same length).
+ *
+ * Otherwise the archive is downloaded in a single stream.  Either way, the
+ * destination file is replaced only once the archive is complete.
+ *
+ * A digest can be computed during the download.  In a single stream, it is
+ * updated with the bytes as they are received.  The chunks are received out
+ * of order, so each chunk is added to the digest as soon as all the chunks
+ * before it are done, while it is still in the file system cache.
+ */
+@ThreadSafe
+public class HttpDownloader
+{
+    /**
+     * The number of connections downloading the chunks of one archive (4 by default).
+     *
+     * @param connections the number of connections
+     */
+    public void setConnections(int connections)
+    {
+        if ( connections < 1 ) {
+            throw new IllegalArgumentException("The number of connections must be positive: " + connections);
+        }
+        myConnections = connections;
+    }
+
+    /**
+     * The size of the chunks (8 MB by default).
+     *
+     * An archive not bigger than one chunk is downloaded with the first
+     * response, without any other request.
+     *
+     * @param bytes the size of a chunk, in bytes
+     */
+    public void setChunkSize(long bytes)
+    {
+        if ( bytes < 1 ) {
+            throw new IllegalArgumentException("The chunk size must be positive: " + bytes);
+        }
+        myChunkSize = bytes;
+    }
+
+    /**
+     * The number of times a chunk is resumed after an error (3 by default).
+     *
+     * @param retries the number of retries
+     */
+    public void setRetries(int retries)
+    {
+        if ( retries < 0 ) {
+            throw new IllegalArgumentException("The number of retries must not be negative: " + retries);
+        }
+        myRetries = retries;
+    }
+
+    /**
+     * Download an archive to a file.
+     *
+     * @param uri the URI of the archive
+     * @param dest the destination file, replaced if it exists
+     *
+     * @throws IOException if an error occurs
+     */
+    public void download(URI uri, Path dest)
+            throws IOException
+    {
+        download(uri, dest, null);
+    }
+
+    /**
+     * Download an archive to a file, and compute its digest.
+     *
+     * @param uri the URI of the archive
+     * @param dest the destination file, replaced if it exists
+     * @param digest updated with the content of the archive, if not null
+     *
+     * @throws IOException if an error occurs
+     */
+    public void download(URI uri, Path dest, @Nullable MessageDigest digest)
+            throws IOException
+    {
+        URLConnection connection = uri.toURL().openConnection();
+        if ( connection instanceof HttpURLConnection ) {
+            checkStatus(uri, (HttpURLConnection) connection);
+        }
+        download(uri, connection, dest, digest);
+    }
+
+    /**
+     * Download an archive to a file, from a response already received.
+     *
+     * The status of an HTTP response must have been checked already.
+     */
+    void download(URI uri, URLConnection response, Path dest, @Nullable MessageDigest digest)
+            throws IOException
+    {
+        Path part = dest.resolveSibling(dest.getFileName() + ".part");
+        Path state = dest.resolveSibling(dest.getFileName() + ".part.state");
+        long length = response.getContentLengthLong();
+        boolean ranges = response instanceof HttpURLConnection
+                && "bytes".equalsIgnoreCase(response.getHeaderField("Accept-Ranges"));
+        if ( ranges && length > 0 ) {
+            HttpURLConnection hc = (HttpURLConnection) response;
+            try {
+                new Ranged(uri, part, state, length, validator(hc), digest).run(hc);
+                move(part, dest);
+                Files.deleteIfExists(state);
+                return;
+            }
+            catch ( RangeIgnoredException ex ) {
+                // the server answers with the whole archive after all
+                LOG.debug("Ranges not supported, download in a single stream: {} ({})", uri, ex.getMessage());
+                Files.deleteIfExists(state);
+                if ( digest != null ) {
+                    digest.reset();
+                }
+                response = uri.toURL().openConnection();
+                checkStatus(uri, (HttpURLConnection) response);
+            }
+        }
+        try ( InputStream in = response.getInputStream();
+              OutputStream out = Files.newOutputStream(part) ) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ( (n = in.read(buf)) >= 0 ) {
+                out.write(buf, 0, n);
+                if ( digest != null ) {
+                    digest.update(buf, 0, n);
+                }
+            }
+        }
+        move(part, dest);
+        LOG.debug("Downloaded in a single stream: {}", uri);
+    }
+
+    /**
+     * Throw the appropriate error if the response is not a success.
+     */
+    static void checkStatus(URI uri, HttpURLConnection hc)
+            throws IOException
+    {
+        int code = hc.getResponseCode();
+        if ( code == 404 ) {
+            throw new IOException(new Repository.NotFoundException(uri));
+        }
+        if ( code < 200 || code >= 300 ) {
+            String msg = hc.getResponseMessage();
+            throw new IOException(new Repository.HttpException(uri, code, msg));
+        }
+    }
+
+    /**
+     * What identifies the version of the archive on the server, if anything.
+     */
+    @Nullable
+    private static String validator(HttpURLConnection hc)
+    {
+        String etag = hc.getHeaderField("ETag");
+        if ( etag != null && ! etag.startsWith("W/") ) {
+            return etag;
+        }
+        return hc.getHeaderField("Last-Modified");
+    }
+
+    private static void move(Path from, Path to)
+            throws IOException
+    {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch ( AtomicMoveNotSupportedException ex ) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The download of one archive, chunk by chunk.
+     */
+    private class Ranged
+    {
+        Ranged(URI uri, Path part, Path state, long length, @Nullable String validator, @Nullable MessageDigest digest)
+        {
+            myUri = uri;
+            myPart = part;
+            myState = state;
+            myLength = length;
+            myValidator = validator;
+            myDigest = digest;
+            myChunk = myChunkSize;
+            myChunks = (int) ((length + myChunk - 1) / myChunk);
+        }
+
+        void run(HttpURLConnection first)
+                throws IOException
+        {
+            BitSet done = loadState();
+            if ( done == null ) {
+                done = new BitSet(myChunks);
+                Files.deleteIfExists(myPart);
+            }
+            else {
+                LOG.debug("Resume the download, {} chunk(s) out of {} already done: {}",
+                        done.cardinality(), myChunks, myUri);
+            }
+            synchronized ( this ) {
+                myDone = done;
+            }
+            List<Integer> todo = new ArrayList<>();
+            for ( int i = done.nextClearBit(0); i < myChunks; i = done.nextClearBit(i + 1) ) {
+                todo.add(i);
+            }
+            try ( FileChannel ch = FileChannel.open(myPart, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) ) {
+                if ( ch.size() < myLength ) {
+                    // a sparse file of the full length, the chunks are written in place
+                    ch.write(ByteBuffer.allocate(1), myLength - 1);
+                }
+                // the chunks done by a previous download
+                digestChunks(ch);
+                // the first response gives the first chunk, if needed
+                InputStream initial = null;
+                if ( ! todo.isEmpty() && todo.get(0) == 0 ) {
+                    initial = first.getInputStream();
+                }
+                else {
+                    first.disconnect();
+                }
+                int workers = Math.max(1, Math.min(myConnections, todo.size()));
+                if ( workers == 1 ) {
+                    for ( int i : todo ) {
+                        fetchChunk(ch, i, i == 0 ? initial : null);
+                    }
+                }
+                else {
+                    runChunks(ch, todo, initial, workers);
+                }
+                ch.force(true);
+            }
+            finally {
+                first.disconnect();
+            }
+            LOG.debug("Downloaded {} bytes in {} chunk(s), with up to {} connection(s): {}",
+                    myLength, myChunks, Math.min(myConnections, Math.max(1, todo.size())), myUri);
+        }
+
+        private void runChunks(FileChannel ch, List<Integer> todo, @Nullable InputStream initial, int workers)
+                throws IOException
+        {
+            ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+                Thread t = new Thread(r, "expath-download");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<?>> tasks = new ArrayList<>(todo.size());
+                for ( final int i : todo ) {
+                    final InputStream in = i == 0 ? initial : null;
+                    tasks.add(pool.submit(() -> {
+                        fetchChunk(ch, i, in);
+                        return null;
+                    }));
+                }
+                for ( Future<?> task : tasks ) {
+                    task.get();
+                }
+            }
+            catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while downloading " + myUri);
+            }
+            catch ( ExecutionException ex ) {
+                Throwable cause = ex.getCause();
+                if ( cause instanceof IOException ) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Error downloading " + myUri, cause);
+            }
+            finally {
+                pool.shutdownNow();
+            }
+        }
+
+        /**
+         * Download one chunk, resuming where it stopped in case of error.
+         */
+        private void fetchChunk(FileChannel ch, int index, @Nullable InputStream initial)
+                throws IOException
+        {
+            // updated by copy() as the bytes are written, even if it then fails
+            long[] pos = { index * myChunk };
+            long end = Math.min(myLength, pos[0] + myChunk);
+            int errors = 0;
+            InputStream in = initial;
+            while ( pos[0] < end ) {
+                try {
+                    if ( in == null ) {
+                        in = openRange(pos[0], end - 1);
+                    }
+                    copy(in, ch, pos, end);
+                    if ( pos[0] < end ) {
+                        throw new EOFException("Connection closed at byte " + pos[0] + " of " + myUri);
+                    }
+                }
+                catch ( RangeIgnoredException ex ) {
+                    throw ex;
+                }
+                catch ( IOException ex ) {
+                    if ( ++errors > myRetries ) {
+                        throw ex;
+                    }
+                    LOG.debug("Error downloading chunk {}, resume at byte {}: {}", index, pos[0], ex.toString());
+                }
+                finally {
+                    if ( in != null ) {
+                        in.close();
+                        in = null;
+                    }
+                }
+            }
+            chunkDone(ch, index);
+        }
+
+        private InputStream openRange(long first, long last)
+                throws IOException
+        {
+            HttpURLConnection hc = (HttpURLConnection) myUri.toURL().openConnection();
+            hc.setRequestProperty("Range", "bytes=" + first + "-" + last);
+            if ( myValidator != null ) {
+                hc.setRequestProperty("If-Range", myValidator);
+            }
+            int code = hc.getResponseCode();
+            if ( code == HttpURLConnection.HTTP_OK ) {
+                hc.disconnect();
+                throw new RangeIgnoredException("Answer 200 to a range request");
+            }
+            if ( code != HttpURLConnection.HTTP_PARTIAL ) {
+                checkStatus(myUri, hc);
+                throw new RangeIgnoredException("Answer " + code + " to a range request");
+            }
+            return hc.getInputStream();
+        }
+
+        /**
+         * Copy from the stream to the file, from {@code pos[0]} until the end of the stream or {@code end}.
+         *
+         * @param pos the position to write at, moved after each write, so it
+         * is the position after the last byte written, even if an error occurs
+         */
+        private void copy(InputStream in, FileChannel ch, long[] pos, long end)
+                throws IOException
+        {
+            byte[] buf = new byte[BUFFER_SIZE];
+            while ( pos[0] < end ) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, end - pos[0]));
+                if ( n < 0 ) {
+                    break;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                while ( bb.hasRemaining() ) {
+                    pos[0] += ch.write(bb, pos[0]);
+                }
+            }
+        }
+
+        /**
+         * The chunks already done, or null if there is no state for this version of the archive.
+         */
+        @Nullable
+        private BitSet loadState()
+                throws IOException
+        {
+            if ( myValidator == null || ! Files.exists(myState) || ! Files.exists(myPart) ) {
+                return null;
+            }
+            Properties props = new Properties();
+            try ( InputStream in = Files.newInputStream(myState) ) {
+                props.load(in);
+            }
+            if ( ! myValidator.equals(props.getProperty("validator"))
+                    || ! String.valueOf(myLength).equals(props.getProperty("length"))
+                    || ! String.valueOf(myChunk).equals(props.getProperty("chunk")) ) {
+                return null;
+            }
+            BitSet done = new BitSet(myChunks);
+            String chunks = props.getProperty("done", "");
+            for ( String c : chunks.split(",") ) {
+                if ( ! c.isEmpty() ) {
+                    done.set(Integer.parseInt(c));
+                }
+            }
+            return done;
+        }
+
+        private synchronized void chunkDone(FileChannel ch, int index)
+                throws IOException
+        {
+            myDone.set(index);
+            digestChunks(ch);
+            if ( myValidator == null ) {
+                // cannot be resumed anyway
+                return;
+            }
+            // the chunk must be on disk before the state says it is done
+            ch.force(false);
+            Properties props = new Properties();
+            props.setProperty("validator", myValidator);
+            props.setProperty("length", String.valueOf(myLength));
+            props.setProperty("chunk", String.valueOf(myChunk));
+            StringBuilder chunks = new StringBuilder();
+            for ( int i = myDone.nextSetBit(0); i >= 0; i = myDone.nextSetBit(i + 1) ) {
+                if ( chunks.length() > 0 ) {
+                    chunks.append(',');
+                }
+                chunks.append(i);
+            }
+            props.setProperty("done", chunks.toString());
+            Path tmp = myState.resolveSibling(myState.getFileName() + ".tmp");
+            try ( OutputStream out = Files.newOutputStream(tmp) ) {
+                props.store(out, null);
+            }
+            move(tmp, myState);
+        }
+
+        /**
+         * Add to the digest the chunks done, in order, until the first one not done yet.
+         */
+        private synchronized void digestChunks(FileChannel ch)
+                throws IOException
+        {
+            if ( myDigest == null ) {
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            for ( ; myDigested < myChunks && myDone.get(myDigested); ++myDigested ) {
+                long pos = myDigested * myChunk;
+                long end = Math.min(myLength, pos + myChunk);
+                while ( pos < end ) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), end - pos));
+                    int n = ch.read(buf, pos);
+                    if ( n < 0 ) {
+                        throw new EOFException("Unexpected end of file at byte " + pos + ": " + myPart);
+                    }
+                    buf.flip();
+                    myDigest.update(buf);
+                    pos += n;
+                }
+            }
+        }
+
+        private final URI myUri;
+        private final Path myPart;
+        private final Path myState;
+        private final long myLength;
+        @Nullable private final String myValidator;
+        private final long myChunk;
+        private final int myChunks;
+        @Nullable private final MessageDigest myDigest;
+        @GuardedBy("this") private BitSet myDone;
+        /** The number of chunks already added to the digest. */
+        @GuardedBy("this") private int myDigested = 0;
+    }
+
+    /**
+     * The server does not answer a range request with a partial content.
+     */
+    private static class RangeIgnoredException
+            extends IOException
+    {
+        RangeIgnoredException(String msg)
+        {
+            super(msg);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** The number of connections per archive. */
+    private volatile int myConnections = 4;
+    /** The size of a chunk. */
+    private volatile long myChunkSize = 8 * 1024 * 1024;
+    /** The number of times a chunk is resumed. */
+    private volatile int myRetries = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(HttpDownloader.class);
+}
@@ -0,0 +1,373 @@
+package org.expath.pkg.repo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Storage keeping the packages in memory, for throwaway repositories.
+ *
+ * Nothing is written on disk: the entries of a package are read right from
+ * its archive on install, and packed in a single byte buffer per package
+ * (on the heap, or off-heap if direct).  Resources and components are read
+ * straight from these buffers.  The package list is only in memory as well,
+ * so a new storage object is always empty.
+ *
+ * The system IDs of the sources are {@code memory:/[storage]/[key]/[path]}
+ * URIs, unique within the JVM.  They cannot be opened as URLs, so the
+ * relative references within a package are resolved against them, then
+ * opened through the repository (see {@link #resolveSystemId(String)}), as
+ * the resolvers of the package {@code resolver} do.
+ *
+ * A temporary dir on disk is only used to download an archive which is not a
+ * local file (see {@link #makeTempDir(String)}).
+ */
+@ThreadSafe
+public class InMemoryStorage
+        extends Storage
+{
+    /**
+     * A storage keeping the packages on the heap.
+     */
+    public InMemoryStorage()
+    {
+        this(false);
+    }
+
+    /**
+     * @param direct true to keep the packages in direct (off-heap) buffers.
+     */
+    public InMemoryStorage(boolean direct)
+    {
+        myDirect = direct;
+        myId = "storage-" + COUNTER.incrementAndGet();
+    }
+
+    /**
+     * @return the number of bytes of package content kept in memory.
+     */
+    public long getSize()
+    {
+        long size = 0;
+        for ( Content c : myContents.values() ) {
+            size += c.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return false;
+    }
+
+    @Override
+    public PackageResolver makePackageResolver(String rsrc_name, String abbrev)
+            throws PackageException
+    {
+        return new MemoryResolver(rsrc_name, abbrev);
+    }
+
+    @Override
+    public synchronized Set<String> listPackageDirectories()
+            throws PackageException
+    {
+        Set<String> dirs = new LinkedHashSet<>();
+        for ( PackageEntry e : myEntries ) {
+            dirs.add(e.getDir());
+        }
+        return dirs;
+    }
+
+    @Override
+    public synchronized List<PackageEntry> listPackageEntries()
+            throws PackageException
+    {
+        return new ArrayList<>(myEntries);
+    }
+
+    @Override
+    public void beforeInstall(boolean force, UserInteractionStrategy interact)
+            throws PackageException
+    {
+        // nothing
+    }
+
+    /**
+     * A temporary dir in the system temp dir, only used to download archives.
+     */
+    @Override
+    public Path makeTempDir(String prefix)
+            throws PackageException
+    {
+        try {
+            return Files.createTempDirectory("expath-pkg-" + prefix);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error creating a temporary dir", ex);
+        }
+    }
+
+    @Override
+    public boolean packageKeyExists(String key)
+            throws PackageException
+    {
+        return myContents.containsKey(key);
+    }
+
+    @Override
+    public boolean storesEntries()
+    {
+        return true;
+    }
+
+    @Override
+    public void storeInstallEntries(Map<String, byte[]> entries, String key, Package pkg)
+            throws PackageException
+    {
+        MemoryResolver resolver = getResolver(pkg);
+        myContents.put(key, new Content(entries, myDirect));
+        resolver.setResourceName(key);
+    }
+
+    /**
+     * Read the files of the dir in memory, and delete it.
+     */
+    @Override
+    public void storeInstallDir(Path dir, String key, Package pkg)
+            throws PackageException
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try ( Stream<Path> files = Files.walk(dir) ) {
+            for ( Path f : (Iterable<Path>) files::iterator ) {
+                if ( Files.isRegularFile(f) ) {
+                    entries.put(dir.relativize(f).toString().replace('\\', '/'), Files.readAllBytes(f));
+                }
+            }
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the package dir: " + dir, ex);
+        }
+        storeInstallEntries(entries, key, pkg);
+        FileHelper.deleteQuietly(dir);
+    }
+
+    @Override
+    public synchronized void updatePackageLists(Package pkg)
+            throws PackageException
+    {
+        String key = getResolver(pkg).getResourceName();
+        for ( int i = myEntries.size() - 1; i >= 0; --i ) {
+            PackageEntry e = myEntries.get(i);
+            boolean same = e.getDir().equals(key)
+                    || (e.getName().equals(pkg.getName()) && e.getVersion().equals(pkg.getVersion()));
+            if ( same ) {
+                myEntries.remove(i);
+            }
+        }
+        myEntries.add(new PackageEntry(key, pkg.getName(), pkg.getVersion()));
+    }
+
+    @Override
+    public synchronized void remove(Package pkg)
+            throws PackageException
+    {
+        String key = getResolver(pkg).getResourceName();
+        myEntries.removeIf(e -> e.getDir().equals(key));
+        myContents.remove(key);
+    }
+
+    /**
+     * Open a {@code memory:} system ID of this storage.
+     */
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        String[] key_name = EntryResolver.splitSystemId(sysid, getSystemIdBase());
+        if ( key_name == null || ! myContents.containsKey(key_name[0]) ) {
+            return null;
+        }
+        return new MemoryResolver(key_name[0], null).tryResolve(key_name[1]);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "In-memory storage " + myId;
+    }
+
+    /**
+     * The base of the system IDs of this storage.
+     */
+    private String getSystemIdBase()
+    {
+        return "memory:/" + myId + "/";
+    }
+
+    private MemoryResolver getResolver(Package pkg)
+            throws PackageException
+    {
+        Storage.PackageResolver resolver = pkg.getResolver();
+        if ( ! (resolver instanceof MemoryResolver) ) {
+            throw new PackageException("The package has not been installed in this storage.");
+        }
+        return (MemoryResolver) resolver;
+    }
+
+    /** The ID of this storage, in the system IDs. */
+    private final String myId;
+    /** Use direct buffers? */
+    private final boolean myDirect;
+    /** The content of the packages, by key. */
+    private final ConcurrentMap<String, Content> myContents = new ConcurrentHashMap<>();
+    /** The package list, in the order they were installed. */
+    @GuardedBy("this") private final List<PackageEntry> myEntries = new ArrayList<>();
+    /** To give each storage a distinct ID. */
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    /**
+     * The files of a package, one after the other in a single buffer.
+     */
+    private static final class Content
+    {
+        Content(Map<String, byte[]> entries, boolean direct)
+        {
+            int size = 0;
+            for ( byte[] bytes : entries.values() ) {
+                size += bytes.length;
+            }
+            ByteBuffer data = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            Map<String, long[]> index = new HashMap<>(entries.size() * 4 / 3 + 1);
+            for ( Map.Entry<String, byte[]> e : entries.entrySet() ) {
+                index.put(e.getKey(), new long[] { data.position(), e.getValue().length });
+                data.put(e.getValue());
+            }
+            data.flip();
+            myData = data.asReadOnlyBuffer();
+            myIndex = Collections.unmodifiableMap(index);
+        }
+
+        /**
+         * @return the content of a file, or null if there is no such file.
+         */
+        @Nullable
+        ByteBuffer get(String name)
+        {
+            long[] pos = myIndex.get(name);
+            if ( pos == null ) {
+                return null;
+            }
+            ByteBuffer buf = myData.duplicate();
+            buf.position((int) pos[0]);
+            buf.limit((int) (pos[0] + pos[1]));
+            return buf.slice();
+        }
+
+        /**
+         * @return true if there is a file within the dir (ending with a slash).
+         */
+        boolean hasDir(String dir)
+        {
+            for ( String name : myIndex.keySet() ) {
+                if ( name.startsWith(dir) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int size()
+        {
+            return myData.capacity();
+        }
+
+        private final ByteBuffer myData;
+        /** The offset and length of each file, by name. */
+        private final Map<String, long[]> myIndex;
+    }
+
+    /**
+     * Resolve resources and components within a package in memory.
+     */
+    public class MemoryResolver
+            extends EntryResolver
+    {
+        private MemoryResolver(String rsrc_name, String abbrev)
+        {
+            super(rsrc_name, abbrev);
+        }
+
+        /**
+         * A {@code memory:} URI, see {@link InMemoryStorage#resolveSystemId(String)}.
+         */
+        @Override
+        public URI getContentDirBaseURI()
+                throws PackageException
+        {
+            String content = getContentDir();
+            return getBaseURI().resolve(content == null ? "" : content);
+        }
+
+        @Override
+        @Nullable
+        protected StreamSource tryResolve(String name)
+                throws PackageException
+        {
+            ByteBuffer buf = getContent().get(name);
+            if ( buf == null ) {
+                return null;
+            }
+            StreamSource src = new StreamSource(new BufferInputStream(buf));
+            src.setSystemId(getBaseURI() + name);
+            return src;
+        }
+
+        @Override
+        protected boolean hasDir(String dir)
+                throws PackageException
+        {
+            return getContent().hasDir(dir);
+        }
+
+        @Override
+        protected String getLocation()
+        {
+            return getBaseURI().toString();
+        }
+
+        private URI getBaseURI()
+        {
+            return URI.create(getSystemIdBase() + getResourceName() + "/");
+        }
+
+        private Content getContent()
+                throws PackageException
+        {
+            Content c = myContents.get(getResourceName());
+            if ( c == null ) {
+                throw new PackageException("The package is not in the storage: " + getResourceName());
+            }
+            return c;
+        }
+    }
+}
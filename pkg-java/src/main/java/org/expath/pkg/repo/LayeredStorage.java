@@ -0,0 +1,270 @@
+package org.expath.pkg.repo;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.transform.Source;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Storage stacking a writable layer on top of a read-only base.
+ *
+ * The packages of both layers are visible, and all installs and removes go to
+ * the upper layer.  The base is never modified: it can be a {@link
+ * ClasspathStorage}, or a {@link FileSystemStorage} shared by several
+ * repositories (e.g. one per tenant), each with its own small upper layer.
+ * The same base storage object can be shared by all of them.  The disk used
+ * by each repository is then only its own packages (plus the index, see
+ * below).
+ *
+ * A package directory in the upper layer hides the one with the same name in
+ * the base, if any.  New packages never use the name of a directory in the
+ * base.  The packages of the base cannot be removed.
+ *
+ * If the upper layer supports the binary index, the index of the layered
+ * repository (with the packages of both layers) is kept in the private dir
+ * of the upper layer, in {@code layered.idx}, so it does not interfere with
+ * the index of the upper layer itself.
+ */
+@ThreadSafe
+public class LayeredStorage
+        extends Storage
+{
+    /**
+     * @param base the read-only base layer, never modified.
+     * @param upper the writable upper layer, where packages are installed.
+     */
+    public LayeredStorage(Storage base, Storage upper)
+    {
+        myBase = base;
+        myUpper = upper;
+    }
+
+    public Storage getBase()
+    {
+        return myBase;
+    }
+
+    public Storage getUpper()
+    {
+        return myUpper;
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return myUpper.isReadOnly();
+    }
+
+    /**
+     * The resolver of the layer containing the package.
+     *
+     * A null resource name is used for the package being installed, it is
+     * always in the upper layer.
+     */
+    @Override
+    public PackageResolver makePackageResolver(String rsrc_name, String abbrev)
+            throws PackageException
+    {
+        return layer(rsrc_name).makePackageResolver(rsrc_name, abbrev);
+    }
+
+    /**
+     * The directories of the base, then those of the upper layer.
+     */
+    @Override
+    public Set<String> listPackageDirectories()
+            throws PackageException
+    {
+        Set<String> dirs = new LinkedHashSet<>(refreshBase());
+        dirs.addAll(myUpper.listPackageDirectories());
+        return dirs;
+    }
+
+    /**
+     * The entries of the base, then those of the upper layer.
+     *
+     * Null if one of the layers does not support it.
+     */
+    @Override
+    public List<PackageEntry> listPackageEntries()
+            throws PackageException
+    {
+        List<PackageEntry> base = myBase.listPackageEntries();
+        List<PackageEntry> upper = myUpper.listPackageEntries();
+        if ( base == null || upper == null ) {
+            return null;
+        }
+        Set<String> base_dirs = new LinkedHashSet<>();
+        Set<String> upper_dirs = new LinkedHashSet<>();
+        for ( PackageEntry e : upper ) {
+            upper_dirs.add(e.getDir());
+        }
+        List<PackageEntry> entries = new ArrayList<>(base.size() + upper.size());
+        for ( PackageEntry e : base ) {
+            base_dirs.add(e.getDir());
+            if ( ! upper_dirs.contains(e.getDir()) ) {
+                entries.add(e);
+            }
+        }
+        entries.addAll(upper);
+        myBaseDirs = Collections.unmodifiableSet(base_dirs);
+        return entries;
+    }
+
+    @Override
+    public long getPackageStamp(String rsrc_name)
+            throws PackageException
+    {
+        return layer(rsrc_name).getPackageStamp(rsrc_name);
+    }
+
+    @Override
+    public Path getIndexFile()
+    {
+        Path upper = myUpper.getIndexFile();
+        return upper == null ? null : upper.resolveSibling("layered.idx");
+    }
+
+    @Override
+    public void beforeInstall(boolean force, UserInteractionStrategy interact)
+            throws PackageException
+    {
+        myUpper.beforeInstall(force, interact);
+    }
+
+    @Override
+    public Path makeTempDir(String prefix)
+            throws PackageException
+    {
+        return myUpper.makeTempDir(prefix);
+    }
+
+    /**
+     * True if the key exists in either layer, so a new package never hides one in the base.
+     */
+    @Override
+    public boolean packageKeyExists(String key)
+            throws PackageException
+    {
+        return myUpper.packageKeyExists(key) || baseDirs().contains(key);
+    }
+
+    @Override
+    public void storeInstallDir(Path dir, String key, Package pkg)
+            throws PackageException
+    {
+        myUpper.storeInstallDir(dir, key, pkg);
+    }
+
+    @Override
+    public boolean storesArchives()
+    {
+        return myUpper.storesArchives();
+    }
+
+    @Override
+    public void storeInstallArchive(Path xar, String key, Package pkg)
+            throws PackageException
+    {
+        myUpper.storeInstallArchive(xar, key, pkg);
+    }
+
+    @Override
+    public boolean storesEntries()
+    {
+        return myUpper.storesEntries();
+    }
+
+    @Override
+    public void storeInstallEntries(Map<String, byte[]> entries, String key, Package pkg)
+            throws PackageException
+    {
+        myUpper.storeInstallEntries(entries, key, pkg);
+    }
+
+    @Override
+    public void updatePackageLists(Package pkg)
+            throws PackageException
+    {
+        myUpper.updatePackageLists(pkg);
+    }
+
+    @Override
+    public void updatePackageLists(Collection<Package> pkgs)
+            throws PackageException
+    {
+        myUpper.updatePackageLists(pkgs);
+    }
+
+    /**
+     * Remove a package from the upper layer, the packages of the base cannot be removed.
+     */
+    @Override
+    public void remove(Package pkg)
+            throws PackageException
+    {
+        String dir = pkg.getResolver().getResourceName();
+        if ( layer(dir) != myUpper ) {
+            throw new PackageException("The package is in the read-only base layer: " + pkg.getName()
+                    + ", version " + pkg.getVersion() + ", in " + myBase);
+        }
+        myUpper.remove(pkg);
+    }
+
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        Source src = myUpper.resolveSystemId(sysid);
+        return src != null ? src : myBase.resolveSystemId(sysid);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Layered storage, " + myUpper + ", on top of " + myBase;
+    }
+
+    /**
+     * The layer containing a package directory, the upper layer if it is in both.
+     */
+    private Storage layer(String rsrc_name)
+            throws PackageException
+    {
+        if ( rsrc_name == null || myUpper.packageKeyExists(rsrc_name) ) {
+            return myUpper;
+        }
+        return baseDirs().contains(rsrc_name) ? myBase : myUpper;
+    }
+
+    /**
+     * The directories of the base, cached (they only change when the base is reloaded).
+     */
+    private Set<String> baseDirs()
+            throws PackageException
+    {
+        Set<String> dirs = myBaseDirs;
+        return dirs == null ? refreshBase() : dirs;
+    }
+
+    private Set<String> refreshBase()
+            throws PackageException
+    {
+        Set<String> dirs = Collections.unmodifiableSet(new LinkedHashSet<>(myBase.listPackageDirectories()));
+        myBaseDirs = dirs;
+        return dirs;
+    }
+
+    /** The read-only base layer. */
+    private final Storage myBase;
+    /** The writable upper layer. */
+    private final Storage myUpper;
+    /** The directories in the base, refreshed each time the package lists are read. */
+    private volatile Set<String> myBaseDirs = null;
+}
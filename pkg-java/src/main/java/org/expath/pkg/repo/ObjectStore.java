@@ -0,0 +1,293 @@
+package org.expath.pkg.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content-addressed store of files, in [repo]/.expath-pkg/objects.
+ *
+ * Each distinct file content is stored once, named after its SHA-256 (as in
+ * {@code objects/ab/cdef...}).  The files of the package directories are hard
+ * links to the objects, so the versions of a package sharing most of their
+ * files take the space of one.  The installed files must then never be
+ * modified in place, as that would modify them in all the packages.
+ *
+ * An object is not referenced anymore when it has no other link than the one
+ * in the store (see {@link #gc()}).  Whether the file system supports hard
+ * links is probed once, in the store.  If it does not, the files are kept as
+ * they are, and the store stays empty.
+ */
+@ThreadSafe
+class ObjectStore
+{
+    ObjectStore(Path dir)
+    {
+        myDir = dir;
+    }
+
+    /**
+     * Replace the files of a directory by links to the objects with the same content.
+     *
+     * The directory must be on the same file system as the store (e.g. a
+     * temporary dir in the private area, or a package dir.)  The digests
+     * recorded at extraction are used if any (see {@link Checksums}), instead
+     * of reading the files again.
+     *
+     * @param dir the directory
+     *
+     * @return the number of files which were already in the store.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public int link(Path dir)
+            throws PackageException
+    {
+        if ( ! isSupported() ) {
+            return 0;
+        }
+        Map<String, String> known;
+        try {
+            known = Checksums.read(dir);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the checksums of: " + dir, ex);
+        }
+        List<Path> files = new ArrayList<>();
+        try ( Stream<Path> walk = Files.walk(dir) ) {
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error listing the files of: " + dir, ex);
+        }
+        int shared = 0;
+        for ( Path f : files ) {
+            String hash = known == null ? null : known.get(dir.relativize(f).toString().replace('\\', '/'));
+            try {
+                if ( linkFile(f, hash == null ? digest(f) : hash) ) {
+                    ++shared;
+                }
+            }
+            catch ( IOException ex ) {
+                throw new PackageException("Error storing the file: " + f, ex);
+            }
+        }
+        LOG.debug("Linked {} file(s) to the store, {} already there: {}", files.size(), shared, dir);
+        return shared;
+    }
+
+    /**
+     * Delete the objects not referenced anymore by any package.
+     *
+     * @return the number of objects deleted.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public int gc()
+            throws PackageException
+    {
+        if ( ! Files.exists(myDir) ) {
+            return 0;
+        }
+        int count = 0;
+        try ( DirectoryStream<Path> buckets = Files.newDirectoryStream(myDir) ) {
+            for ( Path bucket : buckets ) {
+                if ( ! Files.isDirectory(bucket) ) {
+                    // e.g. the probe file of a concurrent link()
+                    continue;
+                }
+                boolean empty = true;
+                try ( DirectoryStream<Path> objects = Files.newDirectoryStream(bucket) ) {
+                    for ( Path obj : objects ) {
+                        if ( linkCount(obj) <= 1 ) {
+                            Files.deleteIfExists(obj);
+                            ++count;
+                        }
+                        else {
+                            empty = false;
+                        }
+                    }
+                }
+                if ( empty ) {
+                    Files.deleteIfExists(bucket);
+                }
+            }
+        }
+        catch ( UnsupportedOperationException ex ) {
+            LOG.info("Link counts not supported, objects not collected: {}", myDir);
+            return count;
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error collecting the objects in: " + myDir, ex);
+        }
+        LOG.debug("Deleted {} unreferenced object(s): {}", count, myDir);
+        return count;
+    }
+
+    /**
+     * Whether the file system of the store supports hard links, probed the first time.
+     */
+    private synchronized boolean isSupported()
+            throws PackageException
+    {
+        if ( mySupported != null ) {
+            return mySupported;
+        }
+        Path probe = null;
+        Path link = null;
+        try {
+            Files.createDirectories(myDir);
+            probe = Files.createTempFile(myDir, "probe-", ".tmp");
+            link = probe.resolveSibling(probe.getFileName() + ".link");
+            Files.createLink(link, probe);
+            mySupported = true;
+        }
+        catch ( UnsupportedOperationException ex ) {
+            LOG.info("Hard links not supported, files not deduplicated: {} ({})", myDir, ex.toString());
+            mySupported = false;
+        }
+        catch ( AccessDeniedException | NoSuchFileException ex ) {
+            throw new PackageException("Error probing the hard links in: " + myDir, ex);
+        }
+        catch ( FileSystemException ex ) {
+            // any other error from the file system itself (e.g. EPERM or ENOTSUP)
+            LOG.info("Hard links not supported, files not deduplicated: {} ({})", myDir, ex.toString());
+            mySupported = false;
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error probing the hard links in: " + myDir, ex);
+        }
+        finally {
+            deleteQuietly(link);
+            deleteQuietly(probe);
+        }
+        return mySupported;
+    }
+
+    private static void deleteQuietly(Path file)
+    {
+        if ( file == null ) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch ( IOException ex ) {
+            LOG.debug("Cannot delete the probe file: " + file, ex);
+        }
+    }
+
+    /**
+     * Link a file to its object, retrying if the object is collected in the meantime.
+     *
+     * @return true if the file was already in the store.
+     */
+    private boolean linkFile(Path file, String hash)
+            throws IOException
+    {
+        for ( int attempt = 1; ; ++attempt ) {
+            try {
+                return tryLinkFile(file, hash);
+            }
+            catch ( NoSuchFileException ex ) {
+                // the object or its bucket deleted by a concurrent gc(), store it again
+                if ( attempt == MAX_ATTEMPTS ) {
+                    throw ex;
+                }
+                LOG.debug("Object collected while linking, retry: {} ({})", file, ex.toString());
+            }
+        }
+    }
+
+    private boolean tryLinkFile(Path file, String hash)
+            throws IOException
+    {
+        Path bucket = myDir.resolve(hash.substring(0, 2));
+        Path obj = bucket.resolve(hash.substring(2));
+        Files.createDirectories(bucket);
+        try {
+            Files.createLink(obj, file);
+            return false;
+        }
+        catch ( FileAlreadyExistsException ex ) {
+            // already stored, replace the file by a link to it
+        }
+        if ( Files.isSameFile(obj, file) ) {
+            return true;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".link");
+        Files.deleteIfExists(tmp);
+        Files.createLink(tmp, obj);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    private static int linkCount(Path obj)
+            throws IOException
+    {
+        return (Integer) Files.getAttribute(obj, "unix:nlink");
+    }
+
+    /**
+     * The SHA-256 of a file, in lower-case hexadecimal.
+     */
+    static String digest(Path file)
+            throws IOException
+    {
+        MessageDigest md = newDigest();
+        byte[] buf = new byte[8192];
+        try ( InputStream in = Files.newInputStream(file) ) {
+            int n;
+            while ( (n = in.read(buf)) >= 0 ) {
+                md.update(buf, 0, n);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch ( NoSuchAlgorithmException ex ) {
+            throw new IllegalStateException("SHA-256 is not supported", ex);
+        }
+    }
+
+    static String toHex(byte[] bytes)
+    {
+        StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for ( byte b : bytes ) {
+            buf.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return buf.toString();
+    }
+
+    /** The objects directory. */
+    private final Path myDir;
+    /** Whether the file system supports hard links, null until probed. */
+    @GuardedBy("this") private Boolean mySupported = null;
+    /** The number of times a file is linked, if its object is collected meanwhile. */
+    private static final int MAX_ATTEMPTS = 3;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ObjectStore.class);
+}
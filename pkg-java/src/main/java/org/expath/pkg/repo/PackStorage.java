@@ -0,0 +1,525 @@
+package org.expath.pkg.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only storage serving a whole repository from a single pack file.
+ *
+ * A pack file is created from a repository on the file system with {@link
+ * #pack(FileSystemStorage, Path, boolean)} (or {@code xrepo pack}), and can
+ * be turned back into one with {@link #unpack(Path, Path)}.  It starts with a
+ * header indexing the packages and their files, followed by the content of
+ * the files, each one optionally compressed (deflate), and stored once if
+ * several files have the same content.
+ *
+ * The file is mapped in memory when the storage is created, and all the
+ * resources are read from the mapping, so a deployment is one file copy,
+ * and several JVMs using the same pack file share the pages of the system
+ * cache.  The mapping is released when the storage is garbage collected.
+ * The pack file must not be modified while in use, replace it with a new
+ * file instead (e.g. by an atomic move).
+ *
+ * The system IDs of the sources are {@code [pack file URI]!/[dir]/[path]}.
+ * They cannot be opened as URLs, so the relative references within a package
+ * are resolved against them, then opened through the repository (see {@link
+ * #resolveSystemId(String)}), as the resolvers of the package {@code
+ * resolver} do.
+ */
+@ThreadSafe
+public class PackStorage
+        extends Storage
+{
+    public PackStorage(Path pack)
+            throws PackageException
+    {
+        myPack = pack;
+        try ( FileChannel channel = FileChannel.open(pack, StandardOpenOption.READ) ) {
+            long size = channel.size();
+            if ( size > Integer.MAX_VALUE ) {
+                throw new PackageException("Pack file too large to be mapped: " + pack);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            DataInputStream in = new DataInputStream(new BufferInputStream(map.duplicate()));
+            if ( in.readInt() != MAGIC ) {
+                throw new PackageException("Not a pack file: " + pack);
+            }
+            int format = in.readInt();
+            if ( format != FORMAT ) {
+                throw new PackageException("Unsupported pack format " + format + ": " + pack);
+            }
+            int header = in.readInt();
+            int count = in.readInt();
+            Map<String, Content> packages = new LinkedHashMap<>();
+            List<PackageEntry> entries = new ArrayList<>(count);
+            for ( int i = 0; i < count; ++i ) {
+                PackageEntry e = new PackageEntry(in.readUTF(), in.readUTF(), in.readUTF());
+                int files = in.readInt();
+                Map<String, Blob> blobs = new HashMap<>(files * 4 / 3 + 1);
+                for ( int j = 0; j < files; ++j ) {
+                    blobs.put(in.readUTF(), new Blob(in.readLong(), in.readInt(), in.readBoolean()));
+                }
+                entries.add(e);
+                packages.put(e.getDir(), new Content(blobs));
+            }
+            map.position(HEADER_START + header);
+            myData = map.slice().asReadOnlyBuffer();
+            myPackages = Collections.unmodifiableMap(packages);
+            myEntries = Collections.unmodifiableList(entries);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the pack file: " + pack, ex);
+        }
+        myBaseURI = pack.toAbsolutePath().toUri().toString() + "!/";
+    }
+
+    /**
+     * Write the packages of a repository in a pack file.
+     *
+     * The pack file is written to a temporary file next to it, then moved in
+     * place, so a storage can be created on the new file while the previous
+     * one is still used.
+     *
+     * @param source the repository to pack
+     * @param pack the pack file to create, replaced if it exists
+     * @param compress whether to compress the files (only when it makes them smaller)
+     *
+     * @throws PackageException if an error occurs
+     */
+    public static void pack(FileSystemStorage source, Path pack, boolean compress)
+            throws PackageException
+    {
+        Path root = source.getRootDirectory();
+        List<PackageEntry> entries = source.listPackageEntries();
+        Path parent = pack.toAbsolutePath().getParent();
+        Path data = null;
+        Path tmp = null;
+        try {
+            data = Files.createTempFile(parent, "pack-", ".data");
+            // not created by createTempFile, to get the default permissions, as the
+            // pack is usually shared, but a unique name for concurrent writers
+            tmp = parent.resolve(pack.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(header);
+            out.writeInt(entries.size());
+            // the files with the same content are stored once
+            Map<String, Blob> written = new HashMap<>();
+            long offset = 0;
+            try ( OutputStream blobs = Files.newOutputStream(data) ) {
+                for ( PackageEntry e : entries ) {
+                    Path dir = root.resolve(e.getDir());
+                    Map<String, Path> files = listFiles(dir);
+                    out.writeUTF(e.getDir());
+                    out.writeUTF(e.getName());
+                    out.writeUTF(e.getVersion());
+                    out.writeInt(files.size());
+                    for ( Map.Entry<String, Path> f : files.entrySet() ) {
+                        byte[] bytes = Files.readAllBytes(f.getValue());
+                        String digest = ObjectStore.toHex(ObjectStore.newDigest().digest(bytes));
+                        Blob blob = written.get(digest);
+                        if ( blob == null ) {
+                            byte[] deflated = compress ? deflate(bytes) : null;
+                            boolean use = deflated != null && deflated.length < bytes.length;
+                            byte[] stored = use ? deflated : bytes;
+                            blobs.write(stored);
+                            blob = new Blob(offset, stored.length, use);
+                            written.put(digest, blob);
+                            offset += stored.length;
+                        }
+                        out.writeUTF(f.getKey());
+                        out.writeLong(blob.offset);
+                        out.writeInt(blob.length);
+                        out.writeBoolean(blob.deflated);
+                    }
+                }
+            }
+            out.flush();
+            try ( OutputStream file = Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) ) {
+                DataOutputStream head = new DataOutputStream(file);
+                head.writeInt(MAGIC);
+                head.writeInt(FORMAT);
+                head.writeInt(header.size());
+                header.writeTo(head);
+                head.flush();
+                Files.copy(data, file);
+            }
+            try {
+                Files.move(tmp, pack, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch ( AtomicMoveNotSupportedException ex ) {
+                Files.move(tmp, pack, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOG.info("Packed {} packages in {} ({} bytes of content)", entries.size(), pack, offset);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error writing the pack file: " + pack, ex);
+        }
+        finally {
+            deleteIfExists(data);
+            deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Write the packages of a pack file in a repository on the file system.
+     *
+     * The repository is created if it does not exist.  It must not contain any
+     * package yet.
+     *
+     * @param pack the pack file
+     * @param repo the repository directory
+     *
+     * @return the storage of the new repository.
+     *
+     * @throws PackageException if an error occurs, or if the repository is not empty
+     */
+    public static FileSystemStorage unpack(Path pack, Path repo)
+            throws PackageException
+    {
+        PackStorage source = new PackStorage(pack);
+        FileHelper.ensureDir(repo);
+        FileSystemStorage dest = new FileSystemStorage(repo);
+        if ( ! dest.listPackageEntries().isEmpty() ) {
+            throw new PackageException("The repository is not empty: " + repo);
+        }
+        try {
+            for ( PackageEntry e : source.myEntries ) {
+                Path dir = repo.resolve(e.getDir());
+                Content content = source.myPackages.get(e.getDir());
+                for ( String name : content.names() ) {
+                    Path f = dir.resolve(name);
+                    Files.createDirectories(f.getParent());
+                    try ( InputStream in = source.open(content.blob(name)) ) {
+                        Files.copy(in, f);
+                    }
+                }
+            }
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error unpacking " + pack + " to " + repo, ex);
+        }
+        dest.setPackageEntries(source.myEntries);
+        return dest;
+    }
+
+    /**
+     * @return the number of packages in the pack.
+     */
+    public int size()
+    {
+        return myEntries.size();
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return true;
+    }
+
+    @Override
+    public PackageResolver makePackageResolver(String rsrc_name, String abbrev)
+            throws PackageException
+    {
+        Content content = myPackages.get(rsrc_name);
+        if ( content == null ) {
+            throw new PackageException("The package is not in the pack: " + rsrc_name + ", in " + myPack);
+        }
+        return new PackResolver(rsrc_name, abbrev, content);
+    }
+
+    @Override
+    public Set<String> listPackageDirectories()
+            throws PackageException
+    {
+        return new LinkedHashSet<>(myPackages.keySet());
+    }
+
+    @Override
+    public List<PackageEntry> listPackageEntries()
+            throws PackageException
+    {
+        return new ArrayList<>(myEntries);
+    }
+
+    @Override
+    public void beforeInstall(boolean force, UserInteractionStrategy interact)
+            throws PackageException
+    {
+        throw new UnsupportedOperationException("Pack storage is read only.");
+    }
+
+    @Override
+    public Path makeTempDir(String prefix)
+            throws PackageException
+    {
+        throw new UnsupportedOperationException("Pack storage is read only.");
+    }
+
+    @Override
+    public boolean packageKeyExists(String key)
+            throws PackageException
+    {
+        return myPackages.containsKey(key);
+    }
+
+    @Override
+    public void storeInstallDir(Path dir, String key, Package pkg)
+            throws PackageException
+    {
+        throw new UnsupportedOperationException("Pack storage is read only.");
+    }
+
+    @Override
+    public void updatePackageLists(Package pkg)
+            throws PackageException
+    {
+        throw new UnsupportedOperationException("Pack storage is read only.");
+    }
+
+    @Override
+    public void remove(Package pkg)
+            throws PackageException
+    {
+        throw new UnsupportedOperationException("Pack storage is read only.");
+    }
+
+    /**
+     * Open a system ID within the pack file.
+     */
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        String[] dir_name = EntryResolver.splitSystemId(sysid, myBaseURI);
+        if ( dir_name == null ) {
+            return null;
+        }
+        Content content = myPackages.get(dir_name[0]);
+        if ( content == null ) {
+            return null;
+        }
+        return new PackResolver(dir_name[0], null, content).tryResolve(dir_name[1]);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Pack storage in " + myPack.toAbsolutePath();
+    }
+
+    /**
+     * Read a file of the pack, straight from the mapping.
+     */
+    private InputStream open(Blob blob)
+    {
+        ByteBuffer buf = myData.duplicate();
+        buf.position((int) blob.offset);
+        buf.limit((int) blob.offset + blob.length);
+        InputStream in = new BufferInputStream(buf.slice());
+        return blob.deflated ? new InflaterInputStream(in) : in;
+    }
+
+    /**
+     * The regular files of a dir, recursively, by relative path (with slashes), sorted.
+     */
+    private static Map<String, Path> listFiles(Path dir)
+            throws IOException
+    {
+        Map<String, Path> files = new TreeMap<>();
+        try ( Stream<Path> all = Files.walk(dir) ) {
+            for ( Path f : (Iterable<Path>) all::iterator ) {
+                if ( Files.isRegularFile(f) ) {
+                    files.put(dir.relativize(f).toString().replace('\\', '/'), f);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static byte[] deflate(byte[] bytes)
+            throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try ( DeflaterOutputStream out = new DeflaterOutputStream(buf, deflater) ) {
+            out.write(bytes);
+        }
+        finally {
+            deflater.end();
+        }
+        return buf.toByteArray();
+    }
+
+    private static void deleteIfExists(@Nullable Path file)
+    {
+        if ( file != null ) {
+            try {
+                Files.deleteIfExists(file);
+            }
+            catch ( IOException ex ) {
+                LOG.debug("Cannot delete temporary file: " + file, ex);
+            }
+        }
+    }
+
+    /** The pack file. */
+    private final Path myPack;
+    /** The base of the system IDs. */
+    private final String myBaseURI;
+    /** The content of the files, after the header (read-only, shared by all readers). */
+    private final ByteBuffer myData;
+    /** The files of each package, by dir. */
+    private final Map<String, Content> myPackages;
+    /** The packages, in the pack order. */
+    private final List<PackageEntry> myEntries;
+    /** "XPKP" */
+    private static final int MAGIC = 0x58504B50;
+    /** To change each time the format changes. */
+    private static final int FORMAT = 1;
+    /** The size of the magic number, the format and the header length. */
+    private static final int HEADER_START = 12;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PackStorage.class);
+
+    /**
+     * A file in the pack.
+     */
+    private static final class Blob
+    {
+        Blob(long offset, int length, boolean deflated)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.deflated = deflated;
+        }
+
+        /** The offset in the content section. */
+        final long offset;
+        /** The length in the pack (compressed if deflated). */
+        final int length;
+        final boolean deflated;
+    }
+
+    /**
+     * The files of a package.
+     */
+    private static final class Content
+    {
+        Content(Map<String, Blob> blobs)
+        {
+            myBlobs = blobs;
+        }
+
+        @Nullable
+        Blob blob(String name)
+        {
+            return myBlobs.get(name);
+        }
+
+        Set<String> names()
+        {
+            return myBlobs.keySet();
+        }
+
+        /**
+         * @return true if there is a file within the dir (ending with a slash).
+         */
+        boolean hasDir(String dir)
+        {
+            for ( String name : myBlobs.keySet() ) {
+                if ( name.startsWith(dir) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private final Map<String, Blob> myBlobs;
+    }
+
+    /**
+     * Resolve resources and components within a package of the pack.
+     */
+    public class PackResolver
+            extends EntryResolver
+    {
+        private PackResolver(String rsrc_name, String abbrev, Content content)
+        {
+            super(rsrc_name, abbrev);
+            myContent = content;
+        }
+
+        @Override
+        public URI getContentDirBaseURI()
+                throws PackageException
+        {
+            String content = getContentDir();
+            return URI.create(getBaseURI() + (content == null ? "" : content));
+        }
+
+        @Override
+        @Nullable
+        protected StreamSource tryResolve(String name)
+        {
+            Blob blob = myContent.blob(name);
+            if ( blob == null ) {
+                return null;
+            }
+            StreamSource src = new StreamSource(open(blob));
+            src.setSystemId(getBaseURI() + name);
+            return src;
+        }
+
+        @Override
+        protected boolean hasDir(String dir)
+        {
+            return myContent.hasDir(dir);
+        }
+
+        @Override
+        protected String getLocation()
+        {
+            return getBaseURI();
+        }
+
+        private String getBaseURI()
+        {
+            return myBaseURI + getResourceName() + "/";
+        }
+
+        private final Content myContent;
+    }
+}
@@ -17,15 +17,25 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import javax.xml.transform.Source;
 
 /**
  * Represent a particular package, with a particular version.
  *
+ * A package can be created as a placeholder, with only its name, version and
+ * directory (as recorded in the repository descriptor), when the repository
+ * loads packages lazily.  Its package descriptor (and the extension
+ * descriptors) are then parsed the first time anything else is accessed.  If
+ * that fails, the accessors throw a {@link LoadException}, and resolving
+ * throws a {@link PackageException}.
+ *
  * @author Florent Georges
  */
 public class Package
@@ -42,6 +52,171 @@ public class Package
         myHome = home;
         myInfos = new HashMap<String, PackageInfo>();
         myPublicUris = new EnumMap<URISpace, Map<String, String>>(URISpace.class);
+        myRsrcName = null;
+        myIndexEntry = null;
+        myLoaded = true;
+    }
+
+    /**
+     * Create a placeholder, the package descriptor will be parsed when needed.
+     *
+     * @param repo the repository, used to parse the package descriptor
+     * @param rsrc_name the resource name of the package (its directory)
+     * @param name the package name
+     * @param version the package version
+     */
+    Package(Repository repo, String rsrc_name, String name, String version)
+    {
+        this(repo, rsrc_name, name, version, null);
+    }
+
+    /**
+     * Create a placeholder, to be loaded from the repository index if possible.
+     *
+     * @param repo the repository, used to load the package
+     * @param rsrc_name the resource name of the package (its directory)
+     * @param name the package name
+     * @param version the package version
+     * @param entry the entry of the package in the repository index, or null
+     */
+    Package(Repository repo, String rsrc_name, String name, String version, PackagesIndexFile.Entry entry)
+    {
+        myRepo = repo;
+        myName = name;
+        myVersion = version;
+        myInfos = new HashMap<String, PackageInfo>();
+        myPublicUris = new EnumMap<URISpace, Map<String, String>>(URISpace.class);
+        myRsrcName = rsrc_name;
+        myIndexEntry = entry;
+        myStamp = entry == null ? Storage.UNKNOWN_STAMP : entry.getStamp();
+        myLoaded = false;
+    }
+
+    /**
+     * Whether the package descriptor has been parsed.
+     *
+     * Always true, except for a placeholder not accessed yet.
+     */
+    boolean isLoaded()
+    {
+        return myLoaded;
+    }
+
+    /**
+     * The resource name of a placeholder, null if not created as a placeholder.
+     */
+    String getPlaceholderResourceName()
+    {
+        return myRsrcName;
+    }
+
+    /**
+     * The entry in the repository index of a placeholder, null if none.
+     */
+    PackagesIndexFile.Entry getIndexEntry()
+    {
+        return myIndexEntry;
+    }
+
+    /**
+     * The stamp of the package descriptors, as when they were parsed.
+     *
+     * See {@link Storage#getPackageStamp(String)}, used to know whether the
+     * package changed when reloading the repository.
+     */
+    long getStamp()
+    {
+        return myStamp;
+    }
+
+    void setStamp(long stamp)
+    {
+        myStamp = stamp;
+    }
+
+    /**
+     * The error raised when loading a placeholder, null if none (or not loaded yet).
+     */
+    PackageException getLoadError()
+    {
+        return myLoadError;
+    }
+
+    /**
+     * Take the content of a package freshly parsed, to fill in a placeholder.
+     *
+     * The infos are not copied, extensions are initialized on the placeholder
+     * itself instead.
+     *
+     * @param parsed the package object parsed from the package descriptor
+     */
+    void loadFrom(Package parsed)
+    {
+        myResolver = parsed.myResolver;
+        myAbbrev = parsed.myAbbrev;
+        myTitle = parsed.myTitle;
+        myHome = parsed.myHome;
+        myPkgDeps = parsed.myPkgDeps;
+        myProcDeps = parsed.myProcDeps;
+        myPublicUris = parsed.myPublicUris;
+    }
+
+    /**
+     * Parse the package descriptor of a placeholder if not done yet, for the accessors.
+     *
+     * @throws LoadException if the package could not be loaded
+     */
+    private void ensureLoaded()
+    {
+        load();
+        if ( myLoadError != null ) {
+            throw new LoadException(this, myLoadError);
+        }
+    }
+
+    /**
+     * Parse the package descriptor of a placeholder if not done yet, for the methods throwing checked exceptions.
+     *
+     * @throws PackageException if the package could not be loaded
+     */
+    private void checkLoaded()
+            throws PackageException
+    {
+        load();
+        if ( myLoadError != null ) {
+            throw new PackageException("Error loading the package " + myName + " (" + myVersion + ")", myLoadError);
+        }
+    }
+
+    /**
+     * Parse the package descriptor of a placeholder, if not done yet.
+     *
+     * Thread-safe, the descriptor is parsed only once, and an error is kept
+     * to be thrown by each access.  Re-entrant calls made by the extensions,
+     * while initializing the package, return immediately.
+     */
+    private void load()
+    {
+        if ( myLoaded ) {
+            return;
+        }
+        synchronized ( this ) {
+            if ( myLoaded || myLoading ) {
+                return;
+            }
+            myLoading = true;
+            try {
+                myRepo.loadPlaceholder(this);
+            }
+            catch ( PackageException ex ) {
+                LOG.error("Error loading the package " + myName + " (" + myVersion + ")", ex);
+                myLoadError = ex;
+            }
+            finally {
+                myLoading = false;
+                myLoaded = true;
+            }
+        }
     }
 
     /**
@@ -54,6 +229,7 @@ public class Package
     public void addPublicUri(URISpace space, String href, String relative)
             throws PackageException
     {
+        ensureLoaded();
         LOG.debug("Package '{}', add URI in {}: '{}', to map to '({})'", myName, space, href, relative);
         Map<String, String> map = myPublicUris.get(space);
         if ( map == null ) {
@@ -124,41 +300,226 @@ public class Package
             throws PackageException
     {
         LOG.debug("Package '{}', resolve in {}: '{}' ({})", myName, space, href, transitive);
-        Source src = resolveInThisPackage(href, space);
-        if ( src != null ) {
-            return src;
+        if ( ! transitive ) {
+            return resolveLocally(href, space);
         }
-        if ( transitive ) {
-            for ( PkgDependency dep : myPkgDeps ) {
-                Package depended = resolveDependency(dep);
-                // if the dependency is not found, just ignore it
-                // TODO: Create an option to treat it as error/warning/nothing...
-                if ( depended != null ) {
-                    src = depended.resolve(href, space, transitive);
-                }
-                if ( src != null ) {
-                    return src;
-                }
+        return resolve(href, space, currentSnapshot());
+    }
+
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        return myRepo == null ? null : myRepo.resolveSystemId(sysid);
+    }
+
+    /**
+     * Resolve the href in this package and its dependencies, as found in a snapshot.
+     *
+     * All the lookups of one resolve use the same snapshot, even if packages
+     * are installed or removed in the meantime.
+     *
+     * @param href the URI
+     * @param space the URI space
+     * @param snapshot the repository snapshot to look the dependencies into
+     *
+     * @return the source, or null if not found
+     *
+     * @throws PackageException if an error occurs
+     */
+    Source resolve(String href, URISpace space, RepositorySnapshot snapshot)
+            throws PackageException
+    {
+        if ( isNotInRepo(href, space, snapshot) ) {
+            return null;
+        }
+        if ( myRepo != null && myRepo.isFlatUriTables() && ! getPackageDeps().isEmpty() ) {
+            return getUriTable(snapshot).resolve(href, space);
+        }
+        // this package first, then its dependencies, depth-first
+        for ( Package p : getClosure(snapshot) ) {
+            Source src = p.resolveLocally(href, space);
+            if ( src != null ) {
+                return src;
             }
         }
         return null;
     }
 
+    /**
+     * Whether the repository URI filter says the href is for sure not in the repository.
+     *
+     * Then it is not in the closure of this package either.  Only if the
+     * filter has already been built (not to load all the packages in lazy
+     * mode), and if this package is in the URI index of the snapshot (or the
+     * filter does not contain its URIs, nor those of its dependencies).
+     */
+    private boolean isNotInRepo(String href, URISpace space, RepositorySnapshot snapshot)
+    {
+        if ( snapshot == null ) {
+            return false;
+        }
+        UriFilter filter = snapshot.peekUriFilter();
+        return filter != null && snapshot.isIndexed(this) && ! filter.mightContain(href, space);
+    }
+
+    /**
+     * Resolve the href in this package only, after loading it if needed.
+     */
+    private Source resolveLocally(String href, URISpace space)
+            throws PackageException
+    {
+        checkLoaded();
+        return resolveInThisPackage(href, space);
+    }
+
+    /**
+     * The packages to look into when resolving transitively, in order.
+     *
+     * That is, this package and all its dependencies, depth-first, each one
+     * once.  Computed once per snapshot of the repository, so it is computed
+     * again only if packages are installed or removed.
+     *
+     * @return the transitive closure of this package, itself first
+     *
+     * @throws PackageException if an error occurs
+     */
+    List<Package> getClosure()
+            throws PackageException
+    {
+        return getClosure(currentSnapshot());
+    }
+
+    /**
+     * The packages to look into when resolving transitively, as found in a snapshot.
+     *
+     * @param snapshot the repository snapshot to look the dependencies into
+     *
+     * @return the transitive closure of this package, itself first
+     *
+     * @throws PackageException if an error occurs
+     */
+    List<Package> getClosure(RepositorySnapshot snapshot)
+            throws PackageException
+    {
+        checkLoaded();
+        if ( myPkgDeps.isEmpty() ) {
+            return Collections.singletonList(this);
+        }
+        return getResolvedClosure(snapshot).packages;
+    }
+
+    /**
+     * The URI table of the transitive closure, for a single lookup per resolve.
+     *
+     * Built from {@link #getClosure()} the first time it is needed for a
+     * snapshot, so it is built again after a package is installed or removed.
+     * See {@link Repository#setFlatUriTables(boolean)}.
+     */
+    UriIndex getUriTable()
+            throws PackageException
+    {
+        return getUriTable(currentSnapshot());
+    }
+
+    private UriIndex getUriTable(RepositorySnapshot snapshot)
+            throws PackageException
+    {
+        Resolved closure = getResolvedClosure(snapshot);
+        UriIndex table = closure.table;
+        if ( table == null ) {
+            // building it twice concurrently is harmless
+            table = new UriIndex(closure.packages);
+            closure.table = table;
+        }
+        return table;
+    }
+
+    private Resolved getResolvedClosure(RepositorySnapshot snapshot)
+            throws PackageException
+    {
+        Resolved closure = myClosure;
+        if ( closure == null || closure.snapshot != snapshot ) {
+            List<Package> packages = new ArrayList<Package>();
+            Set<Package> seen = Collections.newSetFromMap(new IdentityHashMap<Package, Boolean>());
+            addToClosure(this, snapshot, packages, seen);
+            closure = new Resolved(snapshot, Collections.unmodifiableList(packages));
+            myClosure = closure;
+        }
+        return closure;
+    }
+
+    /**
+     * The current snapshot of the repository of this package, if any.
+     */
+    private RepositorySnapshot currentSnapshot()
+    {
+        return myRepo == null ? null : myRepo.snapshot();
+    }
+
+    private static void addToClosure(Package pkg, RepositorySnapshot snapshot, List<Package> packages, Set<Package> seen)
+            throws PackageException
+    {
+        // a package already there has been explored, and cycles are cut
+        if ( ! seen.add(pkg) ) {
+            return;
+        }
+        packages.add(pkg);
+        for ( Package dep : pkg.getResolvedDependencies(snapshot) ) {
+            addToClosure(dep, snapshot, packages, seen);
+        }
+    }
+
+    /**
+     * The packages this package depends on, in the order of the dependencies.
+     *
+     * Computed once per snapshot of the repository.  The dependencies not
+     * found in the repository are left out.
+     *
+     * @param snapshot the repository snapshot to look the dependencies into
+     *
+     * @return the resolved dependencies
+     *
+     * @throws PackageException if an error occurs
+     */
+    List<Package> getResolvedDependencies(RepositorySnapshot snapshot)
+            throws PackageException
+    {
+        Resolved deps = myDependencies;
+        if ( deps != null && deps.snapshot == snapshot ) {
+            return deps.packages;
+        }
+        checkLoaded();
+        List<Package> packages = new ArrayList<Package>();
+        for ( PkgDependency dep : getPackageDeps() ) {
+            Package depended = resolveDependency(dep, snapshot);
+            // if the dependency is not found, just ignore it
+            // TODO: Create an option to treat it as error/warning/nothing...
+            if ( depended != null ) {
+                packages.add(depended);
+            }
+        }
+        deps = new Resolved(snapshot, Collections.unmodifiableList(packages));
+        myDependencies = deps;
+        return deps.packages;
+    }
+
     /**
      * Return the latest available package from the repo compatible with the dependency.
      *
      * @param dep the package dependency
+     * @param snapshot the repository snapshot to look the dependency into
      *
      * @return the resolved package dependency, or null
      *
      * @throws PackageException if an error occurs
      */
-    private Package resolveDependency(PkgDependency dep)
+    private static Package resolveDependency(PkgDependency dep, RepositorySnapshot snapshot)
             throws PackageException
     {
         String name = dep.getPkgName();
         DependencyVersion version = dep.getVersion();
-        Packages pp = myRepo.getPackages(name);
+        Packages pp = snapshot.getPackages(name);
         if ( pp == null ) {
             return null;
         }
@@ -172,6 +533,7 @@ public class Package
 
     public Storage.PackageResolver getResolver()
     {
+        ensureLoaded();
         return myResolver;
     }
 
@@ -192,6 +554,7 @@ public class Package
      */
     public String getAbbrev()
     {
+        ensureLoaded();
         return myAbbrev;
     }
 
@@ -205,6 +568,28 @@ public class Package
         return myVersion;
     }
 
+    /**
+     * The package title.
+     *
+     * @return the package title.
+     */
+    public String getTitle()
+    {
+        ensureLoaded();
+        return myTitle;
+    }
+
+    /**
+     * The package home URI.
+     *
+     * @return the package home URI, or null.
+     */
+    public String getHome()
+    {
+        ensureLoaded();
+        return myHome;
+    }
+
     /**
      * Return the info object with the given name, null if there is no such info.
      *
@@ -214,6 +599,7 @@ public class Package
      */
     public PackageInfo getInfo(String name)
     {
+        ensureLoaded();
         return myInfos.get(name);
     }
 
@@ -243,9 +629,57 @@ public class Package
      */
     public void setInfo(String name, PackageInfo info)
     {
+        ensureLoaded();
         myInfos.put(name, info);
     }
 
+    /**
+     * Return all the info objects attached to this package.
+     *
+     * @return the package infos
+     */
+    Collection<PackageInfo> getInfos()
+    {
+        ensureLoaded();
+        return myInfos.values();
+    }
+
+    /**
+     * Return the public URIs declared in the package descriptor, for a space.
+     *
+     * Does not include the URIs added by extensions (see {@link #getInfos()}).
+     *
+     * @param space the URI space
+     *
+     * @return the public URIs, possibly empty
+     */
+    Collection<String> getPublicUris(URISpace space)
+    {
+        ensureLoaded();
+        Map<String, String> map = myPublicUris.get(space);
+        if ( map == null ) {
+            return Collections.emptySet();
+        }
+        return map.keySet();
+    }
+
+    /**
+     * Return the public URIs declared in the package descriptor, with their file.
+     *
+     * @param space the URI space
+     *
+     * @return the file of each public URI (relative to the content dir), possibly empty
+     */
+    Map<String, String> getPublicUriMap(URISpace space)
+    {
+        ensureLoaded();
+        Map<String, String> map = myPublicUris.get(space);
+        if ( map == null ) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
     /**
      * Return the dependencies on packages.
      *
@@ -253,6 +687,7 @@ public class Package
      */
     public Collection<PkgDependency> getPackageDeps()
     {
+        ensureLoaded();
         return myPkgDeps;
     }
 
@@ -270,8 +705,8 @@ public class Package
     public void addPackageDep(String pkg, String versions, String semver, String min, String max)
             throws PackageException
     {
-        DependencyVersion ver = DependencyVersion.makeVersion(versions, semver, min, max);
-        PkgDependency dep = new PkgDependency(pkg, ver);
+        ensureLoaded();
+        PkgDependency dep = new PkgDependency(pkg, versions, semver, min, max);
         myPkgDeps.add(dep);
     }
 
@@ -282,6 +717,7 @@ public class Package
      */
     public Collection<ProcessorDependency> getProcessorDeps()
     {
+        ensureLoaded();
         return myProcDeps;
     }
 
@@ -296,6 +732,7 @@ public class Package
      */
     public void addProcessorDep(String proc, String versions, String semver, String min, String max)
     {
+        ensureLoaded();
         ProcessorDependency dep = new ProcessorDependency(proc);
         dep.setVersions(versions);
         dep.setSemver(semver);
@@ -315,7 +752,62 @@ public class Package
     private List<ProcessorDependency> myProcDeps = new ArrayList<ProcessorDependency>();
     private Map<String, PackageInfo> myInfos;
     private Map<URISpace, Map<String, String>> myPublicUris;
+    /** The resource name, for a placeholder only. */
+    private final String myRsrcName;
+    /** The entry in the repository index, for a placeholder only. */
+    private final PackagesIndexFile.Entry myIndexEntry;
+    /** The stamp of the descriptors, when parsed. */
+    private volatile long myStamp = Storage.UNKNOWN_STAMP;
+    /** False for a placeholder, until its descriptor is parsed. */
+    private volatile boolean myLoaded;
+    /** True while the loading thread parses the descriptor. */
+    private boolean myLoading = false;
+    /** The error raised when loading the placeholder, if any. */
+    private PackageException myLoadError = null;
+    /** The resolved dependencies, for the last snapshot used. */
+    private volatile Resolved myDependencies = null;
+    /** The transitive closure, for the last snapshot used. */
+    private volatile Resolved myClosure = null;
     private static final Logger LOG = LoggerFactory.getLogger(Package.class);
+
+    /**
+     * Thrown by the accessors of a package which could not be loaded.
+     *
+     * The cause is the error raised when parsing the package descriptor, or
+     * when initializing the extensions on the package.
+     */
+    public static class LoadException
+            extends IllegalStateException
+    {
+        public LoadException(Package pkg, PackageException cause)
+        {
+            super("Error loading the package " + pkg.getName() + " (" + pkg.getVersion() + ")", cause);
+        }
+
+        @Override
+        public synchronized PackageException getCause()
+        {
+            return (PackageException) super.getCause();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A list of packages resolved against a snapshot of the repository.
+     */
+    private static final class Resolved
+    {
+        public Resolved(RepositorySnapshot snapshot, List<Package> packages)
+        {
+            this.snapshot = snapshot;
+            this.packages = packages;
+        }
+        public final RepositorySnapshot snapshot;
+        public final List<Package> packages;
+        /** The URI table of a closure, lazily built. */
+        public volatile UriIndex table = null;
+    }
 }
 
 
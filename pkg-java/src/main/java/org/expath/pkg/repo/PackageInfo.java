@@ -9,6 +9,7 @@
 
 package org.expath.pkg.repo;
 
+import java.util.Collection;
 import javax.xml.transform.Source;
 
 /**
@@ -37,6 +38,23 @@ public abstract class PackageInfo
     public abstract Source resolve(String href, URISpace space)
             throws PackageException;
 
+    /**
+     * Return the public URIs this info resolves, for a given space.
+     *
+     * This is used to index the URIs of the whole repository.  The default
+     * implementation returns null, meaning the URIs cannot be listed.  The
+     * package is then not indexed, and searched on every lookup instead.
+     *
+     * @param space the URI space
+     *
+     * @return the public URIs {@link #resolve(String, URISpace)} knows about
+     * in {@code space}, or null if they cannot be listed.
+     */
+    public Collection<String> getPublicUris(URISpace space)
+    {
+        return null;
+    }
+
     private String myName;
     private Package myPkg;
 }
@@ -35,6 +35,17 @@ public class Packages
         myName = name;
     }
 
+    /**
+     * Copy constructor, used to update a repository snapshot (copy on write).
+     *
+     * @param other the packages to copy (the package objects are shared)
+     */
+    Packages(Packages other)
+    {
+        myName = other.myName;
+        myPackages.addAll(other.myPackages);
+    }
+
     public String name()
     {
         return myName;
@@ -108,6 +119,13 @@ public class Packages
         return latest().resolve(href, space, transitive);
     }
 
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        return latest().resolveSystemId(sysid);
+    }
+
     private static boolean lower(Package lhs, Package rhs)
     {
         try {
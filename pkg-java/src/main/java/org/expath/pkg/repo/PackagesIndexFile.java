@@ -0,0 +1,405 @@
+package org.expath.pkg.repo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.expath.pkg.repo.deps.PkgDependency;
+import org.expath.pkg.repo.deps.ProcessorDependency;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary index of the packages of a repository, kept in {@code .expath-pkg/}.
+ *
+ * For each package directory, the index records the content of the package
+ * descriptor (name, version, abbrev, title, home, dependencies and public
+ * URIs), and the information the extensions are able to write (see {@link
+ * Extension#writeInfo(Package, DataOutput)}).  Together with a stamp of the
+ * descriptor files (see {@link Storage#getPackageStamp(String)}), so an entry
+ * is used only if the descriptors did not change since it was written.
+ *
+ * The file is memory-mapped.  Opening it only reads the table of the packages
+ * (directory, name, version and stamp), each package record is decoded when
+ * the package is first used.
+ *
+ * The format is: the magic number, the format version, the number of
+ * packages, the table of packages (directory, name, version, stamp, offset
+ * and length of the record), then the records.  The offsets are relative to
+ * the end of the table.
+ */
+final class PackagesIndexFile
+{
+    private PackagesIndexFile(ByteBuffer records, Map<String, Entry> entries)
+    {
+        myRecords = records;
+        myEntries = entries;
+    }
+
+    /**
+     * Open an index file, return null if it does not exist or cannot be read.
+     */
+    static PackagesIndexFile open(Path file)
+    {
+        if ( ! Files.exists(file) ) {
+            LOG.debug("No repository index: {}", file);
+            return null;
+        }
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+            if ( in.readInt() != MAGIC || in.readInt() != FORMAT ) {
+                LOG.info("Repository index with an unknown format, ignore it: {}", file);
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<>();
+            List<Entry> table = new ArrayList<>(count);
+            for ( int i = 0; i < count; ++i ) {
+                String dir = in.readUTF();
+                String name = in.readUTF();
+                String version = in.readUTF();
+                long stamp = in.readLong();
+                int offset = in.readInt();
+                int length = in.readInt();
+                table.add(new Entry(dir, name, version, stamp, offset, length));
+            }
+            ByteBuffer records = buffer.slice();
+            for ( Entry e : table ) {
+                if ( e.myOffset < 0 || e.myLength < 0 || e.myOffset + e.myLength > records.capacity() ) {
+                    LOG.info("Repository index is truncated, ignore it: {}", file);
+                    return null;
+                }
+                entries.put(e.myDir, e);
+            }
+            PackagesIndexFile index = new PackagesIndexFile(records, entries);
+            for ( Entry e : table ) {
+                e.myIndex = index;
+            }
+            LOG.debug("Repository index opened, {} package(s): {}", count, file);
+            return index;
+        }
+        catch ( IOException | RuntimeException ex ) {
+            LOG.warn("Error reading the repository index, ignore it: " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * The entry for a package directory, or null if not in the index.
+     */
+    Entry getEntry(String dir)
+    {
+        return myEntries.get(dir);
+    }
+
+    /**
+     * The number of packages in the index.
+     */
+    int size()
+    {
+        return myEntries.size();
+    }
+
+    /**
+     * Encode the record of a package (everything but the table entry).
+     *
+     * @param pkg the package, must be loaded
+     * @param extensions the extensions to ask for their information
+     */
+    static byte[] encode(Package pkg, Collection<Extension> extensions)
+            throws IOException
+                 , PackageException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        writeString(out, pkg.getAbbrev());
+        writeString(out, pkg.getTitle());
+        writeString(out, pkg.getHome());
+        Collection<PkgDependency> pkg_deps = pkg.getPackageDeps();
+        out.writeInt(pkg_deps.size());
+        for ( PkgDependency dep : pkg_deps ) {
+            out.writeUTF(dep.getPkgName());
+            writeString(out, dep.getVersions());
+            writeString(out, dep.getSemver());
+            writeString(out, dep.getSemverMin());
+            writeString(out, dep.getSemverMax());
+        }
+        Collection<ProcessorDependency> proc_deps = pkg.getProcessorDeps();
+        out.writeInt(proc_deps.size());
+        for ( ProcessorDependency dep : proc_deps ) {
+            out.writeUTF(dep.getProcessor());
+            writeString(out, dep.getVersions());
+            writeString(out, dep.getSemver());
+            writeString(out, dep.getSemverMin());
+            writeString(out, dep.getSemverMax());
+        }
+        URISpace[] spaces = URISpace.values();
+        out.writeInt(spaces.length);
+        for ( URISpace space : spaces ) {
+            Map<String, String> uris = pkg.getPublicUriMap(space);
+            out.writeUTF(space.name());
+            out.writeInt(uris.size());
+            for ( Map.Entry<String, String> u : uris.entrySet() ) {
+                out.writeUTF(u.getKey());
+                out.writeUTF(u.getValue());
+            }
+        }
+        // the extensions not supporting the index are just not recorded
+        Map<String, byte[]> infos = new HashMap<>();
+        for ( Extension ext : extensions ) {
+            ByteArrayOutputStream info_buf = new ByteArrayOutputStream();
+            if ( ext.writeInfo(pkg, new DataOutputStream(info_buf)) ) {
+                infos.put(ext.getName(), info_buf.toByteArray());
+            }
+        }
+        out.writeInt(infos.size());
+        for ( Map.Entry<String, byte[]> i : infos.entrySet() ) {
+            out.writeUTF(i.getKey());
+            out.writeInt(i.getValue().length);
+            out.write(i.getValue());
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private static void writeString(DataOutput out, String value)
+            throws IOException
+    {
+        out.writeBoolean(value != null);
+        if ( value != null ) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in)
+            throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * An entry in the table of packages.
+     */
+    static final class Entry
+    {
+        private Entry(String dir, String name, String version, long stamp, int offset, int length)
+        {
+            myDir = dir;
+            myName = name;
+            myVersion = version;
+            myStamp = stamp;
+            myOffset = offset;
+            myLength = length;
+        }
+
+        String getDir()
+        {
+            return myDir;
+        }
+
+        String getName()
+        {
+            return myName;
+        }
+
+        String getVersion()
+        {
+            return myVersion;
+        }
+
+        long getStamp()
+        {
+            return myStamp;
+        }
+
+        /**
+         * The raw record, to copy it as is in a new index.
+         */
+        byte[] getRecord()
+        {
+            byte[] bytes = new byte[myLength];
+            record().get(bytes);
+            return bytes;
+        }
+
+        /**
+         * Decode the record, and create the corresponding package.
+         *
+         * The package is created with the public constructor, as if freshly
+         * parsed.  The information of the extensions is not read, but returned
+         * along with the package.
+         */
+        Record decode(Repository repo, Storage storage)
+                throws IOException
+                     , PackageException
+        {
+            DataInputStream in = new DataInputStream(new BufferInputStream(record()));
+            String abbrev = readString(in);
+            String title = readString(in);
+            String home = readString(in);
+            Storage.PackageResolver resolver = storage.makePackageResolver(myDir, abbrev);
+            Package pkg = new Package(repo, resolver, myName, abbrev, myVersion, title, home);
+            int pkg_deps = in.readInt();
+            for ( int i = 0; i < pkg_deps; ++i ) {
+                pkg.addPackageDep(in.readUTF(), readString(in), readString(in), readString(in), readString(in));
+            }
+            int proc_deps = in.readInt();
+            for ( int i = 0; i < proc_deps; ++i ) {
+                pkg.addProcessorDep(in.readUTF(), readString(in), readString(in), readString(in), readString(in));
+            }
+            int spaces = in.readInt();
+            for ( int i = 0; i < spaces; ++i ) {
+                URISpace space = URISpace.valueOf(in.readUTF());
+                int uris = in.readInt();
+                for ( int j = 0; j < uris; ++j ) {
+                    pkg.addPublicUri(space, in.readUTF(), in.readUTF());
+                }
+            }
+            int count = in.readInt();
+            Map<String, byte[]> infos = new HashMap<>();
+            for ( int i = 0; i < count; ++i ) {
+                String ext = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                infos.put(ext, bytes);
+            }
+            return new Record(pkg, infos);
+        }
+
+        private ByteBuffer record()
+        {
+            ByteBuffer buffer = myIndex.myRecords.duplicate();
+            buffer.position(myOffset);
+            buffer.limit(myOffset + myLength);
+            return buffer;
+        }
+
+        private final String myDir;
+        private final String myName;
+        private final String myVersion;
+        private final long myStamp;
+        private final int myOffset;
+        private final int myLength;
+        /** Set once, right after the index is opened. */
+        private PackagesIndexFile myIndex;
+    }
+
+    /**
+     * A decoded record: the package, and the information of each extension.
+     */
+    static final class Record
+    {
+        private Record(Package pkg, Map<String, byte[]> infos)
+        {
+            myPkg = pkg;
+            myInfos = Collections.unmodifiableMap(infos);
+        }
+
+        Package getPackage()
+        {
+            return myPkg;
+        }
+
+        /**
+         * The data written by each extension, by extension name.
+         *
+         * Extensions not in the map did not support the index when written.
+         */
+        Map<String, byte[]> getInfos()
+        {
+            return myInfos;
+        }
+
+        private final Package myPkg;
+        private final Map<String, byte[]> myInfos;
+    }
+
+    /**
+     * Build a new index file.
+     */
+    static final class Writer
+    {
+        void add(String dir, String name, String version, long stamp, byte[] record)
+        {
+            myDirs.add(dir);
+            myNames.add(name);
+            myVersions.add(version);
+            myStamps.add(stamp);
+            myRecords.add(record);
+        }
+
+        /**
+         * Write the index to a temporary file, then move it to {@code file}.
+         *
+         * Readers never see a partially written index, and the index currently
+         * mapped by other repository objects stays valid.
+         */
+        void writeTo(Path file)
+                throws IOException
+        {
+            Path tmp = Files.createTempFile(file.getParent(), "packages-", ".idx.tmp");
+            try {
+                try ( OutputStream os = Files.newOutputStream(tmp) ) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT);
+                    out.writeInt(myDirs.size());
+                    int offset = 0;
+                    for ( int i = 0; i < myDirs.size(); ++i ) {
+                        out.writeUTF(myDirs.get(i));
+                        out.writeUTF(myNames.get(i));
+                        out.writeUTF(myVersions.get(i));
+                        out.writeLong(myStamps.get(i));
+                        out.writeInt(offset);
+                        out.writeInt(myRecords.get(i).length);
+                        offset += myRecords.get(i).length;
+                    }
+                    for ( byte[] record : myRecords ) {
+                        out.write(record);
+                    }
+                    out.flush();
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(tmp);
+            }
+            LOG.debug("Repository index written, {} package(s): {}", myDirs.size(), file);
+        }
+
+        private final List<String> myDirs = new ArrayList<>();
+        private final List<String> myNames = new ArrayList<>();
+        private final List<String> myVersions = new ArrayList<>();
+        private final List<Long> myStamps = new ArrayList<>();
+        private final List<byte[]> myRecords = new ArrayList<>();
+    }
+
+    /** The records, after the table. */
+    private final ByteBuffer myRecords;
+    /** The table entries, by package directory. */
+    private final Map<String, Entry> myEntries;
+    /** "XPKI" */
+    private static final int MAGIC = 0x58504B49;
+    /** To change each time the format of the records changes. */
+    private static final int FORMAT = 1;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PackagesIndexFile.class);
+}
@@ -10,22 +10,36 @@
 
 package org.expath.pkg.repo;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import javax.annotation.Nullable;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
@@ -33,6 +47,7 @@ import javax.xml.transform.stream.StreamSource;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.expath.pkg.repo.Storage.PackageResolver;
+import org.expath.pkg.repo.deps.PkgDependency;
 import org.expath.pkg.repo.parser.DescriptorParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,15 +55,25 @@ import org.slf4j.LoggerFactory;
 /**
  * Represent a standard EXPath package repository structure on the disk.
  *
- * TODO: Because we have a repository descriptor with the list of installed
- * packages (by the spec: .expath-pkg/packages.txt and .expath-pkg/packages.xml),
- * we don't have to parse all the package descriptors in the repository at the
- * instantiation of the object.  We can instead create "fake" packages with
- * only the information from the repository descriptor, and parse the whole
- * package descriptor only when the user ask for that package.
+ * Because we have a repository descriptor with the list of installed packages
+ * (by the spec: .expath-pkg/packages.txt and .expath-pkg/packages.xml), we
+ * don't have to parse all the package descriptors in the repository at the
+ * instantiation of the object.  When lazy loading is enabled (see {@link
+ * #setLazyLoading(boolean)}), we create instead placeholder packages with only
+ * the information from the repository descriptor, and parse the whole package
+ * descriptor (and initialize the extensions on it) only when the package is
+ * actually used.
  * 
- * That way, the creation of a Repository object just needs to parse the
+ * That way, the initialization of a Repository object just needs to parse the
  * repository descriptor, and parses the package descriptors only as needed.
+ * Note that resolving a URI in the whole repository still needs all of them
+ * (to build the URI index), but listing packages does not.
+ *
+ * The packages are published as immutable snapshots (see {@link
+ * RepositorySnapshot}).  Reading (listing and resolving) does not take any
+ * lock, it uses the current snapshot.  Updating (installing, removing and
+ * reloading) builds a new snapshot and makes it current, and the updates are
+ * serialized.
  *
  * @author Florent Georges
  */
@@ -65,11 +90,31 @@ public class Repository
     /**
      * Initialise the repository.
      *
+     * The package descriptors are parsed in parallel, in the common fork-join
+     * pool.
+     *
      * @return any package exceptions that occur whilst trying to find the packages.
      */
     public List<PackageException> init() {
+        return init(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initialise the repository, parsing the package descriptors with an executor.
+     *
+     * Each package descriptor is parsed, and the extensions are initialized on
+     * it, in a separate task.  The extensions must then support being called
+     * concurrently for different packages.  Use {@code Runnable::run} as the
+     * executor to parse them all in the calling thread.
+     *
+     * @param executor the executor running the parsing tasks.
+     *
+     * @return any package exceptions that occur whilst trying to find the
+     * packages, in the order of the package directory names.
+     */
+    public List<PackageException> init(final Executor executor) {
         List<PackageException> exceptions = loadExtensions();
-        final List<PackageException> parseExceptions = parsePublicUris();
+        final List<PackageException> parseExceptions = parsePublicUris(executor);
         if (parseExceptions != Collections.<PackageException>emptyList()) {
             if (exceptions == Collections.<PackageException>emptyList()) {
                 return parseExceptions;
@@ -80,6 +125,122 @@ public class Repository
         return exceptions;
     }
 
+    /**
+     * Enable or disable lazy loading of the package descriptors.
+     *
+     * Must be set before {@link #init()}, and only takes effect if the
+     * storage can list its packages from the repository descriptor (see
+     * {@link Storage#listPackageEntries()}).  Disabled by default.
+     *
+     * @param lazy true to parse the package descriptors only when needed.
+     */
+    public void setLazyLoading(boolean lazy)
+    {
+        myLazyLoading = lazy;
+    }
+
+    /**
+     * Enable or disable the flat URI tables of the packages.
+     *
+     * When enabled, each package builds a table of all the public URIs of its
+     * transitive closure (itself and its dependencies, including the URIs
+     * added by extensions), the first time it resolves a URI transitively.  A
+     * transitive resolve is then a single lookup instead of walking the
+     * dependencies.  The tables are built again, when used, after a package
+     * is installed or removed.  It uses more memory, so it is disabled by
+     * default.  It is worth it when resolving a lot through packages with
+     * deep dependencies (e.g. compiling many stylesheets scoped to one
+     * application package).
+     *
+     * @param flat true to build and use the flat URI tables.
+     */
+    public void setFlatUriTables(boolean flat)
+    {
+        myFlatUriTables = flat;
+    }
+
+    /**
+     * Whether the flat URI tables are enabled.
+     *
+     * @return true if enabled.
+     */
+    public boolean isFlatUriTables()
+    {
+        return myFlatUriTables;
+    }
+
+    /**
+     * Enable or disable the binary index of the repository.
+     *
+     * When enabled, the repository keeps an index of the package descriptors
+     * in the storage (see {@link Storage#getIndexFile()}), and updates it on
+     * install and remove.  At startup, the packages which did not change since
+     * they were indexed are decoded from the index when first used, instead
+     * of parsing their descriptors.  The others are parsed as usual, and the
+     * index is written again.  Must be set before {@link #init()}, disabled by
+     * default.
+     *
+     * @param index true to use and maintain the binary index.
+     */
+    public void setBinaryIndex(boolean index)
+    {
+        myBinaryIndex = index;
+    }
+
+    /**
+     * Set the number of threads extracting a package archive on install.
+     *
+     * With more than 1, the entries of an archive are extracted in parallel,
+     * by a pool of that many threads created for each install.  It is worth it
+     * for big archives with a lot of files, on storage handling concurrent
+     * writes well (e.g. SSDs).  The figures of each extraction (files, bytes,
+     * time and throughput) are logged, to tune it.  The default is 1, the
+     * entries are extracted one after the other.
+     *
+     * @param threads the number of extracting threads.
+     */
+    public void setExtractionThreads(int threads)
+    {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of extraction threads must be positive: " + threads);
+        }
+        myExtractionThreads = threads;
+    }
+
+    /**
+     * Set the cache of the packages installed from a URI.
+     *
+     * Used by {@link #installPackage(URI, boolean, UserInteractionStrategy)}.
+     * Without cache (the default), the package is downloaded on each install.
+     *
+     * @param cache the download cache, or null for none.
+     */
+    public void setDownloadCache(@Nullable XarCache cache)
+    {
+        myDownloadCache = cache;
+    }
+
+    @Nullable
+    public XarCache getDownloadCache()
+    {
+        return myDownloadCache;
+    }
+
+    /**
+     * Record the SHA-256 of the files of each package installed.
+     *
+     * The digests are computed while extracting the archive, and written in
+     * {@code expath-pkg.sha256} at the root of the package dir.  The files can
+     * then be checked later without the archive (see {@link
+     * FileSystemStorage#verifyPackage(Package)}).  Disabled by default.
+     *
+     * @param record true to record the checksums.
+     */
+    public void setRecordChecksums(boolean record)
+    {
+        myRecordChecksums = record;
+    }
+
     /**
      * Load the extensions.
      *
@@ -188,11 +349,15 @@ public class Repository
         }
 
         if (registeredExtension) {
-            myPackagesLock.readLock().lock();
+            myUpdateLock.lock();
             try {
-                ext.init(this, myPackages);
+                final RepositorySnapshot snapshot = mySnapshot;
+                // placeholders will be initialized when loaded
+                ext.init(this, loadedPackages(snapshot.getPackagesMap()));
+                // the extension might have added infos, with their own URIs
+                publish(snapshot.getPackagesMap());
             } finally {
-                myPackagesLock.readLock().unlock();
+                myUpdateLock.unlock();
             }
         }
     }
@@ -200,17 +365,31 @@ public class Repository
     /**
      * Reload the repository configuration, so parse again the package descriptors.
      *
+     * Only the packages added or changed since they were loaded are parsed
+     * again (see {@link Storage#getPackageStamp(String)}), the others are kept
+     * as is, and the removed ones are dropped.  The new set of packages
+     * replaces the current one at once, at the end.
+     *
      * @return any package exceptions that occur whilst trying to find the packages.
      */
     public List<PackageException> reload()
     {
-        myPackagesLock.writeLock().lock();
-        try {
-            myPackages.clear();
-        } finally {
-            myPackagesLock.writeLock().unlock();
-        }
-        return parsePublicUris();
+        return reload(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Reload the repository configuration, parsing the package descriptors with an executor.
+     *
+     * See {@link #init(Executor)}.
+     *
+     * @param executor the executor running the parsing tasks.
+     *
+     * @return any package exceptions that occur whilst trying to find the packages.
+     */
+    public List<PackageException> reload(final Executor executor)
+    {
+        // the packages stay available until the new ones have been parsed
+        return parsePublicUris(executor);
     }
 
     /**
@@ -223,24 +402,52 @@ public class Repository
         return myStorage;
     }
 
+    /**
+     * Return the current snapshot of the repository packages.
+     *
+     * The snapshot does not change when packages are installed or removed, so
+     * it can be used to get consistent results over a sequence of lookups (for
+     * instance during one compilation).
+     *
+     * @return the current snapshot.
+     */
+    public RepositorySnapshot snapshot()
+    {
+        return mySnapshot;
+    }
+
+    /**
+     * Return the URI filter of the current snapshot, with its counters.
+     *
+     * See {@link UriFilter}.  Building it loads all the packages.
+     *
+     * @return the URI filter.
+     */
+    public UriFilter getUriFilter()
+    {
+        return mySnapshot.getUriFilter();
+    }
+
+    /**
+     * Return all the packages, in the current snapshot.
+     *
+     * @return the packages, as an unmodifiable collection.
+     */
     public Collection<Packages> listPackages()
     {
-        myPackagesLock.readLock().lock();
-        try {
-            return myPackages.values();
-        } finally {
-            myPackagesLock.readLock().unlock();
-        }
+        return mySnapshot.listPackages();
     }
 
+    /**
+     * Return all the versions of a package, in the current snapshot.
+     *
+     * @param name the package name
+     *
+     * @return the package versions, or null if there is no such package.
+     */
     public Packages getPackages(String name)
     {
-        myPackagesLock.readLock().lock();
-        try {
-            return myPackages.get(name);
-        } finally {
-            myPackagesLock.readLock().unlock();
-        }
+        return mySnapshot.getPackages(name);
     }
 
     /**
@@ -310,13 +517,11 @@ public class Repository
         }
         // TODO: Must be moved within the storage class (because we are writing on disk)...
 
-        return installPackage(new XarUriSource(pkg), force, interact);
+        return installPackage(new XarUriSource(pkg, myDownloadCache), force, interact);
     }
 
     /**
      * Install a XAR package into this repository.
-     *
-     * TODO: In case of exception, the temporary dir is not removed, solve that.
      * 
      * @param xarSource A source for the package file (typically a {@code *.xar} or {@code *.xaw} file).
      * 
@@ -332,6 +537,36 @@ public class Repository
      */
     public Package installPackage(XarSource xarSource, boolean force, UserInteractionStrategy interact)
             throws PackageException
+    {
+        return installPackage(xarSource, null, force, interact);
+    }
+
+    /**
+     * Install a XAR package into this repository, checking its digest.
+     *
+     * The SHA-256 of the archive is computed while it is opened (while it is
+     * downloaded, if it is not a local file), and checked before anything is
+     * extracted.
+     *
+     * @param xarSource A source for the package file.
+     *
+     * @param sha256 The expected SHA-256 of the archive, in hexadecimal, or
+     * null not to check it.
+     *
+     * @param force If force is false, this is an error if the same package has
+     * already been installed in the repository.  If it is true, it is first
+     * deleted if existing.
+     *
+     * @param interact How the repository interacts with the user.
+     *
+     * @return The freshly installed package.
+     *
+     * @throws PackageException If any error occurs, including if the digest
+     * does not match.
+     */
+    public Package installPackage(XarSource xarSource, @Nullable String sha256, boolean force,
+            UserInteractionStrategy interact)
+            throws PackageException
     {
         // preconditions
         if ( ! xarSource.isValid()) {
@@ -339,151 +574,617 @@ public class Repository
         }
         myStorage.beforeInstall(force, interact);
 
-        // the temporary dir, to unzip the package
-        Path tmp_dir = myStorage.makeTempDir("install");
-
-        // unzip in the package in destination dir
+        final List<Closeable> resources = new ArrayList<>();
         try {
-            ZipHelper zip = new ZipHelper(xarSource);
-            zip.unzip(tmp_dir);
-        }
-        catch ( IOException ex ) {
-            throw new PackageException("Error unziping the package", ex);
+            // parse the descriptor and check the package, before extracting anything
+            final OpenedXar xar = openXar(xarSource, sha256, resources);
+            final Package pkg = xar.pkg;
+            final boolean override = checkInstall(pkg, force, interact);
+            checkDependencies(pkg, Collections.<Package>emptyList(), interact);
+
+            final StagedPackage staged = stagePackage(pkg, xar.zip, override, resources);
+            if (staged.stats != null) {
+                interact.logInfo("Package unziped to " + staged.tmp + " (" + staged.stats + ")");
+            }
+            commitPackages(Collections.singletonList(staged));
+            return pkg;
+        } catch (final IOException e) {
+            throw new PackageException("Error unziping the package", e);
+        } finally {
+            closeAll(resources);
         }
-        interact.logInfo("Package unziped to " + tmp_dir);
+    }
 
-        // parse the package
-        final Path desc_f = tmp_dir.resolve("expath-pkg.xml");
-        if ( ! Files.exists(desc_f) ) {
-            throw new PackageException("Package descriptor does NOT exist in: " + tmp_dir);
-        }
+    /**
+     * Install several XAR packages into this repository, at once.
+     *
+     * The archives are opened, and their descriptors parsed, in parallel in
+     * the common fork-join pool.  See {@link #installPackages(Collection,
+     * boolean, UserInteractionStrategy, Executor)}.
+     *
+     * @param xarSources The sources for the package files.
+     *
+     * @param force If force is false, this is an error if one of the packages
+     * has already been installed in the repository.  If it is true, it is first
+     * deleted if existing.
+     *
+     * @param interact How the repository interacts with the user.
+     *
+     * @return The freshly installed packages, in the order they were installed.
+     *
+     * @throws PackageException If any error occurs.
+     */
+    public List<Package> installPackages(Collection<? extends XarSource> xarSources, boolean force,
+            UserInteractionStrategy interact)
+            throws PackageException
+    {
+        return installPackages(xarSources, force, interact, ForkJoinPool.commonPool());
+    }
 
-       final  Package pkg;
-        try (final InputStream is = Files.newInputStream(desc_f)) {
-            final Source desc = new StreamSource(is);
-            // parse the descriptor
-            final DescriptorParser parser = new DescriptorParser();
-            pkg = parser.parse(desc, null, myStorage, this);
-        } catch (final IOException e) {
-            throw new PackageException(e.getMessage(), e);
+    /**
+     * Install several XAR packages into this repository, at once.
+     *
+     * It is the same as installing them one by one, but much faster for a lot
+     * of packages (e.g. to provision a new repository).  The archives are
+     * opened and their descriptors parsed in parallel, with the executor.  All
+     * the packages are then checked (like for {@link
+     * #installPackage(XarSource, boolean, UserInteractionStrategy)}, a
+     * dependency is also satisfied by a package in the same batch), before
+     * extracting any.  They are extracted in parallel as well.  Finally they
+     * are installed in the order of their dependencies, with the package lists
+     * updated once for all, and the extensions called for each package in the
+     * same order.
+     *
+     * If any package cannot be installed, none of them is.  Except if an error
+     * occurs while actually moving the packages in the storage or calling the
+     * extensions, then the packages installed so far stay installed.
+     *
+     * @param xarSources The sources for the package files.
+     *
+     * @param force If force is false, this is an error if one of the packages
+     * has already been installed in the repository.  If it is true, it is first
+     * deleted if existing.
+     *
+     * @param interact How the repository interacts with the user.
+     *
+     * @param executor The executor opening and extracting the archives.
+     *
+     * @return The freshly installed packages, in the order they were installed.
+     *
+     * @throws PackageException If any error occurs.
+     */
+    public List<Package> installPackages(Collection<? extends XarSource> xarSources, boolean force,
+            UserInteractionStrategy interact, Executor executor)
+            throws PackageException
+    {
+        // preconditions
+        for (final XarSource src : xarSources) {
+            if (!src.isValid()) {
+                throw new PackageException("Package file does not exist (" + src.getURI() + ")");
+            }
         }
+        myStorage.beforeInstall(force, interact);
 
-        // is the package already in the repo?
-        String name = pkg.getName();
-        String version = pkg.getVersion();
-
-        @Nullable Packages pp = null;
-        myPackagesLock.writeLock().lock();
+        final List<Closeable> resources = Collections.synchronizedList(new ArrayList<Closeable>());
         try {
-            pp = myPackages.get(name);
-            if (pp != null) {
-                Package p2 = pp.version(version);
-                if (p2 != null) {
-                    if (force || interact.ask("Force override " + name + " - " + version + "?", false)) {
-                        myStorage.remove(p2);
-                        pp.remove(p2);
-                        if (pp.latest() == null) {
-                            myPackages.remove(name);
-                        }
-                    } else {
-                        throw new AlreadyInstalledException(name, version);
-                    }
+            // open the archives and parse the descriptors
+            final List<OpenedXar> opened = runAll(xarSources, src -> openXar(src, null, resources), executor);
+            final List<Package> batch = new ArrayList<>(opened.size());
+            final Set<String> ids = new HashSet<>();
+            for (final OpenedXar xar : opened) {
+                final Package pkg = xar.pkg;
+                if (!ids.add(pkg.getName() + " " + pkg.getVersion())) {
+                    throw new PackageException("Package given twice: " + pkg.getName() + " - " + pkg.getVersion()
+                            + " (" + xar.source.getURI() + ")");
                 }
+                batch.add(pkg);
             }
+
+            // check them all, before extracting anything
+            final Map<Package, Boolean> overrides = new IdentityHashMap<>();
+            for (final Package pkg : batch) {
+                overrides.put(pkg, checkInstall(pkg, force, interact));
+            }
+            for (final Package pkg : batch) {
+                checkDependencies(pkg, batch, interact);
+            }
+
+            // extract them
+            final Map<Package, ZipFile> zips = new IdentityHashMap<>();
+            for (final OpenedXar xar : opened) {
+                zips.put(xar.pkg, xar.zip);
+            }
+            final List<Package> ordered = orderByDependencies(batch);
+            final List<StagedPackage> staged = runAll(ordered,
+                    pkg -> stagePackage(pkg, zips.get(pkg), overrides.get(pkg), resources), executor);
+            for (final StagedPackage s : staged) {
+                if (s.stats != null) {
+                    interact.logInfo("Package unziped to " + s.tmp + " (" + s.stats + ")");
+                }
+            }
+
+            commitPackages(staged);
+            return ordered;
         } finally {
-            myPackagesLock.writeLock().unlock();
+            closeAll(resources);
         }
+    }
 
-        // where to move the temporary dir? (where within the repo)
-        String key = pkg.getAbbrev() + "-" + version;
-        for ( int i = 1; myStorage.packageKeyExists(key) && i < 100 ; ++i ) {
-            key = pkg.getAbbrev() + "-" + version + "__" + i;
-        }
-        if ( myStorage.packageKeyExists(key) ) {
-            String msg = "Impossible to find a non-existing package key in the repo, stopped at: ";
-            throw new PackageException(msg + key);
-        }
+    /**
+     * An archive opened for install, with its descriptor parsed.
+     */
+    private static final class OpenedXar
+    {
+        private final XarSource source;
+        private final ZipFile zip;
+        private final Package pkg;
 
-        myStorage.storeInstallDir(tmp_dir, key, pkg);
-        if ( pp == null ) {
-            pp = new Packages(name);
-            myPackagesLock.writeLock().lock();
-            try {
-                myPackages.put(name, pp);
-            } finally {
-                myPackagesLock.writeLock().unlock();
-            }
+        private OpenedXar(final XarSource source, final ZipFile zip, final Package pkg)
+        {
+            this.source = source;
+            this.zip = zip;
+            this.pkg = pkg;
         }
-        pp.add(pkg);
+    }
 
-        myStorage.updatePackageLists(pkg);
+    /**
+     * A package ready to be stored: parsed, and unzipped in a temporary dir.
+     *
+     * For a storage storing archives, {@code content} is a copy of the archive
+     * within the temporary dir, instead of the dir itself.  For a storage
+     * storing entries, there is no temporary dir, the entries are in memory.
+     */
+    private static final class StagedPackage
+    {
+        private final Package pkg;
+        @Nullable private final Path tmp;
+        @Nullable private final Path content;
+        private final boolean override;
+        @Nullable private final ZipHelper.Stats stats;
+        @Nullable private final Map<String, byte[]> entries;
+
+        private StagedPackage(final Package pkg, final Path tmp, final Path content, final boolean override,
+                @Nullable final ZipHelper.Stats stats)
+        {
+            this.pkg = pkg;
+            this.tmp = tmp;
+            this.content = content;
+            this.override = override;
+            this.stats = stats;
+            this.entries = null;
+        }
 
-        myExtensionsLock.readLock().lock();
-        try {
-            for (final Extension ext : myExtensions.values()) {
-                ext.install(this, pkg);
-            }
-        } finally {
-            myExtensionsLock.readLock().unlock();
+        private StagedPackage(final Package pkg, final Map<String, byte[]> entries, final boolean override)
+        {
+            this.pkg = pkg;
+            this.tmp = null;
+            this.content = null;
+            this.override = override;
+            this.stats = null;
+            this.entries = entries;
         }
+    }
 
-        return pkg;
+    /**
+     * A task on an install, which can fail.
+     */
+    @FunctionalInterface
+    private interface InstallTask<T, R>
+    {
+        R run(T input) throws IOException, PackageException;
     }
 
     /**
-     * Remove a package from the repository, by name.
-     * 
-     * If a package with that name does not exist, or if there are several
-     * versions installed, this is an error (except if the package does not
-     * exist and {@code force} is {@code true}, then simply returns {@code
-     * false}).
-     * 
-     * @param pkg The package name.
-     * 
-     * @param force To silently ignore a non existing package (simply returns
-     * {@code false} in that case).
-     * 
-     * @param interact How the repository interacts with the user.
-     * 
-     * @return True if the package has been successfully removed, false if not
-     * (false is returned when the user canceled removing interactively, or if
-     * the package does not exist and {@code force} is true).
-     * 
-     * @throws PackageException If any error occurs during removal.
+     * Run a task on each input with the executor, and wait for all of them.
+     *
+     * @return the results, in the order of the inputs.
+     *
+     * @throws PackageException the first error, once all tasks are done.
      */
-    public boolean removePackage(String pkg, boolean force, UserInteractionStrategy interact)
+    private static <T, R> List<R> runAll(final Collection<? extends T> inputs, final InstallTask<T, R> task,
+            final Executor executor)
             throws PackageException
     {
-        if ( ! interact.ask("Remove package " + pkg + "?", true) ) {
-            return false;
+        final List<CompletableFuture<R>> tasks = new ArrayList<>(inputs.size());
+        for (final T input : inputs) {
+            tasks.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.run(input);
+                } catch (final IOException | PackageException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
         }
-        // delete the package content
-        myPackagesLock.writeLock().lock();
-        try {
-            Packages pp = myPackages.get(pkg);
-            if (pp == null) {
-                if (force) {
-                    return false;
+        final List<R> results = new ArrayList<>(tasks.size());
+        @Nullable Throwable error = null;
+        for (final CompletableFuture<R> t : tasks) {
+            try {
+                results.add(t.join());
+            } catch (final CompletionException e) {
+                if (error == null) {
+                    error = e.getCause();
                 }
-                throw new PackageException("The package does not exist: " + pkg);
-            }
-            if (pp.packages().size() != 1) {
-                throw new PackageException("The package has several versions installed: " + pkg);
             }
-            Package p = pp.latest();
-            myStorage.remove(p);
-            pp.remove(p);
-            // remove the package from the list
-            myPackages.remove(pkg);
-        } finally {
-            myPackagesLock.writeLock().unlock();
         }
-        return true;
+        if (error instanceof PackageException) {
+            throw (PackageException) error;
+        } else if (error instanceof IOException) {
+            throw new PackageException("Error unziping the package", error);
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new PackageException("Error installing the packages", error);
+        }
+        return results;
     }
 
     /**
-     * Remove a package from the repository, by name and version.
-     * 
+     * Open an archive, and parse its descriptor.
+     *
+     * A non-local archive is first copied, to be read with random access.  The
+     * archive and the copy are added to the resources, to be released after
+     * the install.  If {@code sha256} is not null, the digest of the archive
+     * must match it.
+     */
+    private OpenedXar openXar(final XarSource xarSource, @Nullable final String sha256,
+            final List<Closeable> resources)
+            throws IOException, PackageException
+    {
+        // e.g. a source fetching the archive to a cache
+        final Path local = xarSource.fetchLocalFile();
+        final Path buffer_dir = local == null ? myStorage.makeTempDir("download") : null;
+        if (buffer_dir != null) {
+            resources.add(() -> FileHelper.deleteQuietly(buffer_dir));
+        }
+        final MessageDigest digest = sha256 == null ? null : ObjectStore.newDigest();
+        final ZipFile zip = new ZipHelper(xarSource).openZipFile(buffer_dir, digest);
+        resources.add(zip);
+        if (digest != null) {
+            final String actual = ObjectStore.toHex(digest.digest());
+            if (!actual.equalsIgnoreCase(sha256.trim())) {
+                throw new PackageException("Digest mismatch for " + xarSource.getURI() + ": expected " + sha256
+                        + ", got " + actual);
+            }
+        }
+        return new OpenedXar(xarSource, zip, parseDescriptor(zip, xarSource));
+    }
+
+    /**
+     * Release the resources used by an install, the last ones first.
+     */
+    private static void closeAll(final List<Closeable> resources)
+    {
+        synchronized (resources) {
+            for (int i = resources.size() - 1; i >= 0; --i) {
+                try {
+                    resources.get(i).close();
+                } catch (final IOException e) {
+                    LOG.warn("Error releasing an install resource", e);
+                }
+            }
+            resources.clear();
+        }
+    }
+
+    /**
+     * Parse the package descriptor, right from the archive.
+     */
+    private Package parseDescriptor(final ZipFile zip, final XarSource xarSource)
+            throws IOException, PackageException
+    {
+        final ZipEntry entry = zip.getEntry("expath-pkg.xml");
+        if (entry == null) {
+            throw new PackageException("Package descriptor does NOT exist in: " + xarSource.getURI());
+        }
+        try (final InputStream is = zip.getInputStream(entry)) {
+            final Source desc = new StreamSource(is);
+            final DescriptorParser parser = new DescriptorParser();
+            return parser.parse(desc, null, myStorage, this);
+        }
+    }
+
+    /**
+     * Check whether the same version is already installed, before extracting.
+     *
+     * @return true if it is installed, and must be overridden.
+     *
+     * @throws AlreadyInstalledException if it is installed, and must not be
+     * overridden.
+     */
+    private boolean checkInstall(final Package pkg, final boolean force, final UserInteractionStrategy interact)
+            throws PackageException
+    {
+        final Packages pp = getPackages(pkg.getName());
+        if (pp == null || pp.version(pkg.getVersion()) == null) {
+            return false;
+        }
+        if (force || interact.ask("Force override " + pkg.getName() + " - " + pkg.getVersion() + "?", false)) {
+            return true;
+        }
+        throw new AlreadyInstalledException(pkg.getName(), pkg.getVersion());
+    }
+
+    /**
+     * Check the package dependencies are installed (or in the batch), before extracting.
+     *
+     * The user can choose to install anyway (the default), or to cancel.
+     */
+    private void checkDependencies(final Package pkg, final List<Package> batch,
+            final UserInteractionStrategy interact)
+            throws PackageException
+    {
+        for (final PkgDependency dep : pkg.getPackageDeps()) {
+            boolean found = findInBatch(dep, batch) != null;
+            final Packages pp = getPackages(dep.getPkgName());
+            if (!found && pp != null) {
+                for (final Package p : pp.packages()) {
+                    if (dep.getVersion().isCompatible(p.getVersion())) {
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (!found) {
+                final String msg = "Dependency of " + pkg.getName() + " not installed: " + dep.getPkgName();
+                if (!interact.ask(msg + ", install anyway?", true)) {
+                    throw new PackageException(msg);
+                }
+                interact.logInfo(msg);
+            }
+        }
+    }
+
+    /**
+     * Find a package in a batch satisfying a dependency.
+     */
+    @Nullable
+    private static Package findInBatch(final PkgDependency dep, final List<Package> batch)
+            throws PackageException
+    {
+        for (final Package p : batch) {
+            if (p.getName().equals(dep.getPkgName()) && dep.getVersion().isCompatible(p.getVersion())) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Order a batch of packages so each one comes after its dependencies in the batch.
+     *
+     * Otherwise the packages keep their order.  A cycle is cut where it is
+     * found.
+     */
+    private static List<Package> orderByDependencies(final List<Package> batch)
+            throws PackageException
+    {
+        final List<Package> ordered = new ArrayList<>(batch.size());
+        final Set<Package> seen = Collections.newSetFromMap(new IdentityHashMap<Package, Boolean>());
+        for (final Package pkg : batch) {
+            addAfterDependencies(pkg, batch, seen, ordered);
+        }
+        return ordered;
+    }
+
+    private static void addAfterDependencies(final Package pkg, final List<Package> batch, final Set<Package> seen,
+            final List<Package> ordered)
+            throws PackageException
+    {
+        if (!seen.add(pkg)) {
+            return;
+        }
+        for (final PkgDependency dep : pkg.getPackageDeps()) {
+            final Package p = findInBatch(dep, batch);
+            if (p != null) {
+                addAfterDependencies(p, batch, seen, ordered);
+            }
+        }
+        ordered.add(pkg);
+    }
+
+    /**
+     * Unzip a package in a temporary dir, or copy its archive for a storage storing them.
+     *
+     * For a storage storing the entries themselves, they are read in memory,
+     * and no temporary dir is created.
+     *
+     * The temporary dir is added to the resources, to be deleted after the
+     * install if it is still there.
+     */
+    private StagedPackage stagePackage(final Package pkg, final ZipFile zip, final boolean override,
+            final List<Closeable> resources)
+            throws IOException, PackageException
+    {
+        if (myStorage.storesEntries()) {
+            // the storage keeps the content itself, no need for a temp dir
+            return new StagedPackage(pkg, ZipHelper.readEntries(zip), override);
+        }
+        final Path tmp_dir = myStorage.makeTempDir("install");
+        resources.add(() -> FileHelper.deleteQuietly(tmp_dir));
+        if (myStorage.storesArchives()) {
+            // the storage keeps the archive itself, no need to unzip it
+            final Path tmp_xar = tmp_dir.resolve("package.xar");
+            Files.copy(Paths.get(zip.getName()), tmp_xar);
+            return new StagedPackage(pkg, tmp_dir, tmp_xar, override, null);
+        }
+        final ZipHelper.Stats stats = ZipHelper.unzip(zip, tmp_dir, myExtractionThreads, myRecordChecksums);
+        if (stats.getDigests() != null) {
+            Checksums.write(tmp_dir, stats.getDigests());
+        }
+        LOG.info("Package {} unziped: {}", pkg.getName(), stats);
+        return new StagedPackage(pkg, tmp_dir, tmp_dir, override, stats);
+    }
+
+    /**
+     * Store packages ready to be installed, and make them available.
+     *
+     * The package lists are updated once for all the packages, then the
+     * extensions are called on each of them, in order.
+     *
+     * If a package cannot be stored, the packages stored before it are in the
+     * storage anyway: they are still completely installed (package lists,
+     * extensions and index), then the error is thrown.
+     */
+    private void commitPackages(final List<StagedPackage> staged)
+            throws PackageException
+    {
+        myUpdateLock.lock();
+        try {
+            final Map<String, Packages> packages = copyPackages();
+            final List<Package> installed = new ArrayList<>(staged.size());
+            PackageException failure = null;
+            for (final StagedPackage s : staged) {
+                try {
+                    storePackage(packages, s);
+                } catch (final PackageException ex) {
+                    failure = ex;
+                    break;
+                }
+                installed.add(s.pkg);
+            }
+            if (!installed.isEmpty()) {
+                try {
+                    completeInstall(packages, installed);
+                } catch (final PackageException ex) {
+                    if (failure == null) {
+                        throw ex;
+                    }
+                    failure.addSuppressed(ex);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            myUpdateLock.unlock();
+        }
+    }
+
+    /**
+     * Make packages just stored available: package lists, extensions and index.
+     */
+    @GuardedBy("myUpdateLock")
+    private void completeInstall(final Map<String, Packages> packages, final List<Package> installed)
+            throws PackageException
+    {
+        publish(packages);
+        myStorage.updatePackageLists(installed);
+        myExtensionsLock.readLock().lock();
+        try {
+            for (final Package pkg : installed) {
+                for (final Extension ext : myExtensions.values()) {
+                    ext.install(this, pkg);
+                }
+            }
+        } finally {
+            myExtensionsLock.readLock().unlock();
+        }
+        // the extensions might have added infos, with their own URIs
+        publish(packages);
+        writeIndex(packages);
+    }
+
+    /**
+     * Store one package in the storage, and add it to a copy of the packages.
+     */
+    private void storePackage(final Map<String, Packages> packages, final StagedPackage staged)
+            throws PackageException
+    {
+        final Package pkg = staged.pkg;
+        // is the package already in the repo?
+        String name = pkg.getName();
+        String version = pkg.getVersion();
+        Packages pp = packages.get(name);
+        if (pp != null) {
+            Package p2 = pp.version(version);
+            if (p2 != null) {
+                // already asked, unless installed in the meantime
+                if (staged.override) {
+                    myStorage.remove(p2);
+                    removeFromCopy(packages, p2);
+                } else {
+                    throw new AlreadyInstalledException(name, version);
+                }
+            }
+        }
+
+        // where to move the temporary dir? (where within the repo)
+        String key = pkg.getAbbrev() + "-" + version;
+        for ( int i = 1; myStorage.packageKeyExists(key) && i < 100 ; ++i ) {
+            key = pkg.getAbbrev() + "-" + version + "__" + i;
+        }
+        if ( myStorage.packageKeyExists(key) ) {
+            String msg = "Impossible to find a non-existing package key in the repo, stopped at: ";
+            throw new PackageException(msg + key);
+        }
+
+        if (staged.entries != null) {
+            myStorage.storeInstallEntries(staged.entries, key, pkg);
+        } else if (myStorage.storesArchives()) {
+            myStorage.storeInstallArchive(staged.content, key, pkg);
+        } else {
+            myStorage.storeInstallDir(staged.content, key, pkg);
+        }
+        pkg.setStamp(myStorage.getPackageStamp(key));
+        addToCopy(packages, pkg);
+    }
+
+    /**
+     * Remove a package from the repository, by name.
+     * 
+     * If a package with that name does not exist, or if there are several
+     * versions installed, this is an error (except if the package does not
+     * exist and {@code force} is {@code true}, then simply returns {@code
+     * false}).
+     * 
+     * @param pkg The package name.
+     * 
+     * @param force To silently ignore a non existing package (simply returns
+     * {@code false} in that case).
+     * 
+     * @param interact How the repository interacts with the user.
+     * 
+     * @return True if the package has been successfully removed, false if not
+     * (false is returned when the user canceled removing interactively, or if
+     * the package does not exist and {@code force} is true).
+     * 
+     * @throws PackageException If any error occurs during removal.
+     */
+    public boolean removePackage(String pkg, boolean force, UserInteractionStrategy interact)
+            throws PackageException
+    {
+        if ( ! interact.ask("Remove package " + pkg + "?", true) ) {
+            return false;
+        }
+        // delete the package content
+        myUpdateLock.lock();
+        try {
+            final Map<String, Packages> packages = copyPackages();
+            Packages pp = packages.get(pkg);
+            if (pp == null) {
+                if (force) {
+                    return false;
+                }
+                throw new PackageException("The package does not exist: " + pkg);
+            }
+            if (pp.packages().size() != 1) {
+                throw new PackageException("The package has several versions installed: " + pkg);
+            }
+            Package p = pp.latest();
+            myStorage.remove(p);
+            // remove the package from the list
+            removeFromCopy(packages, p);
+            publish(packages);
+            writeIndex(packages);
+        } finally {
+            myUpdateLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Remove a package from the repository, by name and version.
+     * 
      * If a package with that name and that version does not exist, this is an
      * error, except if the package does not exist and {@code force} is {@code
      * true} (then it simply returns {@code false}).
@@ -510,9 +1211,10 @@ public class Repository
             return false;
         }
         // delete the package content
-        myPackagesLock.writeLock().lock();
+        myUpdateLock.lock();
         try {
-            Packages pp = myPackages.get(pkg);
+            final Map<String, Packages> packages = copyPackages();
+            Packages pp = packages.get(pkg);
             if (pp == null) {
                 if (force) {
                     return false;
@@ -527,13 +1229,12 @@ public class Repository
                 throw new PackageException("The version " + version + " does not exist for the package: " + pkg);
             }
             myStorage.remove(p);
-            pp.remove(p);
             // remove the package from the list if it was the only version
-            if (pp.latest() == null) {
-                myPackages.remove(pkg);
-            }
+            removeFromCopy(packages, p);
+            publish(packages);
+            writeIndex(packages);
         } finally {
-            myPackagesLock.writeLock().unlock();
+            myUpdateLock.unlock();
         }
         return true;
     }
@@ -541,7 +1242,14 @@ public class Repository
     /**
      * Resolve a URI in this repository, in the specified space, return a File.
      *
-     * For each package, use only the latest version.
+     * For each package, use the latest version first.  The lookup goes through
+     * the repository URI index (see {@link UriIndex}), so it does not have to
+     * ask every package in turn.  Older versions are used only if the latest
+     * versions do not provide the URI (they used to be reachable only through
+     * the dependencies of other packages).
+     *
+     * This uses the current snapshot, use {@link #snapshot()} to resolve
+     * several URIs against the same set of packages.
      *
      * TODO: What about the packages with a versionning scheme which does NOT
      * follow SemVer? (because basically those are not ordered)
@@ -558,19 +1266,7 @@ public class Repository
             throws PackageException
     {
         LOG.debug("Repository, resolve in {}: '{}'", space, href);
-        try {
-            myPackagesLock.readLock().lock();
-            for (final Packages pp : myPackages.values()) {
-                Package p = pp.latest();
-                Source src = p.resolve(href, space);
-                if (src != null) {
-                    return src;
-                }
-            }
-        } finally {
-            myPackagesLock.readLock().unlock();
-        }
-        return null;
+        return mySnapshot.resolve(href, space);
     }
 
     @Override
@@ -582,15 +1278,71 @@ public class Repository
         return resolve(href, space);
     }
 
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        return myStorage.resolveSystemId(sysid);
+    }
+
     /**
      * Load package descriptors from public URIs.
      *
+     * The packages are parsed in a new snapshot, which replaces the current
+     * one only at the end, so readers always see a complete set of packages.
+     *
      * @return any package exceptions that occur whilst trying to find the packages.
      */
-    private List<PackageException> parsePublicUris()
+    private List<PackageException> parsePublicUris(final Executor executor)
+    {
+        myUpdateLock.lock();
+        try {
+            return doParsePublicUris(executor);
+        } finally {
+            myUpdateLock.unlock();
+        }
+    }
+
+    @GuardedBy("myUpdateLock")
+    private List<PackageException> doParsePublicUris(final Executor executor)
     {
         @Nullable List<PackageException> exceptions = null;
 
+        // the packages not changed since indexed are loaded from the index
+        @Nullable final PackagesIndexFile index = openIndex();
+
+        if (myLazyLoading) {
+            final List<Storage.PackageEntry> entries;
+            try {
+                entries = myStorage.listPackageEntries();
+            } catch (final PackageException e) {
+                exceptions = new ArrayList<>();
+                exceptions.add(e);
+                return exceptions;
+            }
+            if (entries != null) {
+                final Map<String, Package> previous = packagesByDir(mySnapshot.getPackagesMap());
+                final Map<String, Packages> placeholders = new HashMap<>();
+                for (final Storage.PackageEntry e : entries) {
+                    final Package prev = previous.get(e.getDir());
+                    if (prev != null && prev.getName().equals(e.getName()) && prev.getVersion().equals(e.getVersion())
+                            && isUnchanged(prev, e.getDir())) {
+                        addToCopy(placeholders, prev);
+                        continue;
+                    }
+                    // the stamp is checked only when the package is loaded
+                    @Nullable PackagesIndexFile.Entry ie = index == null ? null : index.getEntry(e.getDir());
+                    if (ie != null && !(ie.getName().equals(e.getName()) && ie.getVersion().equals(e.getVersion()))) {
+                        ie = null;
+                    }
+                    addToCopy(placeholders, new Package(this, e.getDir(), e.getName(), e.getVersion(), ie));
+                }
+                publish(placeholders);
+                return Collections.emptyList();
+            }
+            LOG.debug("Storage does not support lazy loading, parse all packages: {}", myStorage);
+        }
+
         // the list of package dirs
         final Set<String> packages;
         try {
@@ -601,38 +1353,68 @@ public class Repository
             return exceptions;
         }
 
-        // the parser
+        // the extensions, as they are when starting to parse
+        final List<Extension> extensions;
+        myExtensionsLock.readLock().lock();
+        try {
+            extensions = new ArrayList<>(myExtensions.values());
+        } finally {
+            myExtensionsLock.readLock().unlock();
+        }
+
+        // the current packages, to keep those which did not change
+        final Map<String, Package> previous = packagesByDir(mySnapshot.getPackagesMap());
+
+        // load each package in its own task, in a deterministic order
         final DescriptorParser parser = new DescriptorParser();
+        final List<String> dirs = new ArrayList<>(packages);
+        Collections.sort(dirs);
+        final List<CompletableFuture<ParseResult>> tasks = new ArrayList<>(dirs.size());
+        for (final String p : dirs) {
+            final Package prev = previous.get(p);
+            tasks.add(CompletableFuture.supplyAsync(() -> loadPackage(parser, p, extensions, index, prev), executor));
+        }
 
-        // loop over the packages
-        for (final String p : packages) {
+        // merge the results, in the same order
+        final Map<String, Packages> parsed = new HashMap<>();
+        // whether the index must be written again
+        boolean stale = index == null || index.size() != dirs.size();
+        int kept = 0;
+        for (final CompletableFuture<ParseResult> task : tasks) {
+            final ParseResult result;
             try {
-                final PackageResolver res = myStorage.makePackageResolver(p, null);
-                final Source desc = res.resolveResource("expath-pkg.xml");
-                final Package pkg = parser.parse(desc, p, myStorage, this);
-                addPackage(pkg);
-
-                myExtensionsLock.readLock().lock();
-                try {
-                    for (final Extension ext : myExtensions.values()) {
-                        ext.init(this, pkg);
-                    }
-                } finally {
-                    myExtensionsLock.readLock().unlock();
+                result = task.join();
+            } catch (final CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
-            } catch (final Storage.NotExistException | PackageException e) {
+                throw e;
+            }
+            if (result.pkg != null) {
+                addToCopy(parsed, result.pkg);
+            }
+            if (!result.indexed) {
+                stale = true;
+            }
+            if (result.kept) {
+                ++kept;
+            }
+            if (result.error != null) {
                 if (exceptions == null) {
                     exceptions = new ArrayList<>();
                 }
-
-                if (e instanceof Storage.NotExistException) {
-                    exceptions.add(new PackageException("Package descriptor does NOT exist in: " + p, e));
-                } else {
-                    exceptions.add((PackageException) e);
-                }
+                exceptions.add(result.error);
             }
         }
 
+        final Set<String> removed = new HashSet<>(previous.keySet());
+        removed.removeAll(packages);
+        LOG.info("Packages loaded: {} unchanged, {} loaded, {} removed", kept, dirs.size() - kept, removed.size());
+        publish(parsed);
+        if (stale) {
+            writeIndex(parsed);
+        }
+
         if (exceptions != null) {
             return exceptions;
         }
@@ -640,25 +1422,396 @@ public class Repository
         return Collections.emptyList();
     }
 
+    /**
+     * Load one package: keep the current one, take it from the index, or parse it.
+     *
+     * The current package object is kept as is if its descriptors did not
+     * change (or if it is a placeholder, which will be checked when loaded).
+     * Else a package found in the index is returned as a placeholder, decoded
+     * from the index when first used.
+     */
+    private ParseResult loadPackage(final DescriptorParser parser, final String dir, final List<Extension> extensions,
+            @Nullable final PackagesIndexFile index, @Nullable final Package previous)
+    {
+        @Nullable final PackagesIndexFile.Entry entry = index == null ? null : index.getEntry(dir);
+        if (previous != null && isUnchanged(previous, dir)) {
+            final boolean indexed = entry != null && entry.getStamp() == previous.getStamp();
+            return new ParseResult(previous, null, indexed, true);
+        }
+        if (entry != null && isUpToDate(entry)) {
+            return new ParseResult(new Package(this, dir, entry.getName(), entry.getVersion(), entry), null, true, false);
+        }
+        return parsePackage(parser, dir, extensions);
+    }
+
+    /**
+     * Whether a current package can be kept as is.
+     *
+     * A placeholder is checked when it is loaded, as for a new one.  Except
+     * one from the index, which knows its name and version from the index:
+     * if the descriptors changed, they might have changed as well.
+     */
+    private boolean isUnchanged(final Package pkg, final String dir)
+    {
+        if (!pkg.isLoaded()) {
+            final PackagesIndexFile.Entry entry = pkg.getIndexEntry();
+            return entry == null || isUpToDate(entry);
+        }
+        if (pkg.getLoadError() != null || pkg.getStamp() == Storage.UNKNOWN_STAMP) {
+            return false;
+        }
+        try {
+            return pkg.getStamp() == myStorage.getPackageStamp(dir);
+        } catch (final PackageException e) {
+            LOG.debug("Cannot get the stamp of the package, parse it: " + dir, e);
+            return false;
+        }
+    }
+
+    /**
+     * Parse one package descriptor, and initialize the extensions on it.
+     *
+     * Run in a parsing task, possibly concurrently with other packages.
+     *
+     * @return the package (if it could be parsed) and the error (if any).
+     */
+    private ParseResult parsePackage(final DescriptorParser parser, final String dir, final List<Extension> extensions)
+    {
+        @Nullable Package pkg = null;
+        try {
+            // the stamp before parsing, so a change while parsing is seen next time
+            final long stamp = myStorage.getPackageStamp(dir);
+            final PackageResolver res = myStorage.makePackageResolver(dir, null);
+            final Source desc = res.resolveResource("expath-pkg.xml");
+            pkg = parser.parse(desc, dir, myStorage, this);
+            pkg.setStamp(stamp);
+            for (final Extension ext : extensions) {
+                ext.init(this, pkg);
+            }
+            return new ParseResult(pkg, null, false, false);
+        } catch (final Storage.NotExistException e) {
+            final PackageException error = new PackageException("Package descriptor does NOT exist in: " + dir, e);
+            return new ParseResult(pkg, error, false, false);
+        } catch (final PackageException e) {
+            return new ParseResult(pkg, e, false, false);
+        }
+    }
+
+    /**
+     * The result of a parsing task.
+     */
+    private static final class ParseResult
+    {
+        ParseResult(@Nullable final Package pkg, @Nullable final PackageException error, final boolean indexed,
+                final boolean kept)
+        {
+            this.pkg = pkg;
+            this.error = error;
+            this.indexed = indexed;
+            this.kept = kept;
+        }
+
+        @Nullable final Package pkg;
+        @Nullable final PackageException error;
+        /** Whether the package is up to date in the index. */
+        final boolean indexed;
+        /** Whether the package is the current one, kept as is. */
+        final boolean kept;
+    }
+
     /**
      * Package-level to be used in tests (to "manually" build a repo).
      */
     void addPackage(Package pkg)
     {
-        String name = pkg.getName();
-        myPackagesLock.writeLock().lock();
+        myUpdateLock.lock();
         try {
-            Packages pp = myPackages.get(name);
-            if (pp == null) {
-                pp = new Packages(name);
-                myPackages.put(name, pp);
+            final Map<String, Packages> packages = copyPackages();
+            addToCopy(packages, pkg);
+            publish(packages);
+        } finally {
+            myUpdateLock.unlock();
+        }
+    }
+
+    /**
+     * Parse the package descriptor of a placeholder, and init the extensions.
+     *
+     * Called by the placeholder itself, the first time it is accessed.
+     *
+     * @param pkg the placeholder to fill in
+     *
+     * @throws PackageException if the descriptor cannot be parsed, or if it
+     * does not match the package list.
+     */
+    void loadPlaceholder(Package pkg)
+            throws PackageException
+    {
+        final PackagesIndexFile.Entry entry = pkg.getIndexEntry();
+        if (entry != null && loadFromIndex(pkg, entry)) {
+            return;
+        }
+        final String dir = pkg.getPlaceholderResourceName();
+        LOG.debug("Load the package descriptor in: {}", dir);
+        final Package parsed;
+        try {
+            final PackageResolver res = myStorage.makePackageResolver(dir, null);
+            final Source desc = res.resolveResource("expath-pkg.xml");
+            final long stamp = myStorage.getPackageStamp(dir);
+            parsed = new DescriptorParser().parse(desc, dir, myStorage, this);
+            pkg.setStamp(stamp);
+        } catch (final Storage.NotExistException e) {
+            throw new PackageException("Package descriptor does NOT exist in: " + dir, e);
+        }
+        if (!pkg.getName().equals(parsed.getName()) || !pkg.getVersion().equals(parsed.getVersion())) {
+            throw new PackageException("Package descriptor in " + dir + " (" + parsed.getName() + ", "
+                    + parsed.getVersion() + ") does not match the package list (" + pkg.getName() + ", "
+                    + pkg.getVersion() + ")");
+        }
+        pkg.loadFrom(parsed);
+
+        myExtensionsLock.readLock().lock();
+        try {
+            for (final Extension ext : myExtensions.values()) {
+                ext.init(this, pkg);
             }
-            pp.add(pkg);
         } finally {
-            myPackagesLock.writeLock().unlock();
+            myExtensionsLock.readLock().unlock();
         }
     }
 
+    /**
+     * Fill in a placeholder from its record in the index, and init the extensions.
+     *
+     * The extensions which wrote their information in the index read it back,
+     * the others are initialized as usual.
+     *
+     * @return false if the package changed since indexed, or if the record
+     * cannot be read, then the package descriptor must be parsed instead.
+     *
+     * @throws PackageException if an error occurs initializing an extension.
+     */
+    private boolean loadFromIndex(final Package pkg, final PackagesIndexFile.Entry entry)
+            throws PackageException
+    {
+        final String dir = entry.getDir();
+        final PackagesIndexFile.Record record;
+        try {
+            if (!isUpToDate(entry)) {
+                LOG.debug("Package changed since indexed, parse its descriptor: {}", dir);
+                return false;
+            }
+            record = entry.decode(this, myStorage);
+        } catch (final IOException | PackageException | RuntimeException e) {
+            LOG.warn("Error reading the package from the repository index, parse its descriptor: " + dir, e);
+            return false;
+        }
+        LOG.debug("Load the package from the repository index: {}", dir);
+        pkg.loadFrom(record.getPackage());
+
+        myExtensionsLock.readLock().lock();
+        try {
+            for (final Extension ext : myExtensions.values()) {
+                final byte[] info = record.getInfos().get(ext.getName());
+                if (info != null) {
+                    try {
+                        ext.readInfo(pkg, new DataInputStream(new ByteArrayInputStream(info)));
+                        continue;
+                    } catch (final IOException | PackageException e) {
+                        LOG.warn("Error reading the " + ext.getName() + " info from the repository index: " + dir, e);
+                    }
+                }
+                ext.init(this, pkg);
+            }
+        } finally {
+            myExtensionsLock.readLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Open the index, if enabled and supported by the storage.
+     */
+    @Nullable
+    private PackagesIndexFile openIndex()
+    {
+        if (!myBinaryIndex) {
+            return null;
+        }
+        final Path file = myStorage.getIndexFile();
+        return file == null ? null : PackagesIndexFile.open(file);
+    }
+
+    /**
+     * Whether the descriptors of an indexed package did not change since indexed.
+     */
+    private boolean isUpToDate(final PackagesIndexFile.Entry entry)
+    {
+        try {
+            final long stamp = myStorage.getPackageStamp(entry.getDir());
+            return stamp != Storage.UNKNOWN_STAMP && stamp == entry.getStamp();
+        } catch (final PackageException e) {
+            LOG.debug("Cannot get the stamp of the package, parse it: " + entry.getDir(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Write the index with {@code packages}, if enabled.
+     *
+     * Placeholders not loaded yet are copied as is from the previous index, or
+     * left out if they are not in it (then they will be parsed next time).
+     * Errors are only logged, the index is just an optimization.
+     */
+    @GuardedBy("myUpdateLock")
+    private void writeIndex(final Map<String, Packages> packages)
+    {
+        if (!myBinaryIndex) {
+            return;
+        }
+        final Path file = myStorage.getIndexFile();
+        if (file == null) {
+            return;
+        }
+        final List<Extension> extensions;
+        myExtensionsLock.readLock().lock();
+        try {
+            extensions = new ArrayList<>(myExtensions.values());
+        } finally {
+            myExtensionsLock.readLock().unlock();
+        }
+        final PackagesIndexFile.Writer writer = new PackagesIndexFile.Writer();
+        try {
+            for (final Packages pp : packages.values()) {
+                for (final Package p : pp.packages()) {
+                    if (!p.isLoaded()) {
+                        final PackagesIndexFile.Entry e = p.getIndexEntry();
+                        if (e != null) {
+                            writer.add(e.getDir(), e.getName(), e.getVersion(), e.getStamp(), e.getRecord());
+                        }
+                        continue;
+                    }
+                    if (p.getLoadError() != null) {
+                        continue;
+                    }
+                    final PackageResolver res = p.getResolver();
+                    final String dir = res == null ? null : res.getResourceName();
+                    if (dir == null) {
+                        continue;
+                    }
+                    final long stamp = p.getStamp() != Storage.UNKNOWN_STAMP ? p.getStamp() : myStorage.getPackageStamp(dir);
+                    if (stamp == Storage.UNKNOWN_STAMP) {
+                        continue;
+                    }
+                    writer.add(dir, p.getName(), p.getVersion(), stamp, PackagesIndexFile.encode(p, extensions));
+                }
+            }
+            writer.writeTo(file);
+        } catch (final IOException | PackageException e) {
+            LOG.warn("Error writing the repository index: " + file, e);
+        }
+    }
+
+    /**
+     * Index the packages by directory (their resource name in the storage).
+     *
+     * Does not load the placeholders.  The packages without a directory (e.g.
+     * created by hand in tests) are left out.
+     */
+    private static Map<String, Package> packagesByDir(final Map<String, Packages> packages)
+    {
+        final Map<String, Package> byDir = new HashMap<>();
+        for (final Packages pp : packages.values()) {
+            for (final Package p : pp.packages()) {
+                String dir = p.getPlaceholderResourceName();
+                if (dir == null) {
+                    final PackageResolver res = p.getResolver();
+                    dir = res == null ? null : res.getResourceName();
+                }
+                if (dir != null) {
+                    byDir.put(dir, p);
+                }
+            }
+        }
+        return byDir;
+    }
+
+    /**
+     * Return the packages without the placeholders not loaded yet.
+     */
+    private static Map<String, Packages> loadedPackages(Map<String, Packages> packages)
+    {
+        final Map<String, Packages> loaded = new HashMap<>();
+        for (final Packages pp : packages.values()) {
+            Packages copy = null;
+            for (final Package p : pp.packages()) {
+                if (p.isLoaded()) {
+                    if (copy == null) {
+                        copy = new Packages(pp.name());
+                    }
+                    copy.add(p);
+                }
+            }
+            if (copy != null) {
+                loaded.put(pp.name(), copy);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Return a copy of the packages of the current snapshot, to be modified.
+     *
+     * The {@link Packages} objects are not copied, use {@link #addToCopy} and
+     * {@link #removeFromCopy} to modify the returned map.
+     */
+    @GuardedBy("myUpdateLock")
+    private Map<String, Packages> copyPackages()
+    {
+        return new HashMap<>(mySnapshot.getPackagesMap());
+    }
+
+    /**
+     * Add a package to a copy of the packages, copying its {@link Packages} object.
+     */
+    private static void addToCopy(Map<String, Packages> packages, Package pkg)
+    {
+        String name = pkg.getName();
+        Packages old = packages.get(name);
+        Packages pp = old == null ? new Packages(name) : new Packages(old);
+        pp.add(pkg);
+        packages.put(name, pp);
+    }
+
+    /**
+     * Remove a package from a copy of the packages, copying its {@link Packages} object.
+     */
+    private static void removeFromCopy(Map<String, Packages> packages, Package pkg)
+    {
+        String name = pkg.getName();
+        Packages old = packages.get(name);
+        if (old == null) {
+            return;
+        }
+        Packages pp = new Packages(old);
+        pp.remove(pkg);
+        if (pp.latest() == null) {
+            packages.remove(name);
+        }
+        else {
+            packages.put(name, pp);
+        }
+    }
+
+    /**
+     * Make a new snapshot with {@code packages}, and make it the current one.
+     */
+    @GuardedBy("myUpdateLock")
+    private void publish(Map<String, Packages> packages)
+    {
+        mySnapshot = new RepositorySnapshot(packages);
+    }
+
     /**
      * Package-level, only to be used in tests (to "manually" build a repo).
      */
@@ -673,10 +1826,38 @@ public class Repository
      */
     private final Storage myStorage;
     /**
-     * The list of packages in this repository (indexed by name).
+     * The current snapshot of the packages in this repository.
+     */
+    @GuardedBy("myUpdateLock")
+    private volatile RepositorySnapshot mySnapshot = new RepositorySnapshot(Collections.<String, Packages>emptyMap());
+    /**
+     * Serialize the updates of the packages (readers do not take any lock).
+     */
+    private final Lock myUpdateLock = new ReentrantLock();
+    /**
+     * Whether to create placeholders instead of parsing the package descriptors.
+     */
+    private volatile boolean myLazyLoading = false;
+    /**
+     * Whether the packages use flat URI tables for transitive resolution.
+     */
+    private volatile boolean myFlatUriTables = false;
+    /**
+     * Whether to use and maintain the binary index.
+     */
+    private volatile boolean myBinaryIndex = false;
+    /**
+     * The number of threads extracting a package archive.
+     */
+    private volatile int myExtractionThreads = 1;
+    /**
+     * The cache of the packages downloaded, if any.
+     */
+    @Nullable private volatile XarCache myDownloadCache = null;
+    /**
+     * Whether to record the SHA-256 of the files of the packages installed.
      */
-    @GuardedBy("myPackages") private final Map<String, Packages> myPackages = new HashMap<>();
-    private final ReadWriteLock myPackagesLock = new ReentrantReadWriteLock();
+    private volatile boolean myRecordChecksums = false;
     /**
      * The registered extensions (indexed by name).
      */
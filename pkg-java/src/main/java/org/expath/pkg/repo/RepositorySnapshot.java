@@ -0,0 +1,194 @@
+package org.expath.pkg.repo;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.xml.transform.Source;
+import net.jcip.annotations.Immutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable view of the packages of a repository, at a given time.
+ *
+ * A {@link Repository} publishes a new snapshot each time its set of packages
+ * changes (install, remove, reload...), the snapshots themselves are never
+ * modified.  So reading a snapshot does not require any lock, and all the
+ * lookups against the same snapshot are consistent with each other.  A user
+ * can get the current snapshot with {@link Repository#snapshot()} and keep it
+ * for the time of, say, the compilation of a stylesheet.
+ *
+ * The {@link Packages} objects returned by a snapshot must not be modified.
+ *
+ * @see Repository#snapshot()
+ */
+@Immutable
+public final class RepositorySnapshot
+        implements Universe
+{
+    /**
+     * Create a new snapshot, with a copy of {@code packages}.
+     *
+     * The {@link Packages} objects themselves are not copied, the caller must
+     * not modify them anymore.
+     */
+    RepositorySnapshot(Map<String, Packages> packages)
+    {
+        myPackages = Collections.unmodifiableMap(new HashMap<>(packages));
+    }
+
+    /**
+     * Return all the packages in this snapshot.
+     *
+     * @return the packages, as an unmodifiable collection.
+     */
+    public Collection<Packages> listPackages()
+    {
+        return myPackages.values();
+    }
+
+    /**
+     * Return all the versions of a package, by name.
+     *
+     * @param name the package name
+     *
+     * @return the package versions, or null if there is no such package.
+     */
+    public Packages getPackages(String name)
+    {
+        return myPackages.get(name);
+    }
+
+    /**
+     * Resolve a URI in this snapshot, in the specified space.
+     *
+     * See {@link Repository#resolve(String, URISpace)}.
+     */
+    @Override
+    public Source resolve(String href, URISpace space)
+            throws PackageException
+    {
+        LOG.debug("Repository snapshot, resolve in {}: '{}'", space, href);
+        UriFilter filter = getUriFilter();
+        if ( ! filter.mightContain(href, space) ) {
+            LOG.debug("Repository snapshot, not in the URI filter: '{}'", href);
+            return null;
+        }
+        Source src = getUriIndex().resolve(href, space);
+        filter.recordResult(src != null);
+        return src;
+    }
+
+    @Override
+    public Source resolve(String href, URISpace space, boolean transitive)
+            throws PackageException
+    {
+        // transitive or not is meaningless, as anyway the universe is the whole
+        // respository (and dependencies are defined within the repo)
+        return resolve(href, space);
+    }
+
+    /**
+     * The system IDs are opened by the storage of the packages, the same for all.
+     */
+    @Override
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        Iterator<Packages> packages = myPackages.values().iterator();
+        return packages.hasNext() ? packages.next().resolveSystemId(sysid) : null;
+    }
+
+    /**
+     * Resolve a URI in a package and its dependencies, as found in this snapshot.
+     *
+     * Like {@link Package#resolve(String, URISpace)}, but the dependencies
+     * are looked into this snapshot instead of the current one, so the result
+     * is consistent with the other lookups against this snapshot.
+     *
+     * @param pkg the package to resolve the URI in
+     * @param href the URI
+     * @param space the URI space
+     *
+     * @return the source, or null if not found
+     *
+     * @throws PackageException if an error occurs
+     */
+    public Source resolve(Package pkg, String href, URISpace space)
+            throws PackageException
+    {
+        return pkg.resolve(href, space, this);
+    }
+
+    /**
+     * The filter of the URIs in this snapshot, to skip the URIs not in any package.
+     *
+     * Built the first time it is needed, with the URI index (so all the
+     * packages are loaded then).
+     *
+     * @return the URI filter, with its counters.
+     */
+    public UriFilter getUriFilter()
+    {
+        UriFilter filter = myUriFilter;
+        if ( filter == null ) {
+            filter = new UriFilter(getUriIndex());
+            myUriFilter = filter;
+        }
+        return filter;
+    }
+
+    /**
+     * The URI filter if already built, null if not.
+     *
+     * For lookups which should not load all the packages just to use it.
+     */
+    UriFilter peekUriFilter()
+    {
+        return myUriFilter;
+    }
+
+    /**
+     * Whether this very package object is in the URI index of this snapshot.
+     *
+     * That is, the latest versions and their dependencies (see {@link UriIndex}).
+     */
+    boolean isIndexed(Package pkg)
+    {
+        return getUriIndex().contains(pkg);
+    }
+
+    /**
+     * The packages, as an unmodifiable map indexed by name.
+     */
+    Map<String, Packages> getPackagesMap()
+    {
+        return myPackages;
+    }
+
+    /**
+     * The URI index of the packages, built the first time it is needed.
+     *
+     * Building it twice concurrently is harmless, both indexes are equal.
+     */
+    UriIndex getUriIndex()
+    {
+        UriIndex index = myUriIndex;
+        if ( index == null ) {
+            index = new UriIndex(this);
+            myUriIndex = index;
+        }
+        return index;
+    }
+
+    /** The packages (indexed by name). */
+    private final Map<String, Packages> myPackages;
+    /** The URI index, lazily built. */
+    private volatile UriIndex myUriIndex = null;
+    /** The URI filter, lazily built. */
+    private volatile UriFilter myUriFilter = null;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(RepositorySnapshot.class);
+}
@@ -0,0 +1,267 @@
+package org.expath.pkg.repo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watch a repository on the file system, and reload it when it changes.
+ *
+ * Other processes can install and remove packages in a repository, while a
+ * {@link Repository} object is used in memory.  The watcher monitors {@code
+ * .expath-pkg/packages.txt}, the repository directory (for package directories
+ * created or deleted) and the files at the root of each package directory
+ * (the package and extension descriptors).  When any of them changes, it waits
+ * for the changes to settle (a batch of changes, like an install, triggers
+ * only one reload), then reloads the repository.  The reload is incremental,
+ * and readers see the new packages all at once (see {@link Repository#reload()}).
+ *
+ * Create one with {@link FileSystemStorage#watch(Repository, long, TimeUnit)},
+ * and close it to stop watching.
+ */
+@ThreadSafe
+public final class RepositoryWatcher
+        implements Closeable
+{
+    RepositoryWatcher(Repository repo, Path root, Path priv, long delay, TimeUnit unit)
+            throws PackageException
+    {
+        myRepo = repo;
+        myRoot = root;
+        myPrivate = priv;
+        myDelay = unit.toMillis(delay);
+        try {
+            myService = root.getFileSystem().newWatchService();
+            register(root);
+            register(priv);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error watching the repository: " + root, ex);
+        }
+        registerPackageDirs();
+        myScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "expath-repo-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        myThread = new Thread(this::watch, "expath-repo-watcher");
+        myThread.setDaemon(true);
+        myThread.start();
+        LOG.info("Watch the repository: {}", root);
+    }
+
+    /**
+     * The number of reloads triggered by this watcher so far.
+     *
+     * @return the number of reloads.
+     */
+    public int getReloadCount()
+    {
+        synchronized ( this ) {
+            return myReloads;
+        }
+    }
+
+    /**
+     * Stop watching the repository.
+     */
+    @Override
+    public void close()
+    {
+        synchronized ( this ) {
+            if ( myClosed ) {
+                return;
+            }
+            myClosed = true;
+            if ( myPending != null ) {
+                myPending.cancel(false);
+            }
+        }
+        myScheduler.shutdown();
+        try {
+            myService.close();
+        }
+        catch ( IOException ex ) {
+            LOG.warn("Error closing the watch service", ex);
+        }
+        LOG.info("Stop watching the repository: {}", myRoot);
+    }
+
+    /**
+     * The watching thread, waiting for events until closed.
+     */
+    private void watch()
+    {
+        try {
+            for ( ; ; ) {
+                WatchKey key = myService.take();
+                Path dir = (Path) key.watchable();
+                boolean relevant = false;
+                for ( WatchEvent<?> event : key.pollEvents() ) {
+                    if ( isRelevant(dir, event) ) {
+                        relevant = true;
+                    }
+                }
+                if ( ! key.reset() ) {
+                    // the directory is gone (e.g. a removed package)
+                    synchronized ( this ) {
+                        myKeys.remove(dir);
+                    }
+                }
+                if ( relevant ) {
+                    schedule();
+                }
+            }
+        }
+        catch ( ClosedWatchServiceException ex ) {
+            // closed, stop watching
+        }
+        catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Whether an event must trigger a reload.
+     *
+     * In the private dir, only the package list counts (not the temporary
+     * dirs, nor the index written by the repository itself).
+     */
+    private boolean isRelevant(Path dir, WatchEvent<?> event)
+    {
+        if ( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+            return true;
+        }
+        Path name = (Path) event.context();
+        if ( dir.equals(myPrivate) ) {
+            return "packages.txt".equals(name.toString()) || "packages.journal".equals(name.toString());
+        }
+        if ( dir.equals(myRoot) ) {
+            return ! name.equals(myPrivate.getFileName());
+        }
+        // a file at the root of a package dir
+        return ! Files.isDirectory(dir.resolve(name));
+    }
+
+    /**
+     * Schedule a reload after the delay, replacing the one pending if any.
+     */
+    private synchronized void schedule()
+    {
+        if ( myClosed ) {
+            return;
+        }
+        if ( myPending != null ) {
+            myPending.cancel(false);
+        }
+        myPending = myScheduler.schedule(this::reload, myDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reload the repository, and watch the new package dirs.
+     */
+    private void reload()
+    {
+        LOG.debug("Repository changed, reload it: {}", myRoot);
+        try {
+            List<PackageException> errors = myRepo.reload();
+            for ( PackageException ex : errors ) {
+                LOG.error("Error reloading the repository: " + myRoot, ex);
+            }
+        }
+        catch ( RuntimeException ex ) {
+            LOG.error("Error reloading the repository: " + myRoot, ex);
+        }
+        registerPackageDirs();
+        synchronized ( this ) {
+            ++myReloads;
+        }
+    }
+
+    private void registerPackageDirs()
+    {
+        Set<String> dirs;
+        try {
+            dirs = myRepo.getStorage().listPackageDirectories();
+        }
+        catch ( PackageException ex ) {
+            LOG.error("Error listing the package dirs to watch: " + myRoot, ex);
+            return;
+        }
+        synchronized ( this ) {
+            // stop watching the removed ones
+            Iterator<Map.Entry<Path, WatchKey>> it = myKeys.entrySet().iterator();
+            while ( it.hasNext() ) {
+                Map.Entry<Path, WatchKey> e = it.next();
+                Path dir = e.getKey();
+                if ( ! dir.equals(myRoot) && ! dir.equals(myPrivate) && ! dirs.contains(dir.getFileName().toString()) ) {
+                    e.getValue().cancel();
+                    it.remove();
+                }
+            }
+        }
+        for ( String d : dirs ) {
+            Path dir = myRoot.resolve(d);
+            try {
+                register(dir);
+            }
+            catch ( IOException ex ) {
+                LOG.warn("Error watching the package dir: " + dir, ex);
+            }
+        }
+    }
+
+    private void register(Path dir)
+            throws IOException
+    {
+        synchronized ( this ) {
+            if ( myClosed || myKeys.containsKey(dir) ) {
+                return;
+            }
+            WatchKey key = dir.register(myService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            myKeys.put(dir, key);
+        }
+    }
+
+    /** The repository to reload. */
+    private final Repository myRepo;
+    /** The repository root dir. */
+    private final Path myRoot;
+    /** The private dir, {@code .expath-pkg/}. */
+    private final Path myPrivate;
+    /** How long to wait for changes to settle, in ms. */
+    private final long myDelay;
+    private final WatchService myService;
+    private final ScheduledExecutorService myScheduler;
+    private final Thread myThread;
+    /** The watched directories. */
+    @GuardedBy("this") private final Map<Path, WatchKey> myKeys = new HashMap<>();
+    /** The reload waiting for the changes to settle. */
+    @GuardedBy("this") private ScheduledFuture<?> myPending = null;
+    @GuardedBy("this") private boolean myClosed = false;
+    @GuardedBy("this") private int myReloads = 0;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryWatcher.class);
+}
@@ -11,6 +11,9 @@ package org.expath.pkg.repo;
 
 import java.net.URI;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.xml.transform.Source;
 
@@ -64,6 +67,61 @@ public abstract class Storage
     public abstract Set<String> listPackageDirectories()
             throws PackageException;
 
+    /**
+     * Return the list of installed packages, with their name and version.
+     *
+     * The information comes from the repository descriptor only (e.g. from
+     * {@code .expath-pkg/packages.txt}), the package descriptors are not
+     * parsed.  This is used to load packages lazily.  The default
+     * implementation returns null, meaning it is not supported by the
+     * storage (then packages are always loaded eagerly).
+     *
+     * @return the installed packages, or null if not supported.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public List<PackageEntry> listPackageEntries()
+            throws PackageException
+    {
+        return null;
+    }
+
+    /**
+     * Return a stamp of the descriptors of a package.
+     *
+     * The stamp must change when the package descriptor or an extension
+     * descriptor changes (for instance it is computed from their modification
+     * times and sizes).  It is used to check whether a package in the
+     * repository index is still up to date (see {@link #getIndexFile()}).
+     * The default implementation returns {@link #UNKNOWN_STAMP}, meaning the
+     * index cannot be used for this package.
+     *
+     * @param rsrc_name the resource name of the package (its directory)
+     *
+     * @return the stamp of the package descriptors.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public long getPackageStamp(String rsrc_name)
+            throws PackageException
+    {
+        return UNKNOWN_STAMP;
+    }
+
+    /**
+     * Return the file where to keep the binary index of the repository.
+     *
+     * The index records the content of the package descriptors, so they do not
+     * have to be parsed each time a repository object is created.  The default
+     * implementation returns null, meaning the storage does not support it.
+     *
+     * @return the index file, or null if not supported.
+     */
+    public Path getIndexFile()
+    {
+        return null;
+    }
+
     /**
      * The opportunity to do anything before the install of a package.
      * 
@@ -126,6 +184,79 @@ public abstract class Storage
     public abstract void storeInstallDir(Path dir, String key, Package pkg)
             throws PackageException;
 
+    /**
+     * Whether this storage keeps the package archives as they are.
+     *
+     * If true, packages are not unzipped on install, and {@link
+     * #storeInstallArchive(Path, String, Package)} is used instead of {@link
+     * #storeInstallDir(Path, String, Package)}.  The default implementation
+     * returns false.
+     *
+     * @return true if the storage stores the archives.
+     */
+    public boolean storesArchives()
+    {
+        return false;
+    }
+
+    /**
+     * Actually store the package archive in the storage.
+     * 
+     * During install, the package archive is copied to a temporary file, on
+     * the file system.  This method receives that file and the package key to
+     * use, and actually take control over the file.  It can rename the file to
+     * its final place.
+     *
+     * Only used if {@link #storesArchives()} returns true.  The default
+     * implementation throws an exception.
+     *
+     * @param xar the temporary copy of the package archive
+     * @param key the package key
+     * @param pkg the package descriptor
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void storeInstallArchive(Path xar, String key, Package pkg)
+            throws PackageException
+    {
+        throw new PackageException("The storage does not store package archives: " + this);
+    }
+
+    /**
+     * Whether this storage keeps the content of the packages itself.
+     *
+     * If true, packages are neither unzipped nor copied to a temporary dir on
+     * install.  Their entries are read from the archive, and {@link
+     * #storeInstallEntries(Map, String, Package)} is used instead of {@link
+     * #storeInstallDir(Path, String, Package)}.  The default implementation
+     * returns false.
+     *
+     * @return true if the storage stores the entries of the archives.
+     */
+    public boolean storesEntries()
+    {
+        return false;
+    }
+
+    /**
+     * Actually store the package entries in the storage.
+     *
+     * Only used if {@link #storesEntries()} returns true.  The default
+     * implementation throws an exception.
+     *
+     * @param entries the content of the files of the package, by entry name
+     * (the directories are not included)
+     * @param key the package key
+     * @param pkg the package descriptor
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void storeInstallEntries(Map<String, byte[]> entries, String key, Package pkg)
+            throws PackageException
+    {
+        throw new PackageException("The storage does not store package entries: " + this);
+    }
+
     /**
      * The package has just been install, record the information if needed.
      *
@@ -136,6 +267,25 @@ public abstract class Storage
     public abstract void updatePackageLists(Package pkg)
             throws PackageException;
 
+    /**
+     * Several packages have just been installed, record the information if needed.
+     *
+     * The default implementation calls {@link #updatePackageLists(Package)}
+     * for each package.  A storage can do better, like updating its lists
+     * only once.
+     *
+     * @param pkgs the package descriptors, in the order they were installed
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void updatePackageLists(Collection<Package> pkgs)
+            throws PackageException
+    {
+        for ( Package pkg : pkgs ) {
+            updatePackageLists(pkg);
+        }
+    }
+
     /**
      * Remove a package.
      *
@@ -146,6 +296,32 @@ public abstract class Storage
     public abstract void remove(Package pkg)
             throws PackageException;
 
+    /**
+     * Open a resource by the system ID of a source from this storage.
+     *
+     * For the storages whose system IDs cannot be opened as URLs (in memory,
+     * in a pack file...)  The relative references within a package (like an
+     * {@code xsl:include}) are resolved against these system IDs, then opened
+     * through the repository (see {@link Universe#resolveSystemId(String)}).
+     * The default implementation returns null.
+     *
+     * @param sysid the system ID, absolute
+     *
+     * @return the source, or null if the system ID is not one of this storage.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        return null;
+    }
+
+    /**
+     * The stamp returned when the storage cannot compute one.
+     */
+    public static final long UNKNOWN_STAMP = -1L;
+
     /**
      * Resolve paths in a package installed in the repository.
      */
@@ -213,6 +389,53 @@ public abstract class Storage
                 throws PackageException;
     }
 
+    /**
+     * An installed package, as recorded in the repository descriptor.
+     */
+    public static final class PackageEntry
+    {
+        public PackageEntry(String dir, String name, String version)
+        {
+            myDir = dir;
+            myName = name;
+            myVersion = version;
+        }
+
+        /**
+         * @return the package directory (its resource name in the storage).
+         */
+        public String getDir()
+        {
+            return myDir;
+        }
+
+        /**
+         * @return the package name.
+         */
+        public String getName()
+        {
+            return myName;
+        }
+
+        /**
+         * @return the package version.
+         */
+        public String getVersion()
+        {
+            return myVersion;
+        }
+
+        @Override
+        public String toString()
+        {
+            return myDir + " " + myName + " " + myVersion;
+        }
+
+        private final String myDir;
+        private final String myName;
+        private final String myVersion;
+    }
+
     /**
      * If a resource or a component does not exist, when trying to resolve a path.
      */
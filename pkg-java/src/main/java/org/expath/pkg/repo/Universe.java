@@ -56,6 +56,27 @@ public interface Universe
      */
     public Source resolve(String href, URISpace space, boolean transitive)
             throws PackageException;
+
+    /**
+     * Open a resource by the system ID of a source returned by this universe.
+     *
+     * Some storages give their sources system IDs which cannot be opened as
+     * URLs (see {@link Storage#resolveSystemId(String)}).  Resolvers use this
+     * method to open the relative references within a package, once resolved
+     * against the system ID of the referring source.  The default
+     * implementation returns null.
+     *
+     * @param sysid the system ID, absolute
+     *
+     * @return the source, or null if the system ID can be opened as a URL.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public default Source resolveSystemId(String sysid)
+            throws PackageException
+    {
+        return null;
+    }
 }
 
 
@@ -0,0 +1,242 @@
+package org.expath.pkg.repo;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Bloom filter of all the public URIs in a repository snapshot, per URI space.
+ *
+ * Most URIs resolved against a repository are not in it at all (relative
+ * includes, W3C schemas...)  The filter tells for sure that such a URI is not
+ * in any package, without looking into the packages and their dependencies.
+ * It can answer "maybe" for a URI not in the repository (a false positive),
+ * then the URI is looked up as usual.
+ *
+ * The filter is built from the URI index of a snapshot (see {@link
+ * RepositorySnapshot#getUriFilter()}).  If a package has an extension info not
+ * able to list its URIs (see {@link PackageInfo#getPublicUris(URISpace)}), the
+ * filter is disabled, and always answers "maybe".
+ *
+ * It keeps counters of its use, to monitor its efficiency.  They are specific
+ * to the snapshot, so they start again from zero each time the set of packages
+ * changes.
+ */
+@ThreadSafe
+public final class UriFilter
+{
+    UriFilter(UriIndex index)
+    {
+        myEnabled = index.getUnindexed().isEmpty();
+        int total = 0;
+        if ( myEnabled ) {
+            for ( URISpace space : URISpace.values() ) {
+                Collection<String> hrefs = index.getHrefs(space);
+                long[] bits = new long[bitCount(hrefs.size()) / 64];
+                for ( String href : hrefs ) {
+                    add(bits, href);
+                }
+                myBits.put(space, bits);
+                total += hrefs.size();
+            }
+        }
+        myCount = total;
+        LOG.debug("URI filter built, {} URI(s), enabled: {}", total, myEnabled);
+    }
+
+    /**
+     * Whether the filter is enabled.
+     *
+     * @return false if some package URIs cannot be listed, then the filter
+     * answers "maybe" for any URI.
+     */
+    public boolean isEnabled()
+    {
+        return myEnabled;
+    }
+
+    /**
+     * Whether a URI might be in the repository.
+     *
+     * @param href the URI
+     * @param space the URI space
+     *
+     * @return false if the URI is for sure not in any package of the snapshot.
+     */
+    public boolean mightContain(String href, URISpace space)
+    {
+        if ( ! myEnabled ) {
+            return true;
+        }
+        myLookups.increment();
+        long[] bits = myBits.get(space);
+        int h1 = href.hashCode();
+        int h2 = mix(h1);
+        int size = bits.length * 64;
+        for ( int i = 0; i < HASHES; ++i ) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            if ( (bits[bit >>> 6] & (1L << bit)) == 0 ) {
+                myMisses.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record the result of a lookup the filter let through.
+     */
+    void recordResult(boolean found)
+    {
+        if ( ! myEnabled ) {
+            return;
+        }
+        if ( found ) {
+            myHits.increment();
+        }
+        else {
+            myFalsePositives.increment();
+        }
+    }
+
+    /**
+     * The expected rate of false positives, given the number of URIs.
+     *
+     * @return the expected false positive rate, between 0 and 1.
+     */
+    public double getExpectedFalsePositiveRate()
+    {
+        if ( ! myEnabled ) {
+            return 1.0;
+        }
+        double rate = 0.0;
+        for ( Map.Entry<URISpace, long[]> e : myBits.entrySet() ) {
+            rate = Math.max(rate, expectedRate(e.getValue().length * 64, e.getKey()));
+        }
+        return rate;
+    }
+
+    /**
+     * The observed rate of false positives, among the URIs not in the repository.
+     *
+     * @return the observed false positive rate, between 0 and 1 (0 if no
+     * such URI has been looked up yet).
+     */
+    public double getFalsePositiveRate()
+    {
+        long fp = myFalsePositives.sum();
+        long negatives = fp + myMisses.sum();
+        return negatives == 0 ? 0.0 : (double) fp / negatives;
+    }
+
+    /**
+     * @return the number of URIs looked up in the filter.
+     */
+    public long getLookupCount()
+    {
+        return myLookups.sum();
+    }
+
+    /**
+     * @return the number of lookups answered right away by the filter (for sure not there).
+     */
+    public long getMissCount()
+    {
+        return myMisses.sum();
+    }
+
+    /**
+     * @return the number of lookups let through by the filter, and actually resolved.
+     */
+    public long getHitCount()
+    {
+        return myHits.sum();
+    }
+
+    /**
+     * @return the number of lookups let through by the filter, but not resolved.
+     */
+    public long getFalsePositiveCount()
+    {
+        return myFalsePositives.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "URI filter (" + myCount + " URIs, enabled: " + myEnabled + ", lookups: " + getLookupCount()
+                + ", misses: " + getMissCount() + ", hits: " + getHitCount() + ", false positives: "
+                + getFalsePositiveCount() + ")";
+    }
+
+    private double expectedRate(int bits, URISpace space)
+    {
+        int n = countSet(myBits.get(space));
+        // with the actual ratio of bits set, the probability all k bits are set
+        return Math.pow((double) n / bits, HASHES);
+    }
+
+    private static int countSet(long[] bits)
+    {
+        int n = 0;
+        for ( long b : bits ) {
+            n += Long.bitCount(b);
+        }
+        return n;
+    }
+
+    /**
+     * The number of bits for n URIs, a multiple of 64 (about 1% false positives).
+     */
+    private static int bitCount(int n)
+    {
+        long bits = Math.max(64L, (long) n * BITS_PER_URI);
+        bits = (bits + 63) / 64 * 64;
+        return (int) Math.min(bits, Integer.MAX_VALUE - 63);
+    }
+
+    private static void add(long[] bits, String href)
+    {
+        int h1 = href.hashCode();
+        int h2 = mix(h1);
+        int size = bits.length * 64;
+        for ( int i = 0; i < HASHES; ++i ) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * A second hash, derived from the first one (the murmur3 finalizer).
+     */
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+
+    /** The bits, per space. */
+    private final Map<URISpace, long[]> myBits = new EnumMap<>(URISpace.class);
+    /** False if some URIs cannot be listed. */
+    private final boolean myEnabled;
+    /** The number of URIs in the filter. */
+    private final int myCount;
+    private final LongAdder myLookups = new LongAdder();
+    private final LongAdder myMisses = new LongAdder();
+    private final LongAdder myHits = new LongAdder();
+    private final LongAdder myFalsePositives = new LongAdder();
+    /** The number of hash functions. */
+    private static final int HASHES = 7;
+    /** The number of bits per URI. */
+    private static final int BITS_PER_URI = 10;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(UriFilter.class);
+}
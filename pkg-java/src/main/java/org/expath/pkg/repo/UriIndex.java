@@ -0,0 +1,240 @@
+package org.expath.pkg.repo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.transform.Source;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the public URIs of all the packages in a repository.
+ *
+ * Map each pair (URI space, href) to the packages declaring it, either in
+ * their descriptor or through an extension (see {@link PackageInfo}), so
+ * resolving an href is a single hash lookup instead of asking every package.
+ *
+ * For a repository, the packages indexed are the latest version of each
+ * package, then their dependencies (their transitive closures, see {@link
+ * Package#getClosure(RepositorySnapshot)}), each package once.  An older
+ * version is only indexed if a package depends on it, so an href dropped from
+ * the latest version of a package does not resolve to an older one.
+ *
+ * The same structure is used for the transitive closure of a single package
+ * (see {@link Package#resolve(String, URISpace, boolean)}), then the order is
+ * the order of the closure.
+ *
+ * Packages with an extension info not able to list its URIs (see {@link
+ * PackageInfo#getPublicUris(URISpace)}) cannot be indexed.  They are kept
+ * aside and searched on each lookup, in their place in the precedence order.
+ *
+ * An index is never modified once built.  When the set of packages changes,
+ * a new index is built.
+ */
+final class UriIndex
+{
+    UriIndex(RepositorySnapshot snapshot)
+    {
+        this(precedence(snapshot));
+    }
+
+    /**
+     * Index packages in the given precedence order.
+     */
+    UriIndex(List<Package> packages)
+    {
+        for ( Package p : packages ) {
+            index(p);
+        }
+        LOG.debug("URI index built: {} indexed package(s), {} non-indexed",
+                packages.size() - myUnindexed.size(), myUnindexed.size());
+    }
+
+    /**
+     * The latest version of each package, then the packages in their closures.
+     */
+    private static List<Package> precedence(RepositorySnapshot snapshot)
+    {
+        Set<Package> packages = Collections.newSetFromMap(new IdentityHashMap<Package, Boolean>());
+        List<Package> ordered = new ArrayList<>();
+        for ( Packages pp : snapshot.listPackages() ) {
+            packages.add(pp.latest());
+            ordered.add(pp.latest());
+        }
+        for ( Package latest : new ArrayList<>(ordered) ) {
+            List<Package> closure;
+            try {
+                closure = latest.getClosure(snapshot);
+            }
+            catch ( PackageException ex ) {
+                LOG.warn("Error resolving the dependencies of " + latest.getName() + ", index it alone", ex);
+                closure = Collections.singletonList(latest);
+            }
+            for ( Package p : closure ) {
+                if ( packages.add(p) ) {
+                    ordered.add(p);
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Resolve the href in the packages of the index, or return null.
+     *
+     * Only look into the packages themselves, not in their dependencies: the
+     * dependencies are in the index anyway.
+     */
+    Source resolve(String href, URISpace space)
+            throws PackageException
+    {
+        List<Package> owners = lookup(href, space);
+        if ( myUnindexed.isEmpty() ) {
+            for ( Package p : owners ) {
+                Source src = p.resolve(href, space, false);
+                if ( src != null ) {
+                    return src;
+                }
+            }
+            return null;
+        }
+        // merge the owners and the non-indexed packages, both in precedence order
+        int i = 0;
+        int j = 0;
+        while ( i < owners.size() || j < myUnindexed.size() ) {
+            Package p;
+            if ( j == myUnindexed.size()
+                    || ( i < owners.size() && position(owners.get(i)) < position(myUnindexed.get(j)) ) ) {
+                p = owners.get(i++);
+            }
+            else {
+                p = myUnindexed.get(j++);
+            }
+            Source src = p.resolve(href, space, false);
+            if ( src != null ) {
+                return src;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The packages declaring the href in that space, in precedence order.
+     *
+     * Does not include the non-indexed packages.
+     */
+    List<Package> lookup(String href, URISpace space)
+    {
+        Map<String, List<Package>> map = myIndex.get(space);
+        if ( map == null ) {
+            return Collections.emptyList();
+        }
+        List<Package> owners = map.get(href);
+        if ( owners == null ) {
+            return Collections.emptyList();
+        }
+        return owners;
+    }
+
+    /**
+     * All the hrefs in the index, for a space.
+     *
+     * Does not include the URIs of the non-indexed packages.
+     */
+    Collection<String> getHrefs(URISpace space)
+    {
+        Map<String, List<Package>> map = myIndex.get(space);
+        if ( map == null ) {
+            return Collections.emptySet();
+        }
+        return map.keySet();
+    }
+
+    /**
+     * Whether the package is in the index (indexed or not).
+     */
+    boolean contains(Package pkg)
+    {
+        return myPositions.containsKey(pkg);
+    }
+
+    /**
+     * The packages which could not be indexed, searched on every lookup.
+     */
+    List<Package> getUnindexed()
+    {
+        return myUnindexed;
+    }
+
+    private int position(Package pkg)
+    {
+        return myPositions.get(pkg);
+    }
+
+    private void index(Package pkg)
+    {
+        myPositions.put(pkg, myPositions.size());
+        Collection<PackageInfo> infos;
+        try {
+            infos = pkg.getInfos();
+        }
+        catch ( Package.LoadException ex ) {
+            // already logged when loading, it cannot resolve anything
+            LOG.debug("Package '{}' cannot be loaded, not indexed", pkg.getName());
+            return;
+        }
+        // first check all infos can be indexed, or leave the package aside
+        for ( PackageInfo info : infos ) {
+            for ( URISpace space : URISpace.values() ) {
+                if ( info.getPublicUris(space) == null ) {
+                    LOG.debug("Package '{}', info '{}' cannot be indexed", pkg.getName(), info.getName());
+                    myUnindexed.add(pkg);
+                    return;
+                }
+            }
+        }
+        for ( URISpace space : URISpace.values() ) {
+            for ( PackageInfo info : infos ) {
+                for ( String href : info.getPublicUris(space) ) {
+                    add(space, href, pkg);
+                }
+            }
+            for ( String href : pkg.getPublicUris(space) ) {
+                add(space, href, pkg);
+            }
+        }
+    }
+
+    private void add(URISpace space, String href, Package pkg)
+    {
+        Map<String, List<Package>> map = myIndex.get(space);
+        if ( map == null ) {
+            map = new HashMap<>();
+            myIndex.put(space, map);
+        }
+        List<Package> owners = map.get(href);
+        if ( owners == null ) {
+            owners = new ArrayList<>(1);
+            map.put(href, owners);
+        }
+        // a package can declare the same href in its descriptor and in an info
+        if ( ! owners.contains(pkg) ) {
+            owners.add(pkg);
+        }
+    }
+
+    /** The packages declaring each href, by space. */
+    private final Map<URISpace, Map<String, List<Package>>> myIndex = new EnumMap<>(URISpace.class);
+    /** The position of each package in the precedence order. */
+    private final Map<Package, Integer> myPositions = new IdentityHashMap<>();
+    /** The packages which cannot be indexed. */
+    private final List<Package> myUnindexed = new ArrayList<>();
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(UriIndex.class);
+}
@@ -0,0 +1,237 @@
+package org.expath.pkg.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local cache of the XAR files downloaded, by URI.
+ *
+ * Each archive is stored as {@code [key].xar}, with its {@code ETag},
+ * {@code Last-Modified} and SHA-256 in {@code [key].properties}, the key being
+ * the SHA-256 of the URI.  An archive is in the cache only if its SHA-256 is
+ * the one in its properties.  A cached archive is revalidated with a conditional GET, and is
+ * downloaded again only if it changed on the server (if it does not answer
+ * 304).  In offline mode, the cached archives are used as they are, and the
+ * server is never contacted.
+ *
+ * The properties are deleted before the archive is replaced, and written
+ * once it is complete.  The files are written to a temporary file, then
+ * moved in place.  A URI is fetched by one process at a time, with a file
+ * lock on {@code [key].lock}, so several processes can share the same cache
+ * directory.
+ *
+ * See {@link XarUriSource#XarUriSource(URI, XarCache)}.
+ */
+@ThreadSafe
+public class XarCache
+{
+    public XarCache(Path dir)
+            throws PackageException
+    {
+        FileHelper.ensureDir(dir);
+        myDir = dir;
+    }
+
+    /**
+     * Never contact the servers, only use the archives already in the cache.
+     *
+     * @param offline true for the offline mode (false by default)
+     */
+    public void setOffline(boolean offline)
+    {
+        myOffline = offline;
+    }
+
+    public boolean isOffline()
+    {
+        return myOffline;
+    }
+
+    public Path getDirectory()
+    {
+        return myDir;
+    }
+
+    /**
+     * The downloader used to fetch the archives.
+     *
+     * @return the downloader, to configure it.
+     */
+    public HttpDownloader getDownloader()
+    {
+        return myDownloader;
+    }
+
+    /**
+     * The archive at a URI, downloaded or revalidated if needed.
+     *
+     * @param uri the URI of the archive
+     *
+     * @return the archive in the cache.
+     *
+     * @throws IOException if the archive cannot be downloaded, or if it is not
+     * in the cache in offline mode
+     */
+    public Path fetch(URI uri)
+            throws IOException
+    {
+        String key = ObjectStore.toHex(ObjectStore.newDigest().digest(uri.toString().getBytes(StandardCharsets.UTF_8)));
+        Path xar = myDir.resolve(key + ".xar");
+        Path meta = myDir.resolve(key + ".properties");
+        // one download at a time per URI, in this process, then among processes
+        Object lock = myLocks.computeIfAbsent(key, k -> new Object());
+        synchronized ( lock ) {
+            try ( FileChannel ch = FileChannel.open(myDir.resolve(key + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE) ) {
+                // released when the channel is closed
+                ch.lock();
+                return fetch(uri, xar, meta);
+            }
+        }
+    }
+
+    private Path fetch(URI uri, Path xar, Path meta)
+            throws IOException
+    {
+        Properties validators = readMeta(meta);
+        boolean cached = isIntact(xar, validators);
+        if ( myOffline ) {
+            if ( ! cached ) {
+                throw new IOException("Not in the cache, and offline: " + uri);
+            }
+            LOG.debug("Offline, use the cached archive: {}", uri);
+            return xar;
+        }
+        URLConnection connection = uri.toURL().openConnection();
+        if ( connection instanceof HttpURLConnection ) {
+            HttpURLConnection hc = (HttpURLConnection) connection;
+            String etag = validators.getProperty(ETAG);
+            String modified = validators.getProperty(LAST_MODIFIED);
+            if ( cached && etag != null ) {
+                hc.setRequestProperty("If-None-Match", etag);
+            }
+            if ( cached && modified != null ) {
+                hc.setRequestProperty("If-Modified-Since", modified);
+            }
+            int code = hc.getResponseCode();
+            if ( code == HttpURLConnection.HTTP_NOT_MODIFIED && cached ) {
+                hc.disconnect();
+                LOG.debug("Not modified, use the cached archive: {}", uri);
+                return xar;
+            }
+            HttpDownloader.checkStatus(uri, hc);
+        }
+        else {
+            connection.connect();
+        }
+        String etag = connection.getHeaderField("ETag");
+        String modified = connection.getHeaderField("Last-Modified");
+        // the archive is not valid anymore, until it is completely replaced
+        Files.deleteIfExists(meta);
+        // an interrupted download is resumed from [key].xar.part, if the archive did not change
+        MessageDigest digest = ObjectStore.newDigest();
+        myDownloader.download(uri, connection, xar, digest);
+        writeMeta(meta, uri, etag, modified, ObjectStore.toHex(digest.digest()));
+        LOG.debug("Archive downloaded to the cache: {}", uri);
+        return xar;
+    }
+
+    /**
+     * Whether the archive is in the cache, complete, with the SHA-256 of its properties.
+     */
+    private boolean isIntact(Path xar, Properties meta)
+            throws IOException
+    {
+        String expected = meta.getProperty(SHA256);
+        if ( expected == null || ! Files.exists(xar) ) {
+            return false;
+        }
+        if ( ! expected.equalsIgnoreCase(ObjectStore.digest(xar)) ) {
+            LOG.info("Cached archive does not match its digest, ignore it: {}", xar);
+            return false;
+        }
+        return true;
+    }
+
+    private Properties readMeta(Path meta)
+            throws IOException
+    {
+        Properties props = new Properties();
+        if ( Files.exists(meta) ) {
+            try ( InputStream in = Files.newInputStream(meta) ) {
+                props.load(in);
+            }
+        }
+        return props;
+    }
+
+    private void writeMeta(Path meta, URI uri, @Nullable String etag, @Nullable String modified, String sha256)
+            throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty("uri", uri.toString());
+        props.setProperty(SHA256, sha256);
+        setIfNotNull(props, ETAG, etag);
+        setIfNotNull(props, LAST_MODIFIED, modified);
+        Path tmp = Files.createTempFile(myDir, "meta-", ".tmp");
+        try {
+            try ( OutputStream out = Files.newOutputStream(tmp) ) {
+                props.store(out, null);
+            }
+            move(tmp, meta);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void setIfNotNull(Properties props, String name, @Nullable String value)
+    {
+        if ( value != null ) {
+            props.setProperty(name, value);
+        }
+    }
+
+    private static void move(Path from, Path to)
+            throws IOException
+    {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch ( AtomicMoveNotSupportedException ex ) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** The cache directory. */
+    private final Path myDir;
+    /** Download the archives, with range requests when possible. */
+    private final HttpDownloader myDownloader = new HttpDownloader();
+    /** Use only the cached archives? */
+    private volatile boolean myOffline = false;
+    /** A lock per key, to download a URI once at a time. */
+    private final ConcurrentMap<String, Object> myLocks = new ConcurrentHashMap<>();
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private static final String SHA256 = "sha256";
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(XarCache.class);
+}
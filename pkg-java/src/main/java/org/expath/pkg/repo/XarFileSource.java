@@ -28,4 +28,9 @@ public class XarFileSource implements XarSource {
     public InputStream newInputStream() throws IOException {
         return Files.newInputStream(xarFile);
     }
+
+    @Override
+    public Path fetchLocalFile() {
+        return xarFile;
+    }
 }
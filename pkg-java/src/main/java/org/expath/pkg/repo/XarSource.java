@@ -3,9 +3,56 @@ package org.expath.pkg.repo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import javax.annotation.Nullable;
 
 public interface XarSource {
     URI getURI();
     boolean isValid();
     InputStream newInputStream() throws IOException;
+
+    /**
+     * The archive as a local file, if it is one, or if it can be fetched to one.
+     *
+     * A local file can be read with random access (e.g. to read the package
+     * descriptor without reading the whole archive).  Other sources are read
+     * from {@link #newInputStream()}.  Some sources fetch the archive the
+     * first time (e.g. to a download cache), so this might access the network.
+     *
+     * @return the local file, or null if the source is not a local file.
+     *
+     * @throws IOException if the archive cannot be fetched
+     */
+    default Path fetchLocalFile() throws IOException {
+        return null;
+    }
+
+    /**
+     * Copy the archive to a file.
+     *
+     * @param file the destination file, replaced if it exists
+     *
+     * @throws IOException if an error occurs
+     */
+    default void copyTo(Path file) throws IOException {
+        copyTo(file, null);
+    }
+
+    /**
+     * Copy the archive to a file, and compute its digest on the way.
+     *
+     * @param file the destination file, replaced if it exists
+     * @param digest updated with the content of the archive, if not null
+     *
+     * @throws IOException if an error occurs
+     */
+    default void copyTo(Path file, @Nullable MessageDigest digest) throws IOException {
+        try (final InputStream in = newInputStream()) {
+            Files.copy(digest == null ? in : new DigestInputStream(in, digest), file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }
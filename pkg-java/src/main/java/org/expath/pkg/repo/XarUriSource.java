@@ -5,13 +5,32 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import javax.annotation.Nullable;
 
 public class XarUriSource implements XarSource {
 
     private final URI uri;
+    @Nullable private final XarCache cache;
 
     public XarUriSource(final URI uri) {
+        this(uri, null);
+    }
+
+    /**
+     * A source going through a download cache.
+     *
+     * The archive is fetched from the cache (see {@link XarCache#fetch(URI)})
+     * the first time it is accessed, and then read from the cached file.
+     *
+     * @param uri the URI of the archive
+     * @param cache the download cache, or null to download it each time
+     */
+    public XarUriSource(final URI uri, @Nullable final XarCache cache) {
         this.uri = uri;
+        this.cache = cache;
     }
 
     @Override
@@ -24,8 +43,40 @@ public class XarUriSource implements XarSource {
         return true;
     }
 
+    /**
+     * The archive in the cache, fetched if not done yet.
+     *
+     * @return the cached archive, or null if there is no cache.
+     */
+    @Override
+    public Path fetchLocalFile() throws IOException {
+        return cache == null ? null : fetch();
+    }
+
+    private synchronized Path fetch() throws IOException {
+        if (cached == null) {
+            cached = cache.fetch(uri);
+        }
+        return cached;
+    }
+
+    /**
+     * Download the archive to a file, with parallel range requests if possible (see {@link HttpDownloader}).
+     */
+    @Override
+    public void copyTo(final Path file, @Nullable final MessageDigest digest) throws IOException {
+        if (cache != null) {
+            XarSource.super.copyTo(file, digest);
+        } else {
+            DOWNLOADER.download(uri, file, digest);
+        }
+    }
+
     @Override
     public InputStream newInputStream() throws IOException {
+        if (cache != null) {
+            return Files.newInputStream(fetch());
+        }
         URLConnection connection = uri.toURL().openConnection();
         connection.connect();
         if ( connection instanceof HttpURLConnection) {
@@ -41,4 +92,7 @@ public class XarUriSource implements XarSource {
         }
         return connection.getInputStream();
     }
+
+    @Nullable private Path cached;
+    private static final HttpDownloader DOWNLOADER = new HttpDownloader();
 }
@@ -10,12 +10,37 @@
 
 package org.expath.pkg.repo;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Helper classes providing ZIP file services.
@@ -47,21 +72,279 @@ class ZipHelper
     }
 
     /**
-     * Unzip a ZIP archive file to a destination directory.
+     * Open the archive for random access.
+     *
+     * A local file is opened in place.  Any other source is first copied to
+     * {@code buffer_dir} (which must then not be null).
+     *
+     * @param buffer_dir
+     *         Where to copy the archive if it is not a local file.
+     */
+    public ZipFile openZipFile(Path buffer_dir)
+            throws IOException
+    {
+        return openZipFile(buffer_dir, null);
+    }
+
+    /**
+     * Open the archive for random access, and compute its digest.
+     *
+     * A non-local source is first copied (see {@link XarSource#copyTo(Path, MessageDigest)},
+     * e.g. downloaded with parallel range requests), and the digest is computed
+     * during the copy.  For a local file, the digest is computed by reading the
+     * file once sequentially, which also brings it in the file system cache for
+     * the extraction.
+     *
+     * @param buffer_dir
+     *         Where to copy the archive if it is not a local file.
+     *
+     * @param digest
+     *         Updated with the content of the archive, if not null.
+     */
+    public ZipFile openZipFile(Path buffer_dir, @Nullable MessageDigest digest)
+            throws IOException
+    {
+        Path file = myXarSource.fetchLocalFile();
+        if ( file == null ) {
+            file = buffer_dir.resolve("package.xar");
+            myXarSource.copyTo(file, digest);
+        }
+        else if ( digest != null ) {
+            try ( InputStream in = Files.newInputStream(file) ) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ( (n = in.read(buf)) >= 0 ) {
+                    digest.update(buf, 0, n);
+                }
+            }
+        }
+        return new ZipFile(file.toFile());
+    }
+
+    /**
+     * Unzip an archive opened with {@link #openZipFile(Path)} to a destination directory.
+     *
+     * @param zip
+     *         The archive.
      *
      * @param dest_dir
      *         The destination directory for the ZIP content.  It is created if
-     *         it does not exist yet (but then its parent directory must exist.)
+     *         it does not exist yet.
      */
-    public void unzip(Path dest_dir)
+    public static Stats unzip(ZipFile zip, Path dest_dir)
+            throws IOException
+    {
+        return unzip(zip, dest_dir, 1);
+    }
+
+    /**
+     * Unzip an archive opened with {@link #openZipFile(Path)}, with several threads.
+     *
+     * The directories are all created first, once each.  Then the entries are
+     * extracted by a pool of {@code workers} threads, created for this archive
+     * only.  With 1 worker (or less), the entries are extracted one after the
+     * other in the calling thread.
+     *
+     * @param zip
+     *         The archive.
+     *
+     * @param dest_dir
+     *         The destination directory for the ZIP content.  It is created if
+     *         it does not exist yet.
+     *
+     * @param workers
+     *         The number of threads extracting the entries.
+     *
+     * @return
+     *         The figures of the extraction.
+     */
+    public static Stats unzip(ZipFile zip, Path dest_dir, int workers)
+            throws IOException
+    {
+        return unzip(zip, dest_dir, workers, false);
+    }
+
+    /**
+     * Unzip an archive, with several threads, computing the SHA-256 of each file.
+     *
+     * @param zip
+     *         The archive.
+     *
+     * @param dest_dir
+     *         The destination directory for the ZIP content.
+     *
+     * @param workers
+     *         The number of threads extracting the entries.
+     *
+     * @param digests
+     *         Whether to compute the SHA-256 of each file, while extracting it
+     *         (see {@link Stats#getDigests()}).
+     *
+     * @return
+     *         The figures of the extraction.
+     */
+    public static Stats unzip(final ZipFile zip, final Path dest_dir, int workers, final boolean digests)
+            throws IOException
+    {
+        final long start = System.nanoTime();
+        ensureDestDir(dest_dir);
+
+        // the files, and their parent dirs, created once each
+        final List<ZipEntry> files = new ArrayList<>();
+        final Map<ZipEntry, Path> dests = new HashMap<>();
+        final Set<Path> dirs = new TreeSet<>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while ( entries.hasMoreElements() ) {
+            ZipEntry entry = entries.nextElement();
+            if ( entry.isDirectory() ) {
+                dirs.add(entryFile(dest_dir, entry));
+            }
+            else {
+                Path dest = entryFile(dest_dir, entry);
+                files.add(entry);
+                dests.put(entry, dest);
+                dirs.add(dest.getParent());
+            }
+        }
+        for ( Path dir : dirs ) {
+            Files.createDirectories(dir);
+        }
+
+        final LongAdder bytes = new LongAdder();
+        final Map<String, String> sums = digests ? new ConcurrentHashMap<>() : null;
+        workers = Math.max(1, Math.min(workers, files.size()));
+        if ( workers == 1 ) {
+            for ( ZipEntry entry : files ) {
+                bytes.add(extract(zip, entry, dests.get(entry), sums));
+            }
+        }
+        else {
+            ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+                Thread t = new Thread(r, "expath-unzip");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<?>> tasks = new ArrayList<>(files.size());
+                for ( final ZipEntry entry : files ) {
+                    tasks.add(pool.submit(() -> {
+                        bytes.add(extract(zip, entry, dests.get(entry), sums));
+                        return null;
+                    }));
+                }
+                for ( Future<?> task : tasks ) {
+                    task.get();
+                }
+            }
+            catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while unziping to " + dest_dir);
+            }
+            catch ( ExecutionException ex ) {
+                Throwable cause = ex.getCause();
+                if ( cause instanceof IOException ) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Error unziping to " + dest_dir, cause);
+            }
+            finally {
+                pool.shutdownNow();
+            }
+        }
+
+        Stats stats = new Stats(files.size(), bytes.sum(), System.nanoTime() - start, workers, sums);
+        LOG.debug("Unziped to {}: {}", dest_dir, stats);
+        return stats;
+    }
+
+    /**
+     * Read all the files of an archive in memory.
+     *
+     * @param zip
+     *         The archive.
+     *
+     * @return
+     *         The content of each file, by entry name, in the order of the archive.
+     */
+    public static Map<String, byte[]> readEntries(ZipFile zip)
+            throws IOException
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        Enumeration<? extends ZipEntry> all = zip.entries();
+        while ( all.hasMoreElements() ) {
+            ZipEntry entry = all.nextElement();
+            if ( entry.isDirectory() ) {
+                continue;
+            }
+            // check the name as for an extraction
+            entryFile(Paths.get("package"), entry);
+            long size = entry.getSize();
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(size < 0 ? BUFFER_SIZE : (int) size);
+            try ( InputStream in = zip.getInputStream(entry) ) {
+                byte[] bytes = new byte[BUFFER_SIZE];
+                int n;
+                while ( (n = in.read(bytes)) >= 0 ) {
+                    buf.write(bytes, 0, n);
+                }
+            }
+            entries.put(entry.getName(), buf.toByteArray());
+        }
+        return entries;
+    }
+
+    private static long extract(ZipFile zip, ZipEntry entry, Path dest, @Nullable Map<String, String> sums)
+            throws IOException
+    {
+        MessageDigest digest = sums == null ? null : ObjectStore.newDigest();
+        try ( InputStream in = digestStream(zip.getInputStream(entry), digest) ) {
+            long size = Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
+            if ( digest != null ) {
+                sums.put(entry.getName(), ObjectStore.toHex(digest.digest()));
+            }
+            return size;
+        }
+    }
+
+    private static InputStream digestStream(InputStream in, @Nullable MessageDigest digest)
+    {
+        return digest == null ? in : new DigestInputStream(in, digest);
+    }
+
+    /**
+     * The destination file of an entry, which must be within the destination directory.
+     */
+    static Path entryFile(Path dest_dir, ZipEntry entry)
+            throws IOException
+    {
+        Path dest = dest_dir.resolve(entry.getName()).normalize();
+        if ( ! dest.startsWith(dest_dir.normalize()) ) {
+            throw new IOException("Archive entry outside of the package: " + entry.getName());
+        }
+        return dest;
+    }
+
+    private static void ensureDestDir(Path dest_dir)
             throws IOException
     {
-        // preconditions
         if (!Files.exists(dest_dir)) {
             Files.createDirectories(dest_dir);
         } else if ( !Files.isDirectory(dest_dir) ) {
             throw new IOException("Destination is not a directory: " + dest_dir);
         }
+    }
+
+    /**
+     * Unzip a ZIP archive file to a destination directory.
+     *
+     * @param dest_dir
+     *         The destination directory for the ZIP content.  It is created if
+     *         it does not exist yet (but then its parent directory must exist.)
+     */
+    public void unzip(Path dest_dir)
+            throws IOException
+    {
+        // preconditions
+        ensureDestDir(dest_dir);
 
         // loop over entries
         try (final ZipInputStream zis = new ZipInputStream(myXarSource.newInputStream())) {
@@ -70,7 +353,7 @@ class ZipHelper
             while ((entry = zis.getNextEntry()) != null) {
                 if ( ! entry.isDirectory() ) {
                     // destination file
-                    Path dest = dest_dir.resolve(entry.getName());
+                    Path dest = entryFile(dest_dir, entry);
                     // create parent dir if needed
                     Path parent = dest.getParent();
                     if ( ! Files.exists(parent) ) {
@@ -84,7 +367,83 @@ class ZipHelper
         }
     }
 
+    /**
+     * The figures of an extraction, to tune the number of workers.
+     */
+    static class Stats
+    {
+        Stats(int files, long bytes, long nanos, int workers, @Nullable Map<String, String> digests)
+        {
+            myFiles = files;
+            myBytes = bytes;
+            myNanos = nanos;
+            myWorkers = workers;
+            myDigests = digests;
+        }
+
+        public int getFiles()
+        {
+            return myFiles;
+        }
+
+        public long getBytes()
+        {
+            return myBytes;
+        }
+
+        public long getMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(myNanos);
+        }
+
+        public int getWorkers()
+        {
+            return myWorkers;
+        }
+
+        /**
+         * @return the SHA-256 of each file, by entry name, or null if not computed.
+         */
+        @Nullable
+        public Map<String, String> getDigests()
+        {
+            return myDigests;
+        }
+
+        /**
+         * @return the uncompressed bytes written per second.
+         */
+        public double getBytesPerSecond()
+        {
+            return myNanos == 0 ? 0.0 : myBytes * 1e9 / myNanos;
+        }
+
+        /**
+         * @return the files written per second.
+         */
+        public double getFilesPerSecond()
+        {
+            return myNanos == 0 ? 0.0 : myFiles * 1e9 / myNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d files, %d bytes in %d ms, %d worker(s), %.1f MB/s, %.0f files/s",
+                    myFiles, myBytes, getMillis(), myWorkers, getBytesPerSecond() / 1e6, getFilesPerSecond());
+        }
+
+        private final int myFiles;
+        private final long myBytes;
+        private final long myNanos;
+        private final int myWorkers;
+        @Nullable private final Map<String, String> myDigests;
+    }
+
     private XarSource myXarSource;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ZipHelper.class);
 }
 
 
@@ -0,0 +1,487 @@
+package org.expath.pkg.repo;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.xml.transform.stream.StreamSource;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.expath.pkg.repo.tools.PackagesTxtFile;
+import org.expath.pkg.repo.tools.PackagesXmlFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storage keeping each package as its original XAR file, on the file system.
+ *
+ * The repository directory contains one file {@code [key].xar} per package,
+ * instead of a package directory, and the same private dir {@code .expath-pkg/}
+ * as {@link FileSystemStorage} (with the package lists, in the same formats,
+ * where the "directory" of a package is its key).  Installing a package is
+ * then a single file copy, and removing it a single delete.
+ *
+ * Resources and components are read straight from the archives.  Each archive
+ * is opened once (its central directory is read then), and shared by all the
+ * resolvers of the package.  The system IDs of the sources are {@code jar:}
+ * URLs, so relative references within a package can be resolved as usual.
+ *
+ * It does not support {@link PackageResolver#getContentDirBaseURI()}, and
+ * extensions requiring actual files (e.g. to put JAR files on the classpath,
+ * using {@link FileSystemStorage.FileSystemResolver}) cannot be used with it.
+ */
+@ThreadSafe
+public class ZipStorage
+        extends Storage
+{
+    public ZipStorage(Path root)
+            throws PackageException
+    {
+        if ( root == null ) {
+            throw new NullPointerException("The repository root directory is null");
+        }
+        if ( ! Files.isDirectory(root) ) {
+            throw new PackageException("The repository root directory is not a directory: " + root);
+        }
+        myRoot = root;
+        myPrivate = root.resolve(".expath-pkg");
+        FileHelper.ensureDir(myPrivate);
+        myXmlFile = new PackagesXmlFile(myPrivate.resolve("packages.xml"));
+        myTxtFile = new PackagesTxtFile(myPrivate.resolve("packages.txt"));
+    }
+
+    public Path getRootDirectory()
+    {
+        return myRoot;
+    }
+
+    /**
+     * Close all the archives opened so far.
+     *
+     * They are opened again when needed.  The storage can still be used
+     * meanwhile: an archive is actually closed once all the streams being
+     * read from it are closed.
+     */
+    public void close()
+    {
+        for ( String key : myArchives.keySet() ) {
+            closeArchive(key);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return false;
+    }
+
+    @Override
+    public PackageResolver makePackageResolver(String rsrc_name, String abbrev)
+            throws PackageException
+    {
+        return new ZipResolver(rsrc_name, abbrev);
+    }
+
+    @Override
+    public Set<String> listPackageDirectories()
+            throws PackageException
+    {
+        return myTxtFile.parseDirectories();
+    }
+
+    @Override
+    public List<PackageEntry> listPackageEntries()
+            throws PackageException
+    {
+        return myTxtFile.parsePackages();
+    }
+
+    /**
+     * Combine the size and modification time of the archive.
+     */
+    @Override
+    public long getPackageStamp(String rsrc_name)
+            throws PackageException
+    {
+        Path xar = getArchiveFile(rsrc_name);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(xar, BasicFileAttributes.class);
+            long stamp = attrs.size() * 31 + attrs.lastModifiedTime().toMillis();
+            return stamp == UNKNOWN_STAMP ? 0 : stamp;
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the package archive: " + xar, ex);
+        }
+    }
+
+    @Override
+    public Path getIndexFile()
+    {
+        return myPrivate.resolve("packages.idx");
+    }
+
+    @Override
+    public void beforeInstall(boolean force, UserInteractionStrategy interact)
+            throws PackageException
+    {
+        // nothing
+    }
+
+    @Override
+    public Path makeTempDir(String prefix)
+            throws PackageException
+    {
+        return FileHelper.makeTempDir(prefix, myPrivate);
+    }
+
+    @Override
+    public boolean packageKeyExists(String key)
+            throws PackageException
+    {
+        return Files.exists(getArchiveFile(key));
+    }
+
+    @Override
+    public boolean storesArchives()
+    {
+        return true;
+    }
+
+    @Override
+    public void storeInstallArchive(Path xar, String key, Package pkg)
+            throws PackageException
+    {
+        Path dest = getArchiveFile(key);
+        try {
+            Files.move(xar, dest, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error storing the package archive: " + dest, ex);
+        }
+        getResolver(pkg).setResourceName(key);
+    }
+
+    /**
+     * Packages are always stored as archives, see {@link #storeInstallArchive(Path, String, Package)}.
+     */
+    @Override
+    public void storeInstallDir(Path dir, String key, Package pkg)
+            throws PackageException
+    {
+        throw new PackageException("ZIP storage stores package archives, not directories: " + dir);
+    }
+
+    @Override
+    public void updatePackageLists(Package pkg)
+            throws PackageException
+    {
+        String key = getResolver(pkg).getResourceName();
+        myXmlFile.addPackage(pkg, key);
+        myTxtFile.addPackage(pkg, key);
+    }
+
+    /**
+     * Update {@code packages.xml} and {@code packages.txt} once for all the packages.
+     */
+    @Override
+    public void updatePackageLists(Collection<Package> pkgs)
+            throws PackageException
+    {
+        Map<String, Package> keys = new LinkedHashMap<>();
+        for ( Package pkg : pkgs ) {
+            keys.put(getResolver(pkg).getResourceName(), pkg);
+        }
+        myXmlFile.addPackages(keys);
+        myTxtFile.addPackages(keys);
+    }
+
+    @Override
+    public void remove(Package pkg)
+            throws PackageException
+    {
+        String key = getResolver(pkg).getResourceName();
+        myXmlFile.removePackageByDir(key);
+        myTxtFile.removePackageByDir(key);
+        closeArchive(key);
+        try {
+            Files.deleteIfExists(getArchiveFile(key));
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error deleting the package archive: " + getArchiveFile(key), ex);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ZIP storage in " + myRoot.toAbsolutePath();
+    }
+
+    private Path getArchiveFile(String key)
+    {
+        return myRoot.resolve(key + ".xar");
+    }
+
+    /**
+     * The archive of a package, opened the first time it is used.
+     *
+     * It must be released with {@link Archive#unacquire()} once used.
+     */
+    private Archive acquireArchive(String key)
+            throws PackageException
+    {
+        while ( true ) {
+            Archive archive = myArchives.get(key);
+            if ( archive == null ) {
+                archive = openArchive(key);
+            }
+            if ( archive.acquire() ) {
+                return archive;
+            }
+            // closed concurrently, open it again
+            myArchives.remove(key, archive);
+        }
+    }
+
+    private Archive openArchive(String key)
+            throws PackageException
+    {
+        Path xar = getArchiveFile(key);
+        ZipFile zip;
+        try {
+            zip = new ZipFile(xar.toFile());
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error opening the package archive: " + xar, ex);
+        }
+        Archive archive = new Archive(zip);
+        Archive other = myArchives.putIfAbsent(key, archive);
+        if ( other != null ) {
+            // opened concurrently
+            closeQuietly(zip);
+            return other;
+        }
+        LOG.debug("Package archive opened: {}", xar);
+        return archive;
+    }
+
+    private void closeArchive(String key)
+    {
+        Archive archive = myArchives.remove(key);
+        if ( archive != null ) {
+            archive.close();
+        }
+    }
+
+    private static void closeQuietly(ZipFile zip)
+    {
+        try {
+            zip.close();
+        }
+        catch ( IOException ex ) {
+            LOG.warn("Error closing the package archive: " + zip.getName(), ex);
+        }
+    }
+
+    private ZipResolver getResolver(Package pkg)
+            throws PackageException
+    {
+        Storage.PackageResolver resolver = pkg.getResolver();
+        if ( ! (resolver instanceof ZipResolver) ) {
+            throw new PackageException("The package has not been installed in this storage.");
+        }
+        return (ZipResolver) resolver;
+    }
+
+    /** The root dir of the repo. */
+    private final Path myRoot;
+    /** The private area, {@code [repo]/.expath-pkg/}. */
+    private final Path myPrivate;
+    /** The package list, XML format, in [repo]/.expath-pkg/packages.xml. */
+    private final PackagesXmlFile myXmlFile;
+    /** The package list, text format, in [repo]/.expath-pkg/packages.txt. */
+    private final PackagesTxtFile myTxtFile;
+    /** The archives opened so far, by package key. */
+    private final ConcurrentMap<String, Archive> myArchives = new ConcurrentHashMap<>();
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ZipStorage.class);
+
+    /**
+     * An opened archive, closed once no stream is read from it anymore.
+     */
+    private static final class Archive
+    {
+        Archive(ZipFile zip)
+        {
+            myZip = zip;
+        }
+
+        ZipFile getZipFile()
+        {
+            return myZip;
+        }
+
+        /**
+         * Use the archive, until {@link #unacquire()}.
+         *
+         * @return false if the archive has been closed, and must be opened again.
+         */
+        synchronized boolean acquire()
+        {
+            if ( myClosed ) {
+                return false;
+            }
+            ++myUsers;
+            return true;
+        }
+
+        synchronized void unacquire()
+        {
+            --myUsers;
+            if ( myClosed && myUsers == 0 ) {
+                closeQuietly(myZip);
+            }
+        }
+
+        /**
+         * Close the archive, or only once it is not used anymore.
+         */
+        synchronized void close()
+        {
+            myClosed = true;
+            if ( myUsers == 0 ) {
+                closeQuietly(myZip);
+            }
+        }
+
+        /**
+         * Read an entry, the archive being used until the stream is closed.
+         */
+        InputStream open(ZipEntry entry)
+                throws IOException
+        {
+            if ( ! acquire() ) {
+                throw new IOException("The archive has been closed: " + myZip.getName());
+            }
+            try {
+                return new FilterInputStream(myZip.getInputStream(entry)) {
+                    @Override
+                    public void close()
+                            throws IOException
+                    {
+                        if ( ! myDone ) {
+                            myDone = true;
+                            try {
+                                super.close();
+                            }
+                            finally {
+                                unacquire();
+                            }
+                        }
+                    }
+                    private boolean myDone = false;
+                };
+            }
+            catch ( IOException | RuntimeException ex ) {
+                unacquire();
+                throw ex;
+            }
+        }
+
+        private final ZipFile myZip;
+        /** The number of uses in progress, including the streams not closed yet. */
+        @GuardedBy("this") private int myUsers = 0;
+        @GuardedBy("this") private boolean myClosed = false;
+    }
+
+    /**
+     * Resolve resources and components within a package archive.
+     */
+    public class ZipResolver
+            extends EntryResolver
+    {
+        private ZipResolver(String rsrc_name, String abbrev)
+        {
+            super(rsrc_name, abbrev);
+        }
+
+        /**
+         * @return the archive file of the package.
+         */
+        public Path getArchiveFile()
+        {
+            return ZipStorage.this.getArchiveFile(getResourceName());
+        }
+
+        /**
+         * Not supported, a URI within an archive cannot be resolved with {@link URI#resolve(String)}.
+         */
+        @Override
+        public URI getContentDirBaseURI()
+                throws PackageException
+        {
+            throw new PackageException("No content dir base URI in a package archive: " + getArchiveFile());
+        }
+
+        @Override
+        protected StreamSource tryResolve(String entry_name)
+                throws PackageException
+        {
+            Archive archive = acquireArchive(getResourceName());
+            try {
+                ZipEntry entry = archive.getZipFile().getEntry(entry_name);
+                if ( entry == null || entry.isDirectory() ) {
+                    return null;
+                }
+                StreamSource src = new StreamSource(archive.open(entry));
+                src.setSystemId("jar:" + getArchiveFile().toUri() + "!/" + entry_name);
+                return src;
+            }
+            catch ( IOException ex ) {
+                throw new PackageException("Error reading '" + entry_name + "' in: " + getArchiveFile(), ex);
+            }
+            finally {
+                archive.unacquire();
+            }
+        }
+
+        @Override
+        protected boolean hasDir(String dir)
+                throws PackageException
+        {
+            Archive archive = acquireArchive(getResourceName());
+            try {
+                Enumeration<? extends ZipEntry> entries = archive.getZipFile().entries();
+                while ( entries.hasMoreElements() ) {
+                    if ( entries.nextElement().getName().startsWith(dir) ) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            finally {
+                archive.unacquire();
+            }
+        }
+
+        @Override
+        protected String getLocation()
+        {
+            return getArchiveFile().toString();
+        }
+    }
+}
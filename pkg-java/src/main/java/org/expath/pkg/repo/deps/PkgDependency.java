@@ -9,6 +9,8 @@
 
 package org.expath.pkg.repo.deps;
 
+import org.expath.pkg.repo.PackageException;
+
 /**
  * A dependence to another package.
  * 
@@ -22,6 +24,27 @@ public class PkgDependency
         myVersion = version;
     }
 
+    /**
+     * Create a dependency, keeping the version attributes as in the descriptor.
+     *
+     * @param pkg the package name
+     * @param versions the package versions
+     * @param semver the semantic version
+     * @param min the minimum version
+     * @param max the maximum version
+     *
+     * @throws PackageException if the version attributes are not consistent
+     */
+    public PkgDependency(String pkg, String versions, String semver, String min, String max)
+            throws PackageException
+    {
+        this(pkg, DependencyVersion.makeVersion(versions, semver, min, max));
+        myVersions = versions;
+        mySemver = semver;
+        myMin = min;
+        myMax = max;
+    }
+
     public String getPkgName()
     {
         return myPkg;
@@ -32,8 +55,32 @@ public class PkgDependency
         return myVersion;
     }
 
+    public String getVersions()
+    {
+        return myVersions;
+    }
+
+    public String getSemver()
+    {
+        return mySemver;
+    }
+
+    public String getSemverMin()
+    {
+        return myMin;
+    }
+
+    public String getSemverMax()
+    {
+        return myMax;
+    }
+
     private String myPkg;
     private DependencyVersion myVersion;
+    private String myVersions;
+    private String mySemver;
+    private String myMin;
+    private String myMax;
 }
 
 
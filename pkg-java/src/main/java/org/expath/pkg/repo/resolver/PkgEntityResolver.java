@@ -58,6 +58,10 @@ public class PkgEntityResolver
         Source resolved;
         try {
             resolved = myUniverse.resolve(systemId, mySpace);
+            if ( resolved == null && systemId != null ) {
+                // a file within a package, in a storage without URLs
+                resolved = myUniverse.resolveSystemId(systemId);
+            }
         }
         catch ( PackageException ex ) {
             // TODO: ...
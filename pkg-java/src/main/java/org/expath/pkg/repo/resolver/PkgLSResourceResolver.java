@@ -45,6 +45,11 @@ public class PkgLSResourceResolver
             if (src == null && sys != null) {
                 src = myResolver.resolveEntity(null, sys);
             }
+            // then @schemaLocation relative to the referring schema, in a storage without URLs
+            String abs = PkgURIResolver.absolutize(sys, base);
+            if (src == null && abs != null && ! abs.equals(sys)) {
+                src = myResolver.resolveEntity(null, abs);
+            }
             // if not resolved, return null, or return a DOM input
             if (src == null) {
                 return null;
@@ -10,6 +10,8 @@
 
 package org.expath.pkg.repo.resolver;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
@@ -36,13 +38,39 @@ public class PkgURIResolver
             throws TransformerException
     {
         try {
-            return myUniverse.resolve(href, mySpace);
+            Source src = myUniverse.resolve(href, mySpace);
+            if ( src == null ) {
+                // a relative reference within a package, in a storage without URLs
+                String sysid = absolutize(href, base);
+                if ( sysid != null ) {
+                    src = myUniverse.resolveSystemId(sysid);
+                }
+            }
+            return src;
         }
         catch ( PackageException ex ) {
             throw new TransformerException("Error resolving the URI", ex);
         }
     }
 
+    /**
+     * Resolve a reference against a base URI.
+     *
+     * @return the absolute URI, or null if there is no base, or if either is invalid.
+     */
+    static String absolutize(String href, String base)
+    {
+        if ( href == null || base == null ) {
+            return null;
+        }
+        try {
+            return new URI(base).resolve(new URI(href)).toString();
+        }
+        catch ( URISyntaxException | IllegalArgumentException ex ) {
+            return null;
+        }
+    }
+
     public Universe getUniverse()
     {
         return myUniverse;
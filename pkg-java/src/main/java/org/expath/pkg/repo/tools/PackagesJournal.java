@@ -0,0 +1,485 @@
+package org.expath.pkg.repo.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.expath.pkg.repo.Package;
+import org.expath.pkg.repo.PackageException;
+import org.expath.pkg.repo.Storage.PackageEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Represent the file [repo]/.expath-pkg/packages.journal.
+ *
+ * An append-only log of the updates of the package lists, to apply on top of
+ * {@code packages.txt} and {@code packages.xml}.  Recording an install or a
+ * remove is then a single append, instead of rewriting both lists.  The
+ * journal is compacted into the lists from time to time (see {@link
+ * #compact(Compaction)}), and then emptied.
+ *
+ * The first line is a header, with a generation number changing each time the
+ * journal is emptied.  Each following line is a record, prefixed with its CRC:
+ *
+ * <pre>
+ * expath-pkg-journal 1 [generation]
+ * [crc] + [dir] [name] [version]
+ * [crc] - [dir]
+ * </pre>
+ *
+ * A record not complete or with a wrong CRC (e.g. after a crash while
+ * appending) ends the journal, it is ignored and overwritten by the next
+ * append.  Appends are flushed to disk before returning.  Concurrent appends
+ * share the same flush when they can (group commit).  The journal is locked
+ * while appending and compacting, so several processes can use the same
+ * repository.
+ *
+ * The records are kept in memory.  Only the records appended since last read
+ * are read from the file, unless it has been emptied in the meantime.
+ */
+@ThreadSafe
+public class PackagesJournal
+{
+    public PackagesJournal(Path file)
+    {
+        myFile = file;
+    }
+
+    /**
+     * Apply the records of the journal to a list of packages.
+     *
+     * @param entries the packages, from the package lists
+     *
+     * @return the packages, with the records applied, in order.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public List<PackageEntry> replay(List<PackageEntry> entries)
+            throws PackageException
+    {
+        return apply(entries, records());
+    }
+
+    /**
+     * Apply records to a list of packages.
+     *
+     * @param entries the packages
+     * @param records the records to apply, in order
+     *
+     * @return the packages, with the records applied, in order.
+     */
+    public static List<PackageEntry> apply(List<PackageEntry> entries, List<Record> records)
+    {
+        if ( records.isEmpty() ) {
+            return entries;
+        }
+        List<PackageEntry> result = new ArrayList<>(entries);
+        for ( Record r : records ) {
+            r.applyTo(result);
+        }
+        return result;
+    }
+
+    /**
+     * The number of records in the journal.
+     *
+     * @return the number of records.
+     *
+     * @throws PackageException if an error occurs
+     */
+    public int size()
+            throws PackageException
+    {
+        return records().size();
+    }
+
+    /**
+     * Record the install of packages.
+     *
+     * @param pkgs the packages, by directory, in the order they were installed
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void addPackages(Collection<PackageEntry> pkgs)
+            throws PackageException
+    {
+        List<Record> records = new ArrayList<>();
+        for ( PackageEntry e : pkgs ) {
+            records.add(new Record(true, e.getDir(), e.getName(), e.getVersion()));
+        }
+        append(records);
+    }
+
+    /**
+     * Record the install of a package.
+     *
+     * @param pkg the package
+     * @param dir the package directory
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void addPackage(Package pkg, String dir)
+            throws PackageException
+    {
+        List<Record> records = new ArrayList<>();
+        records.add(new Record(true, dir, pkg.getName(), pkg.getVersion()));
+        append(records);
+    }
+
+    /**
+     * Record the remove of a package.
+     *
+     * @param dir the package directory
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void removePackageByDir(String dir)
+            throws PackageException
+    {
+        List<Record> records = new ArrayList<>();
+        records.add(new Record(false, dir, null, null));
+        append(records);
+    }
+
+    /**
+     * Compact the journal into the package lists, then empty it.
+     *
+     * The journal is locked in the meantime, so no record is appended.  If the
+     * process stops before the journal is emptied, the records are applied
+     * again on top of the compacted lists, which gives the same result.
+     *
+     * @param compaction writes the package lists, given the current packages
+     *
+     * @throws PackageException if an error occurs
+     */
+    public void compact(Compaction compaction)
+            throws PackageException
+    {
+        synchronized ( this ) {
+            if ( ! Files.exists(myFile) ) {
+                return;
+            }
+            try ( FileChannel ch = FileChannel.open(myFile, StandardOpenOption.READ, StandardOpenOption.WRITE) ) {
+                FileLock lock = ch.lock();
+                try {
+                    refresh(ch);
+                    compaction.write(new ArrayList<>(myRecords));
+                    // empty it, with a new generation
+                    ch.truncate(0);
+                    writeFully(ch, header(newGeneration()));
+                    ch.force(true);
+                    int count = myRecords.size();
+                    refresh(ch);
+                    LOG.debug("Journal compacted, {} record(s): {}", count, myFile);
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            catch ( IOException ex ) {
+                throw new PackageException("Error compacting the journal: " + myFile, ex);
+            }
+        }
+    }
+
+    /**
+     * Write the package lists, when compacting the journal.
+     */
+    @FunctionalInterface
+    public interface Compaction
+    {
+        /**
+         * @param records the records to compact, apply them with {@link PackagesJournal#apply(List, List)}
+         *
+         * @throws PackageException if an error occurs
+         */
+        void write(List<Record> records)
+                throws PackageException;
+    }
+
+    /**
+     * The records, read again from the file if it changed.
+     */
+    private synchronized List<Record> records()
+            throws PackageException
+    {
+        if ( ! Files.exists(myFile) ) {
+            myRecords = new ArrayList<>();
+            myGeneration = null;
+            myOffset = 0;
+            return new ArrayList<>();
+        }
+        try ( FileChannel ch = FileChannel.open(myFile, StandardOpenOption.READ) ) {
+            refresh(ch);
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the journal: " + myFile, ex);
+        }
+        return new ArrayList<>(myRecords);
+    }
+
+    /**
+     * Append records, and flush them to disk.
+     */
+    private void append(List<Record> records)
+            throws PackageException
+    {
+        long seq;
+        synchronized ( this ) {
+            try ( FileChannel ch = FileChannel.open(myFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE) ) {
+                FileLock lock = ch.lock();
+                try {
+                    if ( ch.size() == 0 ) {
+                        writeFully(ch, header(newGeneration()));
+                    }
+                    refresh(ch);
+                    // overwrite an incomplete record, if any
+                    ch.truncate(myOffset);
+                    ch.position(myOffset);
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    for ( Record r : records ) {
+                        buf.write(r.serialize());
+                    }
+                    writeFully(ch, buf.toByteArray());
+                    refresh(ch);
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            catch ( IOException ex ) {
+                throw new PackageException("Error appending to the journal: " + myFile, ex);
+            }
+            seq = ++myWritten;
+        }
+        sync(seq);
+    }
+
+    /**
+     * Flush the journal to disk, unless another thread already did it since append {@code seq}.
+     */
+    private void sync(long seq)
+            throws PackageException
+    {
+        synchronized ( mySyncLock ) {
+            if ( mySynced >= seq ) {
+                // flushed by another thread, with ours
+                return;
+            }
+            long target;
+            synchronized ( this ) {
+                target = myWritten;
+            }
+            try ( FileChannel ch = FileChannel.open(myFile, StandardOpenOption.WRITE) ) {
+                ch.force(false);
+            }
+            catch ( IOException ex ) {
+                throw new PackageException("Error flushing the journal: " + myFile, ex);
+            }
+            mySynced = target;
+        }
+    }
+
+    /**
+     * Read the records appended since last read, or all of them if the journal has been emptied.
+     */
+    @GuardedBy("this")
+    private void refresh(FileChannel ch)
+            throws IOException, PackageException
+    {
+        long size = ch.size();
+        byte[] head = readHeader(ch);
+        String generation = head == null ? null : parseHeader(head);
+        if ( generation == null || ! generation.equals(myGeneration) || size < myOffset ) {
+            // new or emptied since last read
+            myGeneration = generation;
+            myRecords = new ArrayList<>();
+            myOffset = head == null ? 0 : head.length;
+        }
+        if ( size <= myOffset ) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) (size - myOffset));
+        ch.position(myOffset);
+        while ( buf.hasRemaining() && ch.read(buf) > 0 ) {
+            // read it all
+        }
+        byte[] bytes = buf.array();
+        long base = myOffset;
+        int start = 0;
+        for ( int i = 0; i < bytes.length; ++i ) {
+            if ( bytes[i] == '\n' ) {
+                Record r = Record.parse(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                if ( r == null ) {
+                    LOG.warn("Invalid record in the journal, ignore the rest: {}", myFile);
+                    return;
+                }
+                myRecords.add(r);
+                start = i + 1;
+                myOffset = base + start;
+            }
+        }
+    }
+
+    private byte[] readHeader(FileChannel ch)
+            throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_HEADER);
+        ch.position(0);
+        while ( buf.hasRemaining() && ch.read(buf) > 0 ) {
+            // read the beginning
+        }
+        byte[] bytes = buf.array();
+        for ( int i = 0; i < buf.position(); ++i ) {
+            if ( bytes[i] == '\n' ) {
+                byte[] head = new byte[i + 1];
+                System.arraycopy(bytes, 0, head, 0, i + 1);
+                return head;
+            }
+        }
+        return null;
+    }
+
+    private String parseHeader(byte[] head)
+            throws PackageException
+    {
+        String line = new String(head, 0, head.length - 1, StandardCharsets.UTF_8);
+        String[] parts = line.split(" ");
+        if ( parts.length != 3 || ! MAGIC.equals(parts[0]) ) {
+            throw new PackageException("Not a package journal: " + myFile);
+        }
+        if ( ! FORMAT.equals(parts[1]) ) {
+            throw new PackageException("Unsupported journal format " + parts[1] + ": " + myFile);
+        }
+        return parts[2];
+    }
+
+    private static byte[] header(String generation)
+    {
+        return (MAGIC + " " + FORMAT + " " + generation + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String newGeneration()
+    {
+        return Long.toHexString(System.currentTimeMillis()) + "-" + Long.toHexString(RANDOM.nextLong());
+    }
+
+    private static void writeFully(FileChannel ch, byte[] bytes)
+            throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while ( buf.hasRemaining() ) {
+            ch.write(buf);
+        }
+    }
+
+    /**
+     * A record of the journal: the install or the remove of a package.
+     */
+    public static final class Record
+    {
+        private Record(boolean add, String dir, String name, String version)
+        {
+            myAdd = add;
+            myDir = dir;
+            myName = name;
+            myVersion = version;
+        }
+
+        /**
+         * Same as {@link PackagesTxtFile#addPackages(java.util.Map)} and
+         * {@link PackagesTxtFile#removePackageByDir(String)}.
+         */
+        private void applyTo(List<PackageEntry> entries)
+        {
+            for ( int i = entries.size() - 1; i >= 0; --i ) {
+                PackageEntry e = entries.get(i);
+                boolean same = e.getDir().equals(myDir)
+                        || (myAdd && e.getName().equals(myName) && e.getVersion().equals(myVersion));
+                if ( same ) {
+                    entries.remove(i);
+                }
+            }
+            if ( myAdd ) {
+                entries.add(new PackageEntry(myDir, myName, myVersion));
+            }
+        }
+
+        private byte[] serialize()
+        {
+            String content = myAdd ? "+ " + myDir + " " + myName + " " + myVersion : "- " + myDir;
+            return (crc(content) + " " + content + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the record, or null if it is not valid.
+         */
+        private static Record parse(String line)
+        {
+            int pos = line.indexOf(' ');
+            if ( pos < 0 ) {
+                return null;
+            }
+            String content = line.substring(pos + 1);
+            if ( ! line.substring(0, pos).equals(crc(content)) ) {
+                return null;
+            }
+            String[] parts = content.split(" ");
+            if ( parts.length == 4 && "+".equals(parts[0]) ) {
+                return new Record(true, parts[1], parts[2], parts[3]);
+            }
+            if ( parts.length == 2 && "-".equals(parts[0]) ) {
+                return new Record(false, parts[1], null, null);
+            }
+            return null;
+        }
+
+        private static String crc(String content)
+        {
+            CRC32 crc = new CRC32();
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            crc.update(bytes, 0, bytes.length);
+            return String.format("%08x", crc.getValue());
+        }
+
+        private final boolean myAdd;
+        private final String myDir;
+        private final String myName;
+        private final String myVersion;
+    }
+
+    /** The journal file. */
+    private final Path myFile;
+    /** The records, as last read. */
+    @GuardedBy("this") private List<Record> myRecords = new ArrayList<>();
+    /** The generation of the records, as last read (null if none yet). */
+    @GuardedBy("this") private String myGeneration = null;
+    /** The offset of the end of the last valid record read. */
+    @GuardedBy("this") private long myOffset = 0;
+    /** The number of appends so far. */
+    @GuardedBy("this") private long myWritten = 0;
+    /** The number of appends flushed to disk so far. */
+    @GuardedBy("mySyncLock") private long mySynced = 0;
+    /** Serialize the flushes (distinct from the appends, so they can go on meanwhile). */
+    private final Object mySyncLock = new Object();
+    private static final String MAGIC = "expath-pkg-journal";
+    private static final String FORMAT = "1";
+    private static final int MAX_HEADER = 256;
+    private static final Random RANDOM = new Random();
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PackagesJournal.class);
+}
@@ -12,11 +12,16 @@ package org.expath.pkg.repo.tools;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 import org.expath.pkg.repo.Package;
 import org.expath.pkg.repo.PackageException;
+import org.expath.pkg.repo.Storage.PackageEntry;
 
 /**
  * Represent the file [repo]/.expath-pkg/packages.txt.
@@ -35,84 +40,65 @@ public class PackagesTxtFile
     public void addPackage(Package pkg, String pkg_dir)
             throws PackageException
     {
-        String pkg_name = pkg.getName();
-        String pkg_version = pkg.getVersion();
-        try (final StringWriter buffer = new StringWriter()) {
-            try (final BufferedReader in = Files.newBufferedReader(myFile)) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    // ignore "white" lines
-                    if (WHITE_LINE_RE.matcher(line).matches()) {
-                        continue;
-                    }
-                    int pos = line.indexOf(' ');
-                    String dir = line.substring(0, pos);
-                    ++pos;
-                    int pos2 = line.indexOf(' ', pos);
-                    String name = line.substring(pos, pos2);
-                    pos = pos2 + 1;
-                    pos2 = line.length();
-                    String version = line.substring(pos, pos2);
-                    // we don't write the line if either the dir is the same, or if
-                    // both the name and the version are the same
-                    if (!dir.equals(pkg_dir) && !(name.equals(pkg_name) && version.equals(pkg_version))) {
-                        buffer.write(line);
-                        buffer.write("\n");
-                    }
-                }
-            }
+        addPackages(Collections.singletonMap(pkg_dir, pkg));
+    }
 
-            buffer.write(pkg_dir);
-            buffer.write(" ");
-            buffer.write(pkg_name);
-            buffer.write(" ");
-            buffer.write(pkg_version);
-            buffer.write("\n");
-            update(buffer);
+    /**
+     * Add several packages, rewriting the file only once.
+     *
+     * @param pkgs the packages, by directory, in the order to add them
+     *
+     * @throws PackageException if an error occurs
+     */
+    public synchronized void addPackages(Map<String, Package> pkgs)
+            throws PackageException
+    {
+        Set<String> ids = new HashSet<>();
+        for ( Package pkg : pkgs.values() ) {
+            ids.add(pkg.getName() + " " + pkg.getVersion());
         }
-        catch ( FileNotFoundException ex ) {
-            throw new PackageException("File not found: " + myFile, ex);
+        List<PackageEntry> entries = new ArrayList<>();
+        for ( PackageEntry e : entries() ) {
+            // we don't keep the entry if either the dir is the same, or if
+            // both the name and the version are the same
+            if ( ! pkgs.containsKey(e.getDir()) && ! ids.contains(e.getName() + " " + e.getVersion()) ) {
+                entries.add(e);
+            }
         }
-        catch ( IOException ex ) {
-            throw new PackageException("Error writing the file: " + myFile, ex);
+        for ( Map.Entry<String, Package> e : pkgs.entrySet() ) {
+            entries.add(new PackageEntry(e.getKey(), e.getValue().getName(), e.getValue().getVersion()));
         }
+        write(entries);
     }
 
-    public void removePackageByDir(String dir)
+    /**
+     * Replace all the packages, rewriting the file.
+     *
+     * @param entries the packages, in order
+     *
+     * @throws PackageException if an error occurs
+     */
+    public synchronized void setPackages(List<PackageEntry> entries)
             throws PackageException
     {
-        try (final StringWriter buffer = new StringWriter()) {
-            try (final BufferedReader in = Files.newBufferedReader(myFile)) {
-
-                String line;
-                while ((line = in.readLine()) != null) {
-                    // ignore "white" lines
-                    if (WHITE_LINE_RE.matcher(line).matches()) {
-                        continue;
-                    }
-                    int pos = line.indexOf(' ');
-                    String d = line.substring(0, pos);
-                    // we don't write the line of the dir of the package to remove
-                    if (!d.equals(dir)) {
-                        buffer.write(line);
-                        buffer.write("\n");
-                    }
-                }
+        write(new ArrayList<>(entries));
+    }
+
+    public synchronized void removePackageByDir(String dir)
+            throws PackageException
+    {
+        List<PackageEntry> entries = new ArrayList<>();
+        for ( PackageEntry e : entries() ) {
+            // we don't keep the entry of the dir of the package to remove
+            if ( ! e.getDir().equals(dir) ) {
+                entries.add(e);
             }
-            update(buffer);
-        }
-        catch ( FileNotFoundException ex ) {
-            throw new PackageException("File not found: " + myFile, ex);
-        }
-        catch ( IOException ex ) {
-            throw new PackageException("Error writing the file: " + myFile, ex);
         }
+        write(entries);
     }
 
     /**
      * Return the names of all the package directories, as a set.
-     * 
-     * TODO: Cache them! (easy now, as all update go through this class)
      *
      * @return the package directories
      *
@@ -121,12 +107,11 @@ public class PackagesTxtFile
     public Set<String> parseDirectories()
             throws PackageException
     {
-        try (final InputStream stream = Files.newInputStream(myFile)) {
-            return parseDirectories(stream);
-        }
-        catch ( IOException ex ) {
-            throw new PackageException("File not found: " + myFile, ex);
+        Set<String> result = new HashSet<>();
+        for ( PackageEntry e : entries() ) {
+            result.add(e.getDir());
         }
+        return result;
     }
 
     /**
@@ -164,6 +149,97 @@ public class PackagesTxtFile
         }
     }
 
+    /**
+     * Return all the packages (directory, name and version), in file order.
+     *
+     * @return the package entries
+     *
+     * @throws PackageException if an error occurs
+     */
+    public List<PackageEntry> parsePackages()
+            throws PackageException
+    {
+        return new ArrayList<>(entries());
+    }
+
+    /**
+     * Return all the packages (directory, name and version), in file order.
+     *
+     * This is a utility method for systems where packages.txt is not stored as
+     * an actual file (for instance on classpath storages).
+     *
+     * @param stream the input stream
+     *
+     * @return the package entries
+     *
+     * @throws PackageException if an error occurs
+     */
+    public static List<PackageEntry> parsePackages(InputStream stream)
+            throws PackageException
+    {
+        List<PackageEntry> result = new ArrayList<>();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(stream));
+            String line;
+            while ( (line = in.readLine()) != null ) {
+                // ignore "white" lines
+                if ( WHITE_LINE_RE.matcher(line).matches() ) {
+                    continue;
+                }
+                int pos = line.indexOf(' ');
+                int pos2 = line.indexOf(' ', pos + 1);
+                if ( pos < 0 || pos2 < 0 ) {
+                    throw new PackageException("Invalid line in the package list: '" + line + "'");
+                }
+                String dir = line.substring(0, pos);
+                String name = line.substring(pos + 1, pos2);
+                String version = line.substring(pos2 + 1);
+                result.add(new PackageEntry(dir, name, version));
+            }
+            return result;
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the package list", ex);
+        }
+    }
+
+    /**
+     * The entries of the file, parsed again only if it changed since last read or written.
+     *
+     * The file might be changed by another process using the same repository.
+     */
+    private synchronized List<PackageEntry> entries()
+            throws PackageException
+    {
+        if ( myEntries == null || isChanged() ) {
+            // record the state first, so a change while reading is seen next time
+            recordStamp();
+            try (final InputStream stream = Files.newInputStream(myFile)) {
+                myEntries = parsePackages(stream);
+            }
+            catch ( IOException ex ) {
+                throw new PackageException("File not found: " + myFile, ex);
+            }
+        }
+        return myEntries;
+    }
+
+    private void write(final List<PackageEntry> entries)
+            throws PackageException
+    {
+        update(out -> {
+            for ( PackageEntry e : entries ) {
+                out.write(e.getDir());
+                out.write(" ");
+                out.write(e.getName());
+                out.write(" ");
+                out.write(e.getVersion());
+                out.write("\n");
+            }
+        });
+        myEntries = entries;
+    }
+
     protected void createEmpty(Writer out)
             throws IOException
     {
@@ -171,6 +247,8 @@ public class PackagesTxtFile
     }
 
     private static final Pattern WHITE_LINE_RE = Pattern.compile("^[ \t\n\r]*$");
+    /** The entries, as last read or written (null if not read yet). */
+    private List<PackageEntry> myEntries = null;
 }
 
 
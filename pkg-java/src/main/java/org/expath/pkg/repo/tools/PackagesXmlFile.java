@@ -10,17 +10,55 @@
 package org.expath.pkg.repo.tools;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import javax.xml.transform.Transformer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 import org.expath.pkg.repo.Package;
 import org.expath.pkg.repo.PackageException;
+import org.expath.pkg.repo.Storage.PackageEntry;
 
 /**
  * Represent the file [repo]/.expath-pkg/packages.xml.
  *
+ * The packages are kept in memory, as last read or written.  The file is read
+ * again only if it changed in the meantime (e.g. by another process).  An
+ * update is applied to the packages in memory, then the whole file is written
+ * again, with a streaming serializer.
+ *
+ * Like the stylesheets used before, the other attributes and the content of
+ * the package elements, and the other elements within {@code packages}, are
+ * kept as they are.  The text and comments right within {@code packages},
+ * and its own attributes, are not.
+ *
+ * It still extends {@link UpdatableXmlFile}, for the code typed against it,
+ * but does not use its stylesheets.
+ *
  * @author Florent Georges
  */
+@SuppressWarnings("deprecation")
 public class PackagesXmlFile
         extends UpdatableXmlFile
 {
@@ -53,11 +91,70 @@ public class PackagesXmlFile
     public void addPackage(Package pkg, String dir)
             throws PackageException
     {
-        Transformer trans = compile(ADD_PACKAGE_XSL);
-        trans.setParameter("name",    pkg.getName());
-        trans.setParameter("dir",     dir);
-        trans.setParameter("version", pkg.getVersion());
-        transform(trans);
+        addPackages(Collections.singletonMap(dir, pkg));
+    }
+
+    /**
+     * Add several packages to packages.xml, writing the file only once.
+     * 
+     * An existing package with the same directory, or with the same name and
+     * version, is replaced.
+     * 
+     * @param pkgs The packages to add, by directory, in the order to add them.
+     * 
+     * @throws PackageException In case of any error (mostly related to I/Os).
+     */
+    public synchronized void addPackages(Map<String, Package> pkgs)
+            throws PackageException
+    {
+        Set<String> ids = new HashSet<>();
+        for ( Package pkg : pkgs.values() ) {
+            ids.add(pkg.getName() + " " + pkg.getVersion());
+        }
+        List<Item> items = new ArrayList<>();
+        for ( Item i : items() ) {
+            PackageEntry e = i.entry;
+            if ( e == null || ( ! pkgs.containsKey(e.getDir()) && ! ids.contains(e.getName() + " " + e.getVersion()) ) ) {
+                items.add(i);
+            }
+        }
+        for ( Map.Entry<String, Package> e : pkgs.entrySet() ) {
+            items.add(new Item(new PackageEntry(e.getKey(), e.getValue().getName(), e.getValue().getVersion()), null));
+        }
+        write(items);
+    }
+
+    /**
+     * Replace all the packages, rewriting the file.
+     *
+     * The packages already in the file, with the same directory, name and
+     * version, keep their other attributes and content.  The other elements
+     * are written first.
+     *
+     * @param entries the packages, in order
+     *
+     * @throws PackageException if an error occurs
+     */
+    public synchronized void setPackages(List<PackageEntry> entries)
+            throws PackageException
+    {
+        List<Item> items = new ArrayList<>();
+        Map<String, Item> previous = new HashMap<>();
+        for ( Item i : items() ) {
+            if ( i.entry == null ) {
+                items.add(i);
+            }
+            else {
+                previous.put(i.entry.getDir(), i);
+            }
+        }
+        for ( PackageEntry e : entries ) {
+            Item prev = previous.get(e.getDir());
+            boolean same = prev != null && prev.entry.getName().equals(e.getName())
+                    && prev.entry.getVersion().equals(e.getVersion());
+            items.add(same ? prev : new Item(e, null));
+        }
+        write(items);
     }
 
     /**
@@ -68,15 +165,38 @@ public class PackagesXmlFile
      * 
      * @param dir The directory to remove from the packages file.
      * 
-     * @throws PackageException In case of any error transforming the packages
+     * @throws PackageException In case of any error writing the packages
      *     file.
      */
-    public void removePackageByDir(String dir)
+    public synchronized void removePackageByDir(String dir)
+            throws PackageException
+    {
+        List<Item> items = new ArrayList<>();
+        for ( Item i : items() ) {
+            if ( i.entry == null || ! i.entry.getDir().equals(dir) ) {
+                items.add(i);
+            }
+        }
+        write(items);
+    }
+
+    /**
+     * Return all the packages, in document order.
+     * 
+     * @return The package entries.
+     * 
+     * @throws PackageException In case of any error reading the packages file.
+     */
+    public synchronized List<PackageEntry> parsePackages()
             throws PackageException
     {
-        Transformer trans = compile(REMOVE_PACKAGE_XSL);
-        trans.setParameter("dir", dir);
-        transform(trans);
+        List<PackageEntry> entries = new ArrayList<>();
+        for ( Item i : items() ) {
+            if ( i.entry != null ) {
+                entries.add(i.entry);
+            }
+        }
+        return entries;
     }
 
     @Override
@@ -86,10 +206,214 @@ public class PackagesXmlFile
         out.write("<packages xmlns=\"http://expath.org/ns/repo/packages\"/>\n");
     }
 
-    /** The stylesheet to add a package, as a Java resource name. */
-    private static final String ADD_PACKAGE_XSL    = "org/expath/pkg/repo/rsrc/add-package.xsl";
-    /** The stylesheet to remove a package, as a Java resource name. */
-    private static final String REMOVE_PACKAGE_XSL = "org/expath/pkg/repo/rsrc/remove-package.xsl";
+    /**
+     * The elements in the file, parsed again only if it changed since last read or written.
+     */
+    private synchronized List<Item> items()
+            throws PackageException
+    {
+        if ( myItems == null || isChanged() ) {
+            // record the state first, so a change while reading is seen next time
+            recordStamp();
+            myItems = parse();
+        }
+        return myItems;
+    }
+
+    private List<Item> parse()
+            throws PackageException
+    {
+        List<Item> items = new ArrayList<>();
+        List<Namespace> namespaces = Collections.emptyList();
+        try ( InputStream in = Files.newInputStream(myFile) ) {
+            XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(in);
+            try {
+                int depth = 0;
+                List<XMLEvent> events = null;
+                while ( reader.hasNext() ) {
+                    XMLEvent event = reader.nextEvent();
+                    if ( event.isStartElement() ) {
+                        ++depth;
+                        if ( depth == 1 ) {
+                            namespaces = rootNamespaces(event.asStartElement());
+                        }
+                        else if ( depth == 2 ) {
+                            events = new ArrayList<>();
+                        }
+                    }
+                    if ( events != null ) {
+                        events.add(event);
+                    }
+                    if ( event.isEndElement() ) {
+                        --depth;
+                        if ( depth == 1 ) {
+                            items.add(new Item(toEntry(events.get(0).asStartElement()), events));
+                            events = null;
+                        }
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch ( IOException | XMLStreamException ex ) {
+            throw new PackageException("Error reading the file: " + myFile, ex);
+        }
+        myNamespaces = namespaces;
+        return items;
+    }
+
+    /**
+     * The namespaces declared on {@code packages}, but the default one.
+     */
+    private static List<Namespace> rootNamespaces(StartElement root)
+    {
+        List<Namespace> namespaces = new ArrayList<>();
+        for ( Iterator<?> it = root.getNamespaces(); it.hasNext(); ) {
+            Namespace ns = (Namespace) it.next();
+            if ( ! ns.isDefaultNamespaceDeclaration() ) {
+                namespaces.add(ns);
+            }
+        }
+        return namespaces;
+    }
+
+    /**
+     * @return the package of a package element, or null if the element is not a package.
+     */
+    private PackageEntry toEntry(StartElement elem)
+            throws PackageException
+    {
+        if ( ! PACKAGE.equals(elem.getName()) ) {
+            return null;
+        }
+        Attribute name = elem.getAttributeByName(new QName("name"));
+        Attribute dir = elem.getAttributeByName(new QName("dir"));
+        Attribute version = elem.getAttributeByName(new QName("version"));
+        if ( name == null || dir == null || version == null ) {
+            throw new PackageException("Invalid package element in: " + myFile);
+        }
+        return new PackageEntry(dir.getValue(), name.getValue(), version.getValue());
+    }
+
+    private void write(final List<Item> items)
+            throws PackageException
+    {
+        final List<Namespace> namespaces = myNamespaces;
+        update(out -> {
+            try {
+                XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+                writer.writeStartDocument("UTF-8", "1.0");
+                writer.writeCharacters("\n");
+                writer.setDefaultNamespace(NS);
+                writer.writeStartElement(NS, "packages");
+                writer.writeDefaultNamespace(NS);
+                for ( Namespace ns : namespaces ) {
+                    writer.writeNamespace(ns.getPrefix(), ns.getNamespaceURI());
+                }
+                for ( Item i : items ) {
+                    writer.writeCharacters("\n   ");
+                    if ( i.events != null ) {
+                        // as read, with the attributes and content unknown here
+                        copy(i.events, writer);
+                    }
+                    else {
+                        writer.writeEmptyElement(NS, "package");
+                        writer.writeAttribute("name", i.entry.getName());
+                        writer.writeAttribute("dir", i.entry.getDir());
+                        writer.writeAttribute("version", i.entry.getVersion());
+                    }
+                }
+                writer.writeCharacters("\n");
+                writer.writeEndElement();
+                writer.writeEndDocument();
+                writer.close();
+                out.write("\n");
+            }
+            catch ( XMLStreamException ex ) {
+                throw new IOException("Error serializing the package list", ex);
+            }
+        });
+        myItems = items;
+    }
+
+    /**
+     * Write the events of an element, as read.
+     */
+    private static void copy(List<XMLEvent> events, XMLStreamWriter writer)
+            throws XMLStreamException
+    {
+        for ( int i = 0; i < events.size(); ++i ) {
+            XMLEvent event = events.get(i);
+            if ( event.isStartElement() ) {
+                StartElement start = event.asStartElement();
+                QName name = start.getName();
+                // no content, written as an empty element, like the new packages
+                if ( events.get(i + 1).isEndElement() ) {
+                    writer.writeEmptyElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+                    ++i;
+                }
+                else {
+                    writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+                }
+                for ( Iterator<?> it = start.getNamespaces(); it.hasNext(); ) {
+                    Namespace ns = (Namespace) it.next();
+                    writer.writeNamespace(ns.getPrefix(), ns.getNamespaceURI());
+                }
+                for ( Iterator<?> it = start.getAttributes(); it.hasNext(); ) {
+                    Attribute attr = (Attribute) it.next();
+                    QName aname = attr.getName();
+                    writer.writeAttribute(aname.getPrefix(), aname.getNamespaceURI(), aname.getLocalPart(), attr.getValue());
+                }
+            }
+            else if ( event.isEndElement() ) {
+                writer.writeEndElement();
+            }
+            else if ( event.isCharacters() ) {
+                Characters text = event.asCharacters();
+                if ( text.isCData() ) {
+                    writer.writeCData(text.getData());
+                }
+                else {
+                    writer.writeCharacters(text.getData());
+                }
+            }
+            else if ( event.getEventType() == XMLStreamConstants.COMMENT ) {
+                writer.writeComment(((Comment) event).getText());
+            }
+            else if ( event.isProcessingInstruction() ) {
+                ProcessingInstruction pi = (ProcessingInstruction) event;
+                writer.writeProcessingInstruction(pi.getTarget(), pi.getData());
+            }
+        }
+    }
+
+    /** The namespace of packages.xml. */
+    private static final String NS = "http://expath.org/ns/repo/packages";
+    /** The name of the package elements. */
+    private static final QName PACKAGE = new QName(NS, "package");
+    /** The elements, as last read or written (null if not read yet). */
+    private List<Item> myItems = null;
+    /** The namespaces declared on {@code packages}, as last read. */
+    private List<Namespace> myNamespaces = Collections.emptyList();
+
+    /**
+     * An element within {@code packages}: a package, or any other element.
+     */
+    private static final class Item
+    {
+        Item(PackageEntry entry, List<XMLEvent> events)
+        {
+            this.entry = entry;
+            this.events = events;
+        }
+
+        /** The package, or null if the element is not a package. */
+        final PackageEntry entry;
+        /** The element as read, or null for a package added since. */
+        final List<XMLEvent> events;
+    }
 }
 
 
@@ -9,13 +9,20 @@
 
 package org.expath.pkg.repo.tools;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import org.expath.pkg.repo.PackageException;
 
@@ -56,19 +63,103 @@ public abstract class UpdatableFile
      *
      * @throws PackageException if an error occurs
      */
-    protected void update(StringWriter content)
+    protected void update(final StringWriter content)
             throws PackageException
     {
-        try (final OutputStream out = Files.newOutputStream(myFile)) {
-            byte[] bytes = content.getBuffer().toString().getBytes();
-            out.write(bytes);
-        }
-        catch ( FileNotFoundException ex ) {
-            throw new PackageException("File not found: " + myFile, ex);
+        update(out -> out.write(content.getBuffer().toString()));
+    }
+
+    /**
+     * Replace the actual file with the content written by {@code content}.
+     *
+     * The content is written to a temporary file in the same directory, and
+     * flushed to disk.  It then replaces the actual file atomically, so readers
+     * never see a partial file, even after a crash.
+     *
+     * @param content writes the new content
+     *
+     * @throws PackageException if an error occurs
+     */
+    protected void update(Content content)
+            throws PackageException
+    {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(myFile.getParent(), myFile.getFileName().toString() + "-", ".tmp");
+            try ( FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+                Writer out = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8.newEncoder(), -1));
+                content.write(out);
+                out.flush();
+                // on disk before it replaces the actual file
+                ch.force(true);
+            }
+            try {
+                Files.move(tmp, myFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch ( AtomicMoveNotSupportedException ex ) {
+                Files.move(tmp, myFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            recordStamp();
         }
         catch ( IOException ex ) {
             throw new PackageException("Error writing the file: " + myFile, ex);
         }
+        finally {
+            if ( tmp != null ) {
+                try {
+                    Files.deleteIfExists(tmp);
+                }
+                catch ( IOException ex ) {
+                    // ignore, it is only a temporary file
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the file changed since it was last read or written by this object.
+     *
+     * @return true if the file changed (or was never read).
+     *
+     * @throws PackageException if an error occurs
+     */
+    protected boolean isChanged()
+            throws PackageException
+    {
+        return myStamp == null || ! myStamp.equals(readStamp());
+    }
+
+    /**
+     * Record the state of the file, right after reading or writing it.
+     *
+     * @throws PackageException if an error occurs
+     */
+    protected void recordStamp()
+            throws PackageException
+    {
+        myStamp = readStamp();
+    }
+
+    private String readStamp()
+            throws PackageException
+    {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(myFile, BasicFileAttributes.class);
+            return attrs.size() + "/" + attrs.lastModifiedTime() + "/" + attrs.fileKey();
+        }
+        catch ( IOException ex ) {
+            throw new PackageException("Error reading the file attributes: " + myFile, ex);
+        }
+    }
+
+    /**
+     * Write the content of the file.
+     */
+    @FunctionalInterface
+    protected interface Content
+    {
+        void write(Writer out)
+                throws IOException;
     }
 
     /**
@@ -92,6 +183,8 @@ public abstract class UpdatableFile
 
     /** The actual file object. */
     protected Path myFile;
+    /** The size, time and key of the file, when last read or written (null if not yet). */
+    private String myStamp = null;
 }
 
 
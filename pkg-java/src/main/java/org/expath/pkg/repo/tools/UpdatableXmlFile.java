@@ -27,7 +27,13 @@ import org.expath.pkg.repo.PackageException;
  * An XML file, that can be updated with XSLT stylesheets.
  *
  * @author Florent Georges
+ * @deprecated The package lists are not updated with XSLT anymore, see
+ * {@link PackagesXmlFile}.  Kept, with the stylesheets {@code
+ * org/expath/pkg/repo/rsrc/add-package.xsl} and {@code remove-package.xsl},
+ * for the code extending it, and still the superclass of {@link
+ * PackagesXmlFile} for the code typed against it.
  */
+@Deprecated
 public abstract class UpdatableXmlFile
         extends UpdatableFile
 {
@@ -14,6 +14,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.transform.Source;
 
 import org.expath.pkg.repo.*;
@@ -70,6 +72,12 @@ public class Main
         else if ( "lookup".equals(args[consumed]) ) {
             doLookup(args, consumed + 1);
         }
+        else if ( "pack".equals(args[consumed]) ) {
+            doPack(args, consumed + 1);
+        }
+        else if ( "unpack".equals(args[consumed]) ) {
+            doUnpack(args, consumed + 1);
+        }
         else {
             System.err.println("Unknown command: " + cmd);
             System.err.println();
@@ -95,6 +103,9 @@ public class Main
             else if ( a.equals("--verbose") || a.equals("-v") ) {
                 myVerbose = true;
             }
+            else if ( a.equals("--index") || a.equals("-i") ) {
+                myIndex = true;
+            }
             else {
                 System.err.println("Unknown option: " + a);
                 System.err.println();
@@ -116,6 +127,19 @@ public class Main
             }
             System.exit(1);
         }
+        if ( myRepo != null ) {
+            // only parse the package descriptors actually used by the command,
+            // or even better decode them from the index, if asked for (as it is
+            // written when missing or out of date, even by read-only commands)
+            myRepo.setLazyLoading(true);
+            myRepo.setBinaryIndex(myIndex);
+            for ( PackageException ex : myRepo.init() ) {
+                System.err.println("Error loading the repo: " + ex.getMessage());
+                if ( myVerbose ) {
+                    ex.printStackTrace(System.err);
+                }
+            }
+        }
     }
 
     private Repository requireRepo()
@@ -133,19 +157,30 @@ public class Main
     private void usage(boolean error)
     {
         System.err.println("Usage:");
-        System.err.println("  xrepo [--repo <repo>|--verbose] help|list|install|remove|create|lookup ...");
+        System.err.println("  xrepo [--repo <repo>|--verbose|--index] help|list|install|remove|create|lookup|pack|unpack ...");
+        System.err.println();
+        System.err.println("Options:");
+        System.err.println("  -r, --repo     the repository directory");
+        System.err.println("  -v, --verbose  display more information, e.g. the stack traces");
+        System.err.println("  -i, --index    use and maintain the binary index of the packages (.expath-pkg/packages.idx)");
         System.err.println();
         System.err.println("Commands:");
         System.err.println("  help");
         System.err.println("  version");
         System.err.println("  list");
-        System.err.println("  install [-b|-f] <pkg>");
+        System.err.println("  install [-b|-f|-t <threads>|-c <cache>|-o] <pkg>...");
         System.err.println("      -b batch operations (no interaction)");
         System.err.println("      -f override a package if already installed (force)");
+        System.err.println("      -t number of threads extracting the package (default is 1)");
+        System.err.println("      -c directory caching the packages downloaded");
+        System.err.println("      -o offline, only use the packages in the cache");
         System.err.println("  remove [-b] <pkg> <version?>");
         System.err.println("      -b batch operations (no interaction)");
         System.err.println("  create <repo>");
         System.err.println("  lookup <space> <uri>");
+        System.err.println("  pack [-z] <pack-file>");
+        System.err.println("      -z compress the files in the pack");
+        System.err.println("  unpack <pack-file> <repo>");
         System.exit(error ? 1 : 0);
     }
 
@@ -179,6 +214,9 @@ public class Main
         //checkParams("Install", args, consumed, new String[]{"package file name"});
         try {
             boolean force = false;
+            int threads = 1;
+            Path cache_dir = null;
+            boolean offline = false;
             UserInteractionStrategy interact = null;
             while ( args[consumed].startsWith("-") ) {
                 if ( args[consumed].equals("-b") ) {
@@ -189,6 +227,18 @@ public class Main
                     ++consumed;
                     force = true;
                 }
+                else if ( args[consumed].equals("-t") ) {
+                    threads = Integer.parseInt(args[consumed + 1]);
+                    consumed += 2;
+                }
+                else if ( args[consumed].equals("-c") ) {
+                    cache_dir = Paths.get(args[consumed + 1]);
+                    consumed += 2;
+                }
+                else if ( args[consumed].equals("-o") ) {
+                    ++consumed;
+                    offline = true;
+                }
                 else {
                     break;
                 }
@@ -197,6 +247,26 @@ public class Main
                 interact = new TextUserInteraction(myVerbose);
             }
             Repository repo = requireRepo();
+            repo.setExtractionThreads(threads);
+            if ( cache_dir != null ) {
+                XarCache cache = new XarCache(cache_dir);
+                cache.setOffline(offline);
+                repo.setDownloadCache(cache);
+            }
+            else if ( offline ) {
+                System.err.println("Offline mode requires a cache (-c)");
+                System.exit(1);
+            }
+            if ( consumed + 1 < args.length ) {
+                // several packages, install them at once
+                List<XarSource> sources = new ArrayList<>();
+                for ( ; consumed < args.length; ++consumed ) {
+                    URI uri = getURI(args[consumed]);
+                    sources.add(uri == null ? new XarFileSource(Paths.get(args[consumed])) : new XarUriSource(uri, repo.getDownloadCache()));
+                }
+                repo.installPackages(sources, force, interact);
+                return;
+            }
             URI uri = getURI(args[consumed]);
             if ( uri == null ) {
                 Path f = Paths.get(args[consumed]);
@@ -299,6 +369,49 @@ public class Main
         }
     }
 
+    private void doPack(String[] args, int consumed)
+    {
+        boolean compress = false;
+        if ( consumed < args.length && args[consumed].equals("-z") ) {
+            ++consumed;
+            compress = true;
+        }
+        checkParams("Pack", args, consumed, "pack file name");
+        Path pack = Paths.get(args[consumed]);
+        Storage storage = requireRepo().getStorage();
+        if ( ! (storage instanceof FileSystemStorage) ) {
+            System.err.println("Only a repository on the file system can be packed: " + storage);
+            System.exit(1);
+        }
+        try {
+            PackStorage.pack((FileSystemStorage) storage, pack, compress);
+        }
+        catch ( PackageException ex ) {
+            System.err.println("Error packing the repository: " + ex.getMessage());
+            if ( myVerbose ) {
+                ex.printStackTrace(System.err);
+            }
+            System.exit(1);
+        }
+    }
+
+    private void doUnpack(String[] args, int consumed)
+    {
+        checkParams("Unpack", args, consumed, "pack file name", "repository directory name");
+        Path pack = Paths.get(args[consumed]);
+        Path repo_dir = Paths.get(args[consumed + 1]);
+        try {
+            PackStorage.unpack(pack, repo_dir);
+        }
+        catch ( PackageException ex ) {
+            System.err.println("Error unpacking the repository: " + ex.getMessage());
+            if ( myVerbose ) {
+                ex.printStackTrace(System.err);
+            }
+            System.exit(1);
+        }
+    }
+
     /**
      * Check the parameters of a command are ok.
      * 
@@ -346,6 +459,7 @@ public class Main
 
     private String     myRepoDir = null;
     private boolean    myVerbose = false;
+    private boolean    myIndex   = false;
     private Repository myRepo    = null;
 }
 
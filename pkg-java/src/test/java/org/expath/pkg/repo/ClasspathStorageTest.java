@@ -0,0 +1,171 @@
+package org.expath.pkg.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ClasspathStorage}.
+ */
+public class ClasspathStorageTest
+{
+    @Test
+    public void testDirectory()
+            throws Exception
+    {
+        Path dir = Paths.get("target/test-classes");
+        CountingLoader loader = new CountingLoader(dir.toUri().toURL());
+        Repository sut = new Repository(new ClasspathStorage("repos.deps-1", loader));
+        checkRepository(sut, loader, "file:");
+    }
+
+    @Test
+    public void testJar()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        Path jar = jar("repo.jar", deps, Files.readAllLines(deps.resolve(".expath-pkg/packages.txt")));
+        CountingLoader loader = new CountingLoader(jar.toUri().toURL());
+        Repository sut = new Repository(new ClasspathStorage("org.example.repo", loader));
+        checkRepository(sut, loader, "jar:");
+        loader.close();
+    }
+
+    @Test
+    public void testMultipleJars()
+            throws Exception
+    {
+        // the libraries in one JAR, the others in another, plus lib-x again
+        Path deps = TestFiles.DEPS;
+        Path libs = jar("libs.jar", deps, Arrays.asList(
+                "lib-x-12.9.0 http://example.org/lib-x 12.9.0",
+                "lib-y-1.3.0 http://example.org/lib-y 1.3.0"));
+        Path apps = jar("apps.jar", deps, Arrays.asList(
+                "lib-x-12.9.0 http://example.org/lib-x 12.9.0",
+                "lib-a-2.3.0 http://example.org/lib-a 2.3.0",
+                "app-1.0.0 http://example.com/my-app 1.0.0"));
+        try ( URLClassLoader loader = new URLClassLoader(new URL[] { libs.toUri().toURL(), apps.toUri().toURL() }, null) ) {
+            ClasspathStorage storage = new ClasspathStorage("org.example.repo", loader);
+            assertEquals("merged", Arrays.asList("lib-x-12.9.0", "lib-y-1.3.0", "lib-a-2.3.0", "app-1.0.0"),
+                    new ArrayList<>(storage.listPackageDirectories()));
+            assertEquals("conflicts", 1, storage.getConflicts().size());
+            assertTrue(storage.getConflicts().get(0), storage.getConflicts().get(0).startsWith("Package dir 'lib-x-12.9.0'"));
+            Repository sut = new Repository(storage);
+            assertEquals("no error", 0, sut.init().size());
+            assertEquals("package names", 4, sut.listPackages().size());
+            // each package from its own JAR, the first one in case of conflict
+            String lib_x = sut.getPackages("http://example.org/lib-x").latest().getResolver()
+                    .resolveResource("expath-pkg.xml").getSystemId();
+            assertTrue(lib_x, lib_x.contains("libs.jar!"));
+            String lib_a = sut.getPackages("http://example.org/lib-a").latest().getResolver()
+                    .resolveComponent("style.xsl").getSystemId();
+            assertTrue(lib_a, lib_a.contains("apps.jar!"));
+        }
+    }
+
+    /**
+     * A JAR with some packages, without entries for the directories (like many JAR files).
+     */
+    private Path jar(String name, Path deps, List<String> packages)
+            throws IOException
+    {
+        Path jar = myTmp.newFile(name).toPath();
+        String root = "org/example/repo/";
+        try ( OutputStream out = Files.newOutputStream(jar);
+              ZipOutputStream zip = new ZipOutputStream(out) ) {
+            zip.putNextEntry(new ZipEntry(root + ".expath-pkg/packages.txt"));
+            zip.write(String.join("\n", packages).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            for ( String p : packages ) {
+                Path dir = deps.resolve(p.substring(0, p.indexOf(' ')));
+                try ( Stream<Path> files = Files.walk(dir) ) {
+                    for ( Path f : (Iterable<Path>) files::iterator ) {
+                        if ( Files.isRegularFile(f) ) {
+                            zip.putNextEntry(new ZipEntry(root + deps.relativize(f).toString().replace('\\', '/')));
+                            zip.write(Files.readAllBytes(f));
+                            zip.closeEntry();
+                        }
+                    }
+                }
+            }
+        }
+        return jar;
+    }
+
+    private void checkRepository(Repository sut, CountingLoader loader, String protocol)
+            throws Exception
+    {
+        // all lookups come from the index
+        int lookups = loader.lookups.get();
+        assertEquals("no error", 0, sut.init().size());
+        assertEquals("package names", 5, sut.listPackages().size());
+        Package lib_a = sut.getPackages("http://example.org/lib-a").latest();
+        StreamSource src = (StreamSource) lib_a.getResolver().resolveComponent("style.xsl");
+        assertNotNull("resolved", src);
+        assertTrue(src.getSystemId(), src.getSystemId().startsWith(protocol));
+        assertTrue(src.getSystemId(), src.getSystemId().endsWith("/lib-a-2.3.0/lib-a/style.xsl"));
+        byte[] expected = Files.readAllBytes(TestFiles.DEPS.resolve("lib-a-2.3.0/lib-a/style.xsl"));
+        try ( InputStream in = src.getInputStream() ) {
+            assertArrayEquals("content", expected, TestFiles.readAll(in));
+        }
+        assertNull("not found", lib_a.getResolver().resolveComponent("unknown.xsl"));
+        assertEquals("no classloader lookup", lookups, loader.lookups.get());
+    }
+
+
+    /**
+     * Count the resource lookups.
+     */
+    private static class CountingLoader
+            extends URLClassLoader
+    {
+        CountingLoader(URL url)
+        {
+            super(new URL[] { url }, null);
+        }
+
+        @Override
+        public URL getResource(String name)
+        {
+            lookups.incrementAndGet();
+            return super.getResource(name);
+        }
+
+        @Override
+        public Enumeration<URL> getResources(String name)
+                throws IOException
+        {
+            lookups.incrementAndGet();
+            return super.getResources(name);
+        }
+
+        final AtomicInteger lookups = new AtomicInteger();
+    }
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
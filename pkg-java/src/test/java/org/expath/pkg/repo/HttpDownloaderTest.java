@@ -0,0 +1,298 @@
+package org.expath.pkg.repo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link HttpDownloader}, against a local HTTP server.
+ */
+public class HttpDownloaderTest
+{
+    @Before
+    public void startServer()
+            throws Exception
+    {
+        myContent = new byte[100 * 1024];
+        new Random(42).nextBytes(myContent);
+        myPool = Executors.newCachedThreadPool();
+        myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        myServer.setExecutor(myPool);
+        myServer.createContext("/pkg.xar", this::handle);
+        myServer.start();
+        myUri = new URI("http://localhost:" + myServer.getAddress().getPort() + "/pkg.xar");
+    }
+
+    @After
+    public void stopServer()
+    {
+        myServer.stop(0);
+        myPool.shutdownNow();
+    }
+
+    @Test
+    public void testParallelRanges()
+            throws Exception
+    {
+        HttpDownloader sut = downloader(0, 3);
+        Path dest = myTmp.getRoot().toPath().resolve("pkg.xar");
+        sut.download(myUri, dest);
+        assertArrayEquals("downloaded", myContent, Files.readAllBytes(dest));
+        // 7 chunks, the first one from the first response
+        assertEquals("requests", 1 + 6, myRanges.size());
+        assertFalse("no part left", Files.exists(dest.resolveSibling("pkg.xar.part")));
+        assertFalse("no state left", Files.exists(dest.resolveSibling("pkg.xar.part.state")));
+    }
+
+    @Test
+    public void testResumeChunk()
+            throws Exception
+    {
+        myDropChunk = 3;
+        HttpDownloader sut = downloader(1, 3);
+        Path dest = myTmp.getRoot().toPath().resolve("pkg.xar");
+        sut.download(myUri, dest);
+        assertArrayEquals("downloaded", myContent, Files.readAllBytes(dest));
+        assertTrue("resumed in the middle of the chunk",
+                myRanges.contains("bytes=" + (3 * CHUNK + CHUNK / 2) + "-" + (4 * CHUNK - 1)));
+    }
+
+    @Test
+    public void testResumeAfterReset()
+            throws Exception
+    {
+        // a raw server, as HttpServer cannot reset a connection
+        try ( ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()) ) {
+            myPool.submit(() -> serveResetting(server));
+            URI uri = new URI("http://localhost:" + server.getLocalPort() + "/pkg.xar");
+            Path dest = myTmp.getRoot().toPath().resolve("pkg.xar");
+            downloader(1, 3).download(uri, dest);
+            assertArrayEquals("downloaded", myContent, Files.readAllBytes(dest));
+        }
+        // the bytes received before the reset are kept
+        boolean resumed = false;
+        for ( String range : myRanges ) {
+            long first = range.startsWith("bytes=") ? Long.parseLong(range.substring(6, range.indexOf('-'))) : -1;
+            resumed |= first > 3 * CHUNK && first < 4 * CHUNK;
+        }
+        assertTrue("resumed in the middle of the chunk: " + myRanges, resumed);
+    }
+
+    @Test
+    public void testResumeDownload()
+            throws Exception
+    {
+        myDropChunk = 3;
+        Path dest = myTmp.getRoot().toPath().resolve("pkg.xar");
+        try {
+            // one chunk after the other, stopping at the drop
+            downloader(0, 1).download(myUri, dest);
+            fail("connection dropped");
+        }
+        catch ( IOException ex ) {
+            // expected, the chunks done are recorded
+        }
+        assertTrue("state recorded", Files.exists(dest.resolveSibling("pkg.xar.part.state")));
+        myRanges.clear();
+        myDropChunk = -1;
+        downloader(0, 3).download(myUri, dest);
+        assertArrayEquals("downloaded", myContent, Files.readAllBytes(dest));
+        // the first response, then chunks 3 to 6
+        assertEquals("chunks done not downloaded again", 1 + 4, myRanges.size());
+    }
+
+    @Test
+    public void testNoRanges()
+            throws Exception
+    {
+        myRangesSupported = false;
+        Path dest = myTmp.getRoot().toPath().resolve("pkg.xar");
+        downloader(0, 3).download(myUri, dest);
+        assertArrayEquals("downloaded", myContent, Files.readAllBytes(dest));
+        assertEquals("single stream", 1, myRanges.size());
+    }
+
+    @Test
+    public void testRangesIgnored()
+            throws Exception
+    {
+        // advertised, but always answered with the whole archive
+        myRangesIgnored = true;
+        Path dest = myTmp.getRoot().toPath().resolve("pkg.xar");
+        downloader(0, 3).download(myUri, dest);
+        assertArrayEquals("downloaded", myContent, Files.readAllBytes(dest));
+    }
+
+    @Test
+    public void testDigest()
+            throws Exception
+    {
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(myContent);
+        Path dest = myTmp.getRoot().toPath().resolve("pkg.xar");
+        // in chunks, one of them resumed
+        myDropChunk = 3;
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        downloader(1, 3).download(myUri, dest, digest);
+        assertArrayEquals("chunks", expected, digest.digest());
+        // in a single stream
+        myRangesSupported = false;
+        Files.delete(dest);
+        downloader(0, 3).download(myUri, dest, digest);
+        assertArrayEquals("single stream", expected, digest.digest());
+    }
+
+    private HttpDownloader downloader(int retries, int connections)
+    {
+        HttpDownloader d = new HttpDownloader();
+        d.setChunkSize(CHUNK);
+        d.setConnections(connections);
+        d.setRetries(retries);
+        return d;
+    }
+
+    /**
+     * Serve the archive, resetting the connection in the middle of chunk 3.
+     */
+    private void serveResetting(ServerSocket server)
+    {
+        while ( ! server.isClosed() ) {
+            try {
+                Socket socket = server.accept();
+                myPool.submit(() -> {
+                    serveResetting(socket);
+                    return null;
+                });
+            }
+            catch ( IOException ex ) {
+                // closed at the end of the test
+            }
+        }
+    }
+
+    private void serveResetting(Socket socket)
+            throws Exception
+    {
+        try ( Socket s = socket ) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+            String range = null;
+            for ( String line = in.readLine(); line != null && ! line.isEmpty(); line = in.readLine() ) {
+                if ( line.toLowerCase().startsWith("range:") ) {
+                    range = line.substring("range:".length()).trim();
+                }
+            }
+            myRanges.add(String.valueOf(range));
+            int first = 0;
+            int last = myContent.length - 1;
+            StringBuilder headers = new StringBuilder();
+            if ( range == null ) {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            else {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                first = Integer.parseInt(bounds[0]);
+                last = Integer.parseInt(bounds[1]);
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Range: bytes " + first + "-" + last + "/" + myContent.length + "\r\n");
+            }
+            headers.append("Content-Length: " + (last - first + 1) + "\r\n");
+            headers.append("Accept-Ranges: bytes\r\nETag: \"v1\"\r\nConnection: close\r\n\r\n");
+            OutputStream out = s.getOutputStream();
+            out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if ( range != null && first == 3 * CHUNK ) {
+                out.write(myContent, first, CHUNK / 2);
+                out.flush();
+                // let the client read it, then reset the connection
+                Thread.sleep(200);
+                s.setSoLinger(true, 0);
+                return;
+            }
+            out.write(myContent, first, last - first + 1);
+            out.flush();
+        }
+        catch ( IOException ex ) {
+            // the client closed the connection
+        }
+    }
+
+    private void handle(HttpExchange exchange)
+            throws IOException
+    {
+        try {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            myRanges.add(String.valueOf(range));
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            if ( myRangesSupported ) {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+            int first = 0;
+            int last = myContent.length - 1;
+            if ( range != null && myRangesSupported && ! myRangesIgnored ) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                first = Integer.parseInt(bounds[0]);
+                last = Integer.parseInt(bounds[1]);
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + first + "-" + last + "/" + myContent.length);
+                exchange.sendResponseHeaders(206, last - first + 1);
+            }
+            else {
+                exchange.sendResponseHeaders(200, myContent.length);
+            }
+            OutputStream out = exchange.getResponseBody();
+            if ( range != null && first == myDropChunk * CHUNK ) {
+                // drop the connection in the middle of the chunk
+                out.write(myContent, first, CHUNK / 2);
+                out.flush();
+                throw new IOException("dropped");
+            }
+            out.write(myContent, first, last - first + 1);
+            out.close();
+        }
+        catch ( IOException ex ) {
+            // the client closed the connection, or a drop
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private static final int CHUNK = 16 * 1024;
+    private HttpServer myServer;
+    private ExecutorService myPool;
+    private URI myUri;
+    private byte[] myContent;
+    private final List<String> myRanges = new CopyOnWriteArrayList<>();
+    private volatile boolean myRangesSupported = true;
+    private volatile boolean myRangesIgnored = false;
+    /** The connection drops in the middle of this chunk, when requested from its start. */
+    private volatile int myDropChunk = -1;
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
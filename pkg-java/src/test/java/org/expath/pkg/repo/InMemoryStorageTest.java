@@ -0,0 +1,111 @@
+package org.expath.pkg.repo;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import org.expath.pkg.repo.tui.BatchUserInteraction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link InMemoryStorage}.
+ */
+public class InMemoryStorageTest
+{
+    @Test
+    public void testInstallAndResolve()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        List<XarSource> sources = new ArrayList<>();
+        for ( String d : new String[] { "lib-a-2.3.0", "lib-x-12.9.0", "lib-y-1.3.0" } ) {
+            sources.add(new XarFileSource(TestFiles.zip(deps.resolve(d), myTmp.newFile(d + ".xar").toPath())));
+        }
+        InMemoryStorage storage = new NoDiskStorage(false);
+        Repository sut = new Repository(storage);
+        sut.installPackages(sources, false, new BatchUserInteraction());
+        assertEquals("number of packages", 3, sut.listPackages().size());
+        assertTrue("content in memory", storage.getSize() > 0);
+
+        Package lib_a = sut.getPackages("http://example.org/lib-a").latest();
+        Source src = lib_a.getResolver().resolveComponent("style.xsl");
+        assertTrue("system ID", src.getSystemId().startsWith("memory:/"));
+        assertTrue("system ID", src.getSystemId().endsWith("/lib-a-2.3.0/lib-a/style.xsl"));
+        Path orig = deps.resolve("lib-a-2.3.0/lib-a/style.xsl");
+        try ( InputStream in = ((StreamSource) src).getInputStream() ) {
+            assertArrayEquals("content", Files.readAllBytes(orig), TestFiles.readAll(in));
+        }
+        // resolved twice, from the same buffer
+        try ( InputStream in = ((StreamSource) lib_a.getResolver().resolveComponent("/style.xsl")).getInputStream() ) {
+            assertArrayEquals("content", Files.readAllBytes(orig), TestFiles.readAll(in));
+        }
+
+        assertTrue("removed", sut.removePackage("http://example.org/lib-a", false, new BatchUserInteraction()));
+        assertNull("removed", sut.getPackages("http://example.org/lib-a"));
+        assertFalse("removed", storage.packageKeyExists("lib-a-2.3.0"));
+        assertEquals("package list", 2, storage.listPackageEntries().size());
+    }
+
+    @Test
+    public void testRelativeInclude()
+            throws Exception
+    {
+        Path xar = TestFiles.zip(TestFiles.LIB_INC, myTmp.newFile("lib-inc.xar").toPath());
+        Repository sut = new Repository(new NoDiskStorage(false));
+        sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        // common/hello.xsl is opened through the storage, not as a memory: URL
+        assertEquals("output", "Hello, included", TestFiles.transform(sut, "http://example.org/lib-inc/style.xsl"));
+    }
+
+    @Test
+    public void testDirectBuffers()
+            throws Exception
+    {
+        Path lib_x = TestFiles.DEPS.resolve("lib-x-12.9.0");
+        Path xar = TestFiles.zip(lib_x, myTmp.newFile("lib-x.xar").toPath());
+        // many throwaway repositories, nothing left on disk
+        for ( int i = 0; i < 50; ++i ) {
+            InMemoryStorage storage = new NoDiskStorage(true);
+            Repository sut = new Repository(storage);
+            Package pkg = sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+            assertNotNull("resolved", pkg.getResolver().resolveResource("expath-pkg.xml"));
+            sut.removePackage(pkg.getName(), false, new BatchUserInteraction());
+            assertEquals("nothing left", 0, storage.getSize());
+        }
+    }
+
+
+    /**
+     * Fail if a temporary dir is created, archives are local files.
+     */
+    private static class NoDiskStorage
+            extends InMemoryStorage
+    {
+        NoDiskStorage(boolean direct)
+        {
+            super(direct);
+        }
+
+        @Override
+        public Path makeTempDir(String prefix)
+                throws PackageException
+        {
+            throw new PackageException("No temp dir expected: " + prefix);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
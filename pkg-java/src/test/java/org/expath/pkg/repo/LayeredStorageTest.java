@@ -0,0 +1,88 @@
+package org.expath.pkg.repo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.expath.pkg.repo.tui.BatchUserInteraction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link LayeredStorage}.
+ */
+public class LayeredStorageTest
+{
+    @Test
+    public void testTenants()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        // the shared base, with the libraries
+        Path base_dir = myTmp.newFolder("base").toPath();
+        Repository base = new Repository(new FileSystemStorage(base_dir));
+        for ( String d : new String[] { "lib-x-12.9.0", "lib-y-1.3.0" } ) {
+            base.installPackage(new XarFileSource(xar(deps, d)), false, new BatchUserInteraction());
+        }
+        Storage shared = new FileSystemStorage(base_dir);
+        long base_size = Files.size(base_dir.resolve(".expath-pkg/packages.txt"));
+
+        // one tenant, with a package depending on the base
+        Path upper_dir = myTmp.newFolder("tenant-1").toPath();
+        LayeredStorage storage = new LayeredStorage(shared, new FileSystemStorage(upper_dir));
+        Repository sut = new Repository(storage);
+        assertEquals("no error", 0, sut.init().size());
+        assertEquals("base packages", 2, sut.listPackages().size());
+        sut.installPackage(new XarFileSource(xar(deps, "lib-a-2.3.0")), false, new BatchUserInteraction());
+        assertEquals("merged", 3, sut.listPackages().size());
+        assertEquals("merged", new HashSet<>(Arrays.asList("lib-x-12.9.0", "lib-y-1.3.0", "lib-a-2.3.0")),
+                storage.listPackageDirectories());
+        assertTrue("installed in the upper layer", Files.isDirectory(upper_dir.resolve("lib-a-2.3.0")));
+        assertFalse("not in the base", Files.exists(base_dir.resolve("lib-a-2.3.0")));
+        assertEquals("base list unchanged", base_size, Files.size(base_dir.resolve(".expath-pkg/packages.txt")));
+        assertEquals("upper list", 1, new FileSystemStorage(upper_dir).listPackageDirectories().size());
+
+        // another tenant does not see it
+        Repository other = new Repository(new LayeredStorage(shared, new FileSystemStorage(myTmp.newFolder("tenant-2").toPath())));
+        other.init();
+        assertEquals("base packages", 2, other.listPackages().size());
+        assertNull("not installed", other.getPackages("http://example.org/lib-a"));
+
+        // the base is read-only
+        try {
+            sut.removePackage("http://example.org/lib-x", false, new BatchUserInteraction());
+            fail("base package removed");
+        }
+        catch ( PackageException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("The package is in the read-only base layer"));
+        }
+        assertTrue("still in the base", Files.isDirectory(base_dir.resolve("lib-x-12.9.0")));
+
+        // a new repository object on the same layers sees them all, then remove from the upper layer
+        Repository reloaded = new Repository(new LayeredStorage(shared, new FileSystemStorage(upper_dir)));
+        assertEquals("no error", 0, reloaded.init().size());
+        assertEquals("merged", 3, reloaded.listPackages().size());
+        assertNotNull("resolved from the upper layer",
+                reloaded.getPackages("http://example.org/lib-a").latest().getResolver().resolveComponent("style.xsl"));
+        assertTrue("removed", reloaded.removePackage("http://example.org/lib-a", false, new BatchUserInteraction()));
+        assertFalse("removed", Files.exists(upper_dir.resolve("lib-a-2.3.0")));
+        assertEquals("base packages", 2, reloaded.listPackages().size());
+    }
+
+    private Path xar(Path deps, String dir)
+            throws Exception
+    {
+        return TestFiles.zip(deps.resolve(dir), myTmp.newFile(dir + ".xar").toPath());
+    }
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
@@ -0,0 +1,123 @@
+package org.expath.pkg.repo;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import javax.xml.transform.stream.StreamSource;
+import org.expath.pkg.repo.tui.BatchUserInteraction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link PackStorage}.
+ */
+public class PackStorageTest
+{
+    @Test
+    public void testStored()
+            throws Exception
+    {
+        checkPack(false);
+    }
+
+    @Test
+    public void testCompressed()
+            throws Exception
+    {
+        checkPack(true);
+    }
+
+    @Test
+    public void testUnpack()
+            throws Exception
+    {
+        Path pack = myTmp.getRoot().toPath().resolve("repo.pack");
+        PackStorage.pack(new FileSystemStorage(TestFiles.copyRepo(myTmp, "repo")), pack, true);
+        Path dir = myTmp.getRoot().toPath().resolve("unpacked");
+        Repository sut = new Repository(PackStorage.unpack(pack, dir));
+        assertEquals("no error", 0, sut.init().size());
+        assertEquals("package names", 5, sut.listPackages().size());
+        Path orig = TestFiles.DEPS.resolve("lib-y-1.19.18/lib-y/query.xql");
+        assertArrayEquals("unpacked", Files.readAllBytes(orig), Files.readAllBytes(dir.resolve("lib-y-1.19.18/lib-y/query.xql")));
+        // only in an empty repository
+        try {
+            PackStorage.unpack(pack, dir);
+            fail("unpacked twice");
+        }
+        catch ( PackageException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("The repository is not empty"));
+        }
+    }
+
+    @Test
+    public void testRelativeInclude()
+            throws Exception
+    {
+        Path dir = myTmp.newFolder("repo").toPath();
+        Repository repo = new Repository(new FileSystemStorage(dir));
+        Path xar = TestFiles.zip(TestFiles.LIB_INC, myTmp.newFile("lib-inc.xar").toPath());
+        repo.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        Path pack = myTmp.getRoot().toPath().resolve("repo.pack");
+        PackStorage.pack(new FileSystemStorage(dir), pack, true);
+        Repository sut = new Repository(new PackStorage(pack));
+        assertEquals("no error", 0, sut.init().size());
+        // common/hello.xsl is opened from the pack, not as a file named repo.pack!/...
+        assertEquals("output", "Hello, included", TestFiles.transform(sut, "http://example.org/lib-inc/style.xsl"));
+    }
+
+    @Test
+    public void testNotAPack()
+            throws Exception
+    {
+        Path file = myTmp.newFile("repo.pack").toPath();
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+        try {
+            new PackStorage(file);
+            fail("not a pack");
+        }
+        catch ( PackageException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Not a pack file"));
+        }
+    }
+
+    private void checkPack(boolean compress)
+            throws Exception
+    {
+        Path pack = myTmp.getRoot().toPath().resolve("repo.pack");
+        PackStorage.pack(new FileSystemStorage(TestFiles.copyRepo(myTmp, "repo")), pack, compress);
+        try ( Stream<Path> files = Files.list(pack.getParent()) ) {
+            assertEquals("no temp file left", 0, files.filter(f -> f.toString().endsWith(".tmp")).count());
+        }
+        PackStorage storage = new PackStorage(pack);
+        assertEquals("packages", 6, storage.size());
+        Repository sut = new Repository(storage);
+        assertEquals("no error", 0, sut.init().size());
+        assertEquals("package names", 5, sut.listPackages().size());
+        StreamSource src = (StreamSource) sut.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT);
+        assertNotNull("resolved", src);
+        assertTrue(src.getSystemId(), src.getSystemId().endsWith("repo.pack!/lib-a-2.3.0/lib-a/style.xsl"));
+        try ( InputStream in = src.getInputStream() ) {
+            assertArrayEquals("content", Files.readAllBytes(TestFiles.DEPS.resolve("lib-a-2.3.0/lib-a/style.xsl")), TestFiles.readAll(in));
+        }
+        try {
+            sut.removePackage("http://example.org/lib-a", false, new BatchUserInteraction());
+            fail("read-only");
+        }
+        catch ( UnsupportedOperationException ex ) {
+            // expected
+        }
+    }
+
+
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
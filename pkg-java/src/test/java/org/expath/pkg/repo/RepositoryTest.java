@@ -9,16 +9,38 @@
 
 package org.expath.pkg.repo;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.xml.transform.Source;
 
+import org.expath.pkg.repo.tui.BatchUserInteraction;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit tests for {@link Repository}.
@@ -54,6 +76,491 @@ public class RepositoryTest
         assertEquals("name", HELLO_NAME, pkg.getName());
     }
 
+    @Test
+    public void testParallelInit()
+            throws Exception
+    {
+        Storage storage = new FileSystemStorage(TestFiles.DEPS);
+        Repository sut = new Repository(storage);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<PackageException> exceptions = sut.init(pool);
+            assertEquals(0, exceptions.size());
+            assertEquals("number of packages", 5, sut.listPackages().size());
+            assertEquals("number of lib-y versions", 2, sut.getPackages("http://example.org/lib-y").packages().size());
+            // reload in the calling thread
+            assertEquals(0, sut.reload(Runnable::run).size());
+            assertEquals("number of packages after reload", 5, sut.listPackages().size());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLazyLoading()
+            throws Exception
+    {
+        Storage storage = new FileSystemStorage(TestFiles.DEPS);
+        Repository sut = new Repository(storage);
+        sut.setLazyLoading(true);
+        final List<PackageException> exceptions = sut.init();
+        assertEquals(0, exceptions.size());
+        // listing does not parse the descriptors
+        assertEquals("number of packages", 5, sut.listPackages().size());
+        Packages lib_y = sut.getPackages("http://example.org/lib-y");
+        assertEquals("number of lib-y versions", 2, lib_y.packages().size());
+        assertEquals("latest lib-y", "1.19.18", lib_y.latest().getVersion());
+        Package app = sut.getPackages("http://example.com/my-app").latest();
+        assertFalse("app not loaded yet", app.isLoaded());
+        // accessing the content parses the descriptor
+        assertEquals("app abbrev", "app", app.getAbbrev());
+        assertTrue("app loaded", app.isLoaded());
+        assertEquals("app dependencies", 2, app.getPackageDeps().size());
+        assertFalse("lib-y not loaded yet", lib_y.latest().isLoaded());
+        // resolving through the dependencies
+        Source src = app.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT);
+        assertNotNull("resolved in lib-a", src);
+        assertTrue("resolved in lib-a", src.getSystemId().endsWith("lib-a-2.3.0/lib-a/style.xsl"));
+    }
+
+    @Test
+    public void testLazyLoadingError()
+            throws Exception
+    {
+        Path dir = TestFiles.copyRepo(myTmp, "deps-1");
+        // the descriptor of lib-b does not match the package list anymore
+        Path desc = dir.resolve("lib-b-0.1.0/expath-pkg.xml");
+        String xml = new String(Files.readAllBytes(desc), StandardCharsets.UTF_8);
+        Files.write(desc, xml.replace("version=\"0.1.0\"", "version=\"0.2.0\"").getBytes(StandardCharsets.UTF_8));
+        Repository sut = new Repository(new FileSystemStorage(dir));
+        sut.setLazyLoading(true);
+        assertEquals("not parsed yet", 0, sut.init().size());
+        Package lib_b = sut.getPackages("http://example.org/lib-b").latest();
+        try {
+            lib_b.getAbbrev();
+            fail("not loaded");
+        }
+        catch ( Package.LoadException ex ) {
+            assertTrue(ex.getCause().getMessage(), ex.getCause().getMessage().contains("does not match the package list"));
+        }
+        // the error is kept, and thrown again
+        try {
+            lib_b.getPackageDeps();
+            fail("not loaded");
+        }
+        catch ( Package.LoadException ex ) {
+            // expected
+        }
+        try {
+            lib_b.resolve("http://example.org/lib-b/query.xql", URISpace.XQUERY);
+            fail("not loaded");
+        }
+        catch ( PackageException ex ) {
+            // expected
+        }
+        // the other packages are still resolved
+        assertNotNull("resolved in lib-a", sut.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT));
+        // once fixed, reload parses it again
+        Files.write(desc, xml.getBytes(StandardCharsets.UTF_8));
+        assertEquals("no error", 0, sut.reload().size());
+        assertEquals("lib-b abbrev", "lib-b", sut.getPackages("http://example.org/lib-b").latest().getAbbrev());
+    }
+
+    @Test
+    public void testSnapshotIsolation()
+            throws Exception
+    {
+        Repository sut = new Repository();
+        Package p1 = new Package(sut, null, "urn:test:1", "p1", "1.0.0", "title 1", null);
+        sut.addPackage(p1);
+        // pin the snapshot, then update the repo
+        RepositorySnapshot pinned = sut.snapshot();
+        Package p2 = new Package(sut, null, "urn:test:2", "p2", "1.0.0", "title 2", null);
+        sut.addPackage(p2);
+        Package p1bis = new Package(sut, null, "urn:test:1", "p1", "2.0.0", "title 1", null);
+        sut.addPackage(p1bis);
+        // the pinned snapshot did not change
+        assertEquals("pinned number of packages", 1, pinned.listPackages().size());
+        assertNull("pinned does not see p2", pinned.getPackages("urn:test:2"));
+        assertEquals("pinned versions of p1", 1, pinned.getPackages("urn:test:1").packages().size());
+        assertSame("pinned latest of p1", p1, pinned.getPackages("urn:test:1").latest());
+        // but the repo did
+        assertEquals("number of packages", 2, sut.listPackages().size());
+        assertSame("latest of p1", p1bis, sut.getPackages("urn:test:1").latest());
+        assertNotSame("new snapshot", pinned, sut.snapshot());
+    }
+
+    @Test
+    public void testBinaryIndex()
+            throws Exception
+    {
+        Path dir = TestFiles.copyRepo(myTmp, "deps-1");
+        Repository first = new Repository(new FileSystemStorage(dir));
+        first.setBinaryIndex(true);
+        first.registerExtension(new IndexedExtension());
+        assertEquals(0, first.init().size());
+        assertTrue("index written", Files.exists(dir.resolve(".expath-pkg/packages.idx")));
+        // a new repository object decodes the packages from the index
+        Repository sut = new Repository(new FileSystemStorage(dir));
+        sut.setBinaryIndex(true);
+        IndexedExtension ext = new IndexedExtension();
+        sut.registerExtension(ext);
+        assertEquals(0, sut.init().size());
+        assertEquals("number of packages", 5, sut.listPackages().size());
+        Package app = sut.getPackages("http://example.com/my-app").latest();
+        assertNotNull("app in the index", app.getIndexEntry());
+        assertFalse("app not decoded yet", app.isLoaded());
+        assertEquals("app abbrev", "app", app.getAbbrev());
+        assertEquals("app dependencies", 2, app.getPackageDeps().size());
+        assertEquals("extension info read back", 1, ext.myRead);
+        assertEquals("extension not initialized", 0, ext.myInit);
+        Source src = app.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT);
+        assertNotNull("resolved in lib-a", src);
+        assertTrue("resolved in lib-a", src.getSystemId().endsWith("lib-a-2.3.0/lib-a/style.xsl"));
+        // a package with a changed descriptor is parsed again
+        Path desc = dir.resolve("lib-a-2.3.0/expath-pkg.xml");
+        long modified = Files.getLastModifiedTime(desc).toMillis();
+        Files.setLastModifiedTime(desc, FileTime.fromMillis(modified + 10000));
+        Repository third = new Repository(new FileSystemStorage(dir));
+        third.setBinaryIndex(true);
+        assertEquals(0, third.init().size());
+        assertNull("lib-a parsed", third.getPackages("http://example.org/lib-a").latest().getIndexEntry());
+        assertNotNull("app still in the index", third.getPackages("http://example.com/my-app").latest().getIndexEntry());
+    }
+
+    @Test
+    public void testIncrementalReload()
+            throws Exception
+    {
+        Path dir = TestFiles.copyRepo(myTmp, "deps-1");
+        Repository sut = new Repository(new FileSystemStorage(dir));
+        assertEquals(0, sut.init().size());
+        Package app = sut.getPackages("http://example.com/my-app").latest();
+        Package lib_a = sut.getPackages("http://example.org/lib-a").latest();
+        // change lib-a, and remove lib-x from the package list
+        Path desc = dir.resolve("lib-a-2.3.0/expath-pkg.xml");
+        long modified = Files.getLastModifiedTime(desc).toMillis();
+        Files.setLastModifiedTime(desc, FileTime.fromMillis(modified + 10000));
+        Path txt = dir.resolve(".expath-pkg/packages.txt");
+        List<String> lines = new ArrayList<>(Files.readAllLines(txt, StandardCharsets.UTF_8));
+        assertTrue("lib-x in the list", lines.remove("lib-x-12.9.0 http://example.org/lib-x 12.9.0"));
+        Files.write(txt, lines, StandardCharsets.UTF_8);
+        assertEquals(0, sut.reload().size());
+        assertEquals("number of packages", 4, sut.listPackages().size());
+        assertSame("app kept", app, sut.getPackages("http://example.com/my-app").latest());
+        assertNotSame("lib-a parsed again", lib_a, sut.getPackages("http://example.org/lib-a").latest());
+        assertNull("lib-x removed", sut.getPackages("http://example.org/lib-x"));
+    }
+
+    @Test
+    public void testWatcher()
+            throws Exception
+    {
+        Path dir = TestFiles.copyRepo(myTmp, "deps-1");
+        FileSystemStorage storage = new FileSystemStorage(dir);
+        Repository sut = new Repository(storage);
+        assertEquals(0, sut.init().size());
+        try ( RepositoryWatcher watcher = storage.watch(sut, 50, TimeUnit.MILLISECONDS) ) {
+            // another process removes lib-x from the package list
+            Path txt = dir.resolve(".expath-pkg/packages.txt");
+            List<String> lines = new ArrayList<>(Files.readAllLines(txt, StandardCharsets.UTF_8));
+            lines.remove("lib-x-12.9.0 http://example.org/lib-x 12.9.0");
+            Files.write(txt, lines, StandardCharsets.UTF_8);
+            for ( int i = 0; i < 200 && watcher.getReloadCount() == 0; ++i ) {
+                Thread.sleep(50);
+            }
+            assertNull("lib-x removed", sut.getPackages("http://example.org/lib-x"));
+            assertTrue("reloaded", watcher.getReloadCount() > 0);
+        }
+    }
+
+    @Test
+    public void testDescriptorFirstInstall()
+            throws Exception
+    {
+        Path xar = TestFiles.zip(TestFiles.DEPS.resolve("lib-a-2.3.0"), myTmp.newFile("lib-a.xar").toPath());
+        Path dir = myTmp.newFolder("repo").toPath();
+        Repository sut = new Repository(new FileSystemStorage(dir));
+        int files = countFiles(dir.resolve(".expath-pkg"));
+        // the dependencies are not installed, and the user cancels
+        try {
+            sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction() {
+                @Override
+                public boolean ask(String prompt, boolean dflt) {
+                    return false;
+                }
+            });
+            fail("dependencies not installed");
+        }
+        catch ( PackageException ex ) {
+            // expected
+        }
+        assertEquals("nothing extracted", 1, countFiles(dir));
+        assertEquals("no temp dir", files, countFiles(dir.resolve(".expath-pkg")));
+        // install anyway, then again
+        sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        assertNotNull("lib-a installed", sut.getPackages("http://example.org/lib-a"));
+        files = countFiles(dir.resolve(".expath-pkg"));
+        try {
+            sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+            fail("already installed");
+        }
+        catch ( Repository.AlreadyInstalledException ex ) {
+            // expected
+        }
+        assertEquals("no temp dir", files, countFiles(dir.resolve(".expath-pkg")));
+    }
+
+    @Test
+    public void testParallelExtraction()
+            throws Exception
+    {
+        Path src = TestFiles.DEPS.resolve("lib-a-2.3.0");
+        Path xar = TestFiles.zip(src, myTmp.newFile("lib-a.xar").toPath());
+        Path dir = myTmp.newFolder("repo").toPath();
+        Repository sut = new Repository(new FileSystemStorage(dir));
+        sut.setExtractionThreads(4);
+        Package pkg = sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        assertNotNull("lib-a installed", sut.getPackages("http://example.org/lib-a"));
+        for ( String f : new String[] { "expath-pkg.xml", "lib-a/query.xql", "lib-a/style.xsl" } ) {
+            assertTrue("extracted: " + f, Arrays.equals(Files.readAllBytes(src.resolve(f)),
+                    Files.readAllBytes(dir.resolve(pkg.getResolver().getResourceName()).resolve(f))));
+        }
+    }
+
+    @Test
+    public void testInstallPackages()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        List<XarSource> sources = new ArrayList<>();
+        for ( String d : new String[] { "app-1.0.0", "lib-a-2.3.0", "lib-b-0.1.0", "lib-x-12.9.0", "lib-y-1.3.0" } ) {
+            sources.add(new XarFileSource(TestFiles.zip(deps.resolve(d), myTmp.newFile(d + ".xar").toPath())));
+        }
+        Path dir = myTmp.newFolder("repo").toPath();
+        Repository sut = new Repository(new FileSystemStorage(dir));
+        int files = countFiles(dir.resolve(".expath-pkg"));
+        // all the dependencies are in the batch, refuse any missing one
+        List<Package> installed = sut.installPackages(sources, false, new BatchUserInteraction() {
+            @Override
+            public boolean ask(String prompt, boolean dflt) {
+                return false;
+            }
+        });
+        List<String> names = new ArrayList<>();
+        for ( Package pkg : installed ) {
+            names.add(pkg.getName());
+        }
+        assertEquals("dependencies first", Arrays.asList("http://example.org/lib-x", "http://example.org/lib-y",
+                "http://example.org/lib-a", "http://example.org/lib-b", "http://example.com/my-app"), names);
+        assertEquals("number of packages", 5, sut.listPackages().size());
+        List<String> lines = Files.readAllLines(dir.resolve(".expath-pkg/packages.txt"), StandardCharsets.UTF_8);
+        assertEquals("package list", Arrays.asList(
+                "lib-x-12.9.0 http://example.org/lib-x 12.9.0",
+                "lib-y-1.3.0 http://example.org/lib-y 1.3.0",
+                "lib-a-2.3.0 http://example.org/lib-a 2.3.0",
+                "lib-b-0.1.0 http://example.org/lib-b 0.1.0",
+                "app-1.0.0 http://example.com/my-app 1.0.0"), lines);
+        String xml = new String(Files.readAllBytes(dir.resolve(".expath-pkg/packages.xml")), StandardCharsets.UTF_8);
+        assertEquals("packages.xml", 5, xml.split("<package ").length - 1);
+        assertTrue("packages.xml", xml.contains("dir=\"app-1.0.0\""));
+        assertEquals("no temp dir", files, countFiles(dir.resolve(".expath-pkg")));
+        // a new repository object sees them all
+        Repository reloaded = new Repository(new FileSystemStorage(dir));
+        assertEquals(0, reloaded.init().size());
+        assertEquals("number of packages", 5, reloaded.listPackages().size());
+    }
+
+    @Test
+    public void testInstallPackagesFailure()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        List<XarSource> sources = new ArrayList<>();
+        for ( String d : new String[] { "lib-a-2.3.0", "lib-b-0.1.0", "lib-x-12.9.0", "lib-y-1.3.0" } ) {
+            sources.add(new XarFileSource(TestFiles.zip(deps.resolve(d), myTmp.newFile(d + ".xar").toPath())));
+        }
+        Path dir = myTmp.newFolder("repo").toPath();
+        // lib-b cannot be stored, after lib-x, lib-y and lib-a
+        Repository sut = new Repository(new FileSystemStorage(dir) {
+            @Override
+            public void storeInstallDir(Path tmp, String key, Package pkg) throws PackageException {
+                if ( key.startsWith("lib-b") ) {
+                    throw new PackageException("Cannot store " + key);
+                }
+                super.storeInstallDir(tmp, key, pkg);
+            }
+        });
+        IndexedExtension ext = new IndexedExtension();
+        sut.registerExtension(ext);
+        sut.setBinaryIndex(true);
+        try {
+            sut.installPackages(sources, false, new BatchUserInteraction());
+            fail("lib-b not stored");
+        }
+        catch ( PackageException ex ) {
+            assertEquals("Cannot store lib-b-0.1.0", ex.getMessage());
+        }
+        // the packages stored before are completely installed
+        assertEquals("number of packages", 3, sut.listPackages().size());
+        assertEquals("extension called", 3, ext.myInit);
+        List<String> lines = Files.readAllLines(dir.resolve(".expath-pkg/packages.txt"), StandardCharsets.UTF_8);
+        assertEquals("package list", 3, lines.size());
+        Repository reloaded = new Repository(new FileSystemStorage(dir));
+        reloaded.setBinaryIndex(true);
+        assertEquals(0, reloaded.init().size());
+        assertNotNull("in the index", reloaded.getPackages("http://example.org/lib-a").latest().getIndexEntry());
+    }
+
+    @Test
+    public void testJournal()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        Path dir = myTmp.newFolder("repo").toPath();
+        Path txt = dir.resolve(".expath-pkg/packages.txt");
+        Path journal = dir.resolve(".expath-pkg/packages.journal");
+        FileSystemStorage storage = new FileSystemStorage(dir);
+        storage.setJournal(true);
+        Repository sut = new Repository(storage);
+        List<String> empty = Files.readAllLines(txt, StandardCharsets.UTF_8);
+        for ( String d : new String[] { "lib-x-12.9.0", "lib-y-1.3.0" } ) {
+            Path xar = TestFiles.zip(deps.resolve(d), myTmp.newFile(d + ".xar").toPath());
+            sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        }
+        sut.removePackage("http://example.org/lib-y", false, new BatchUserInteraction());
+        // the lists are not rewritten, the journal is
+        assertEquals("packages.txt", empty, Files.readAllLines(txt, StandardCharsets.UTF_8));
+        assertEquals("journal records", 4, Files.readAllLines(journal, StandardCharsets.UTF_8).size());
+        // a torn record at the end is ignored
+        Files.write(journal, "0badc0de + lib-z".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        Repository reloaded = new Repository(new FileSystemStorage(dir));
+        assertEquals(0, reloaded.init().size());
+        assertEquals("number of packages", 1, reloaded.listPackages().size());
+        assertNotNull(reloaded.getPackages("http://example.org/lib-x"));
+        // compacting writes the lists, and empties the journal
+        storage.compactJournal();
+        assertEquals("package list", Arrays.asList("lib-x-12.9.0 http://example.org/lib-x 12.9.0"),
+                Files.readAllLines(txt, StandardCharsets.UTF_8));
+        assertEquals("journal records", 1, Files.readAllLines(journal, StandardCharsets.UTF_8).size());
+        Repository compacted = new Repository(new FileSystemStorage(dir));
+        assertEquals(0, compacted.init().size());
+        assertEquals("number of packages", 1, compacted.listPackages().size());
+    }
+
+    @Test
+    public void testDeduplication()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        Path dir = myTmp.newFolder("repo").toPath();
+        Path objects = dir.resolve(".expath-pkg/objects");
+        FileSystemStorage storage = new FileSystemStorage(dir);
+        storage.setDeduplication(true);
+        Repository sut = new Repository(storage);
+        for ( String d : new String[] { "lib-y-1.3.0", "lib-y-1.19.18" } ) {
+            Path xar = TestFiles.zip(deps.resolve(d), myTmp.newFile(d + ".xar").toPath());
+            sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        }
+        // the two versions only differ by their descriptor
+        assertEquals("number of objects", 4, countObjects(objects));
+        Path style = Paths.get("lib-y/style.xsl");
+        assertTrue("shared file", Files.isSameFile(dir.resolve("lib-y-1.3.0").resolve(style),
+                dir.resolve("lib-y-1.19.18").resolve(style)));
+        assertNotNull(sut.getPackages("http://example.org/lib-y").version("1.3.0")
+                .resolve("http://example.org/lib-y/style.xsl", URISpace.XSLT));
+        // removing one version only deletes its descriptor
+        sut.removePackage("http://example.org/lib-y", "1.19.18", false, new BatchUserInteraction());
+        assertEquals("number of objects", 3, countObjects(objects));
+        sut.removePackage("http://example.org/lib-y", false, new BatchUserInteraction());
+        assertEquals("no bucket left", 0, countFiles(objects));
+        // the objects collected are stored again
+        sut.installPackage(new XarFileSource(myTmp.getRoot().toPath().resolve("lib-y-1.3.0.xar")), false, new BatchUserInteraction());
+        assertEquals("number of objects", 3, countObjects(objects));
+    }
+
+    @Test
+    public void testChecksums()
+            throws Exception
+    {
+        Path deps = TestFiles.DEPS;
+        Path dir = myTmp.newFolder("repo").toPath();
+        FileSystemStorage storage = new FileSystemStorage(dir);
+        Repository sut = new Repository(storage);
+        sut.setRecordChecksums(true);
+        // a wrong digest, nothing installed
+        Path lib_x = TestFiles.zip(deps.resolve("lib-x-12.9.0"), myTmp.newFile("lib-x.xar").toPath());
+        try {
+            sut.installPackage(new XarFileSource(lib_x), "0123", false, new BatchUserInteraction());
+            fail("digest mismatch");
+        }
+        catch ( PackageException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Digest mismatch"));
+        }
+        assertFalse("not installed", Files.exists(dir.resolve("lib-x-12.9.0")));
+        // the right digest, and the files checked later
+        Path lib_y = TestFiles.zip(deps.resolve("lib-y-1.3.0"), myTmp.newFile("lib-y.xar").toPath());
+        String sha256 = ObjectStore.digest(lib_y).toUpperCase();
+        Package pkg = sut.installPackage(new XarFileSource(lib_y), sha256, false, new BatchUserInteraction());
+        assertTrue("checksums", Files.exists(dir.resolve("lib-y-1.3.0/expath-pkg.sha256")));
+        assertEquals("intact", 0, storage.verifyPackage(pkg).size());
+        Files.write(dir.resolve("lib-y-1.3.0/lib-y/style.xsl"), "changed".getBytes(StandardCharsets.UTF_8));
+        Files.delete(dir.resolve("lib-y-1.3.0/lib-y/query.xql"));
+        assertEquals("changed", Arrays.asList("lib-y/query.xql", "lib-y/style.xsl"), storage.verifyPackage(pkg));
+    }
+
+
+    private static int countFiles(Path dir)
+            throws IOException
+    {
+        try ( Stream<Path> files = Files.list(dir) ) {
+            return (int) files.count();
+        }
+    }
+
+    private static long countObjects(Path dir)
+            throws IOException
+    {
+        try ( Stream<Path> files = Files.walk(dir) ) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    /**
+     * An extension supporting the index, counting how packages are set up.
+     */
+    private static class IndexedExtension
+            extends Extension
+    {
+        public IndexedExtension() {
+            super("indexed");
+        }
+        @Override
+        public void init(Repository repo, Package pkg) {
+            ++myInit;
+        }
+        @Override
+        public void install(Repository repo, Package pkg) {
+            ++myInit;
+        }
+        @Override
+        public boolean writeInfo(Package pkg, DataOutput out) throws IOException {
+            out.writeUTF(pkg.getName());
+            return true;
+        }
+        @Override
+        public void readInfo(Package pkg, DataInput in) throws IOException {
+            assertEquals("info of the package", pkg.getName(), in.readUTF());
+            ++myRead;
+        }
+        private int myInit = 0;
+        private int myRead = 0;
+    }
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+
     private static final String HELLO_NAME = "http://www.example.org/lib/hello";
 }
 
@@ -0,0 +1,102 @@
+package org.expath.pkg.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.expath.pkg.repo.resolver.PkgURIResolver;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * File helpers shared by the tests.
+ */
+final class TestFiles
+{
+    private TestFiles()
+    {
+        // static helpers only
+    }
+
+    /**
+     * Copy the repository {@link #DEPS} to a new folder, to be modified.
+     *
+     * @param tmp the temporary folder of the test
+     * @param name the name of the new folder
+     *
+     * @return the copy of the repository.
+     */
+    static Path copyRepo(TemporaryFolder tmp, String name)
+            throws IOException
+    {
+        Path dir = tmp.newFolder(name).toPath();
+        FileHelper.copy(DEPS, dir);
+        return dir;
+    }
+
+    /**
+     * Zip a package dir to a XAR file.
+     *
+     * @return the XAR file.
+     */
+    static Path zip(Path dir, Path xar)
+            throws IOException
+    {
+        try ( ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(xar));
+              Stream<Path> files = Files.walk(dir) ) {
+            for ( Path f : (Iterable<Path>) files::iterator ) {
+                if ( Files.isRegularFile(f) ) {
+                    out.putNextEntry(new ZipEntry(dir.relativize(f).toString().replace('\\', '/')));
+                    Files.copy(f, out);
+                    out.closeEntry();
+                }
+            }
+        }
+        return xar;
+    }
+
+    /**
+     * Read a stream until its end.  Does not close it.
+     */
+    static byte[] readAll(InputStream in)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for ( int n = in.read(buf); n >= 0; n = in.read(buf) ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply a stylesheet from a universe on an empty document, resolving its imports with it.
+     *
+     * @return the text output.
+     */
+    static String transform(Universe universe, String uri)
+            throws Exception
+    {
+        TransformerFactory factory = TransformerFactory.newInstance();
+        factory.setURIResolver(new PkgURIResolver(universe, URISpace.XSLT));
+        Transformer trans = factory.newTransformer(universe.resolve(uri, URISpace.XSLT));
+        StringWriter out = new StringWriter();
+        trans.transform(new StreamSource(new StringReader("<doc/>")), new StreamResult(out));
+        return out.toString();
+    }
+
+    /** The test repository, with the packages app, lib-a, lib-b, lib-x and lib-y (2 versions). */
+    static final Path DEPS = Paths.get("target/test-classes/repos/deps-1");
+    /** A package with a stylesheet including another one, by a relative URI. */
+    static final Path LIB_INC = Paths.get("target/test-classes/packages/lib-inc-1.0.0");
+}
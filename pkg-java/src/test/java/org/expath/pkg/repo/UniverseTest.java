@@ -15,6 +15,8 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
@@ -126,6 +128,35 @@ public class UniverseTest
         private final String myPkg;
     }
 
+    private static class TestInfo
+            extends PackageInfo
+    {
+        public TestInfo(Package pkg, String href, boolean indexable) {
+            super("test", pkg);
+            myHref = href;
+            myIndexable = indexable;
+        }
+        @Override
+        public Source resolve(String href, URISpace space) {
+            if ( space == URISpace.XQUERY && myHref.equals(href) ) {
+                return new TestSource(getPackage().getName() + " | info | " + href);
+            }
+            return null;
+        }
+        @Override
+        public Collection<String> getPublicUris(URISpace space) {
+            if ( ! myIndexable ) {
+                return null;
+            }
+            if ( space == URISpace.XQUERY ) {
+                return Collections.singleton(myHref);
+            }
+            return Collections.emptySet();
+        }
+        private final String myHref;
+        private final boolean myIndexable;
+    }
+
     private static final String APP_PKG_NAME   = "http://example.com/my-app";
     private static final String LIB_A_PKG_NAME = "http://example.org/lib-a";
     private static final String LIB_B_PKG_NAME = "http://example.org/lib-b";
@@ -161,6 +192,176 @@ public class UniverseTest
         assertEquals("the resolved component", "pkg 1 | component | dir/some.xsl", src.toString());
     }
 
+    /**
+     * Resolve in the whole repo, through the URI index, including URIs added by
+     * extension infos (indexable or not).
+     */
+    @Test
+    public void repoIndexWithInfos()
+            throws PackageException
+    {
+        // the fixture (the repository and packages)
+        Repository repo = new Repository();
+        Package p1 = new Package(repo, new TestResolver("pkg 1"), "urn:test:1", "p1", "1.0", "title 1", "http://home/1");
+        p1.addPublicUri(URISpace.XSLT, "urn:test:1:some.xsl", "dir/some.xsl");
+        p1.addInfo("test", new TestInfo(p1, "urn:test:1:info", true));
+        repo.addPackage(p1);
+        Package p2 = new Package(repo, new TestResolver("pkg 2"), "urn:test:2", "p2", "1.0", "title 2", "http://home/2");
+        p2.addInfo("test", new TestInfo(p2, "urn:test:2:info", false));
+        repo.addPackage(p2);
+        // an older version, only used through a dependency on it
+        Package p1old = new Package(repo, new TestResolver("pkg 1 old"), "urn:test:1", "p1", "0.9", "title 1", "http://home/1");
+        p1old.addPublicUri(URISpace.XSLT, "urn:test:1:some.xsl", "dir/some.xsl");
+        p1old.addPublicUri(URISpace.XSLT, "urn:test:1:old.xsl", "dir/old.xsl");
+        repo.addPackage(p1old);
+        Package p3 = new Package(repo, new TestResolver("pkg 3"), "urn:test:3", "p3", "1.0", "title 3", "http://home/3");
+        p3.addPackageDep("urn:test:1", "0.9", null, null, null);
+        p3.addPublicUri(URISpace.XSLT, "urn:test:3:old.xsl", "dir/old.xsl");
+        repo.addPackage(p3);
+        // do it, and assert
+        assertEquals("component of the latest version", "pkg 1 | component | dir/some.xsl",
+                repo.resolve("urn:test:1:some.xsl", URISpace.XSLT).toString());
+        assertEquals("component of an older version, through a dependency", "pkg 1 old | component | dir/old.xsl",
+                repo.resolve("urn:test:1:old.xsl", URISpace.XSLT).toString());
+        assertEquals("indexed info", "urn:test:1 | info | urn:test:1:info",
+                repo.resolve("urn:test:1:info", URISpace.XQUERY).toString());
+        assertEquals("non-indexed info", "urn:test:2 | info | urn:test:2:info",
+                repo.resolve("urn:test:2:info", URISpace.XQUERY).toString());
+        assertNull("not in the repo", repo.resolve("urn:test:1:info", URISpace.XSLT));
+    }
+
+    /**
+     * An href dropped from the latest version does not resolve to an older one.
+     */
+    @Test
+    public void repoIndexLatestOnly()
+            throws PackageException
+    {
+        Repository repo = new Repository();
+        Package p1 = new Package(repo, new TestResolver("pkg 1"), "urn:test:1", "p1", "1.0", "title 1", null);
+        p1.addPublicUri(URISpace.XSLT, "urn:test:1:some.xsl", "dir/some.xsl");
+        repo.addPackage(p1);
+        Package p1old = new Package(repo, new TestResolver("pkg 1 old"), "urn:test:1", "p1", "0.9", "title 1", null);
+        p1old.addPublicUri(URISpace.XSLT, "urn:test:1:some.xsl", "dir/some.xsl");
+        p1old.addPublicUri(URISpace.XSLT, "urn:test:1:dropped.xsl", "dir/dropped.xsl");
+        repo.addPackage(p1old);
+        assertNull("dropped from the latest version", repo.resolve("urn:test:1:dropped.xsl", URISpace.XSLT));
+        assertFalse("not in the filter", repo.getUriFilter().mightContain("urn:test:1:dropped.xsl", URISpace.XSLT));
+        // the older version itself still resolves it
+        assertEquals("in the older version", "pkg 1 old | component | dir/dropped.xsl",
+                p1old.resolve("urn:test:1:dropped.xsl", URISpace.XSLT, true).toString());
+    }
+
+    /**
+     * The transitive closure is computed once per snapshot, and cuts cycles.
+     */
+    @Test
+    public void memoizedDependencies()
+            throws PackageException
+    {
+        // the fixture, p1 -> p2 -> p1, and p3 installed later
+        Repository repo = new Repository();
+        Package p1 = new Package(repo, new TestResolver("pkg 1"), "urn:test:1", "p1", "1.0.0", "title 1", null);
+        p1.addPackageDep("urn:test:2", null, null, null, null);
+        p1.addPackageDep("urn:test:3", null, null, null, null);
+        repo.addPackage(p1);
+        Package p2 = new Package(repo, new TestResolver("pkg 2"), "urn:test:2", "p2", "1.0.0", "title 2", null);
+        p2.addPackageDep("urn:test:1", null, "1", null, null);
+        p2.addPublicUri(URISpace.XSLT, "urn:test:2:some.xsl", "dir/some.xsl");
+        repo.addPackage(p2);
+        // do it, and assert
+        assertEquals("resolved in p2", "pkg 2 | component | dir/some.xsl",
+                p1.resolve("urn:test:2:some.xsl", URISpace.XSLT, true).toString());
+        assertNull("not in the closure", p1.resolve("urn:test:3:some.xsl", URISpace.XSLT, true));
+        List<Package> closure = p1.getClosure();
+        assertEquals("closure, cycle cut", 2, closure.size());
+        assertSame("same snapshot, same closure", closure, p1.getClosure());
+        // install p3, the closure is computed again
+        RepositorySnapshot pinned = repo.snapshot();
+        Package p3 = new Package(repo, new TestResolver("pkg 3"), "urn:test:3", "p3", "1.0.0", "title 3", null);
+        p3.addPublicUri(URISpace.XSLT, "urn:test:3:some.xsl", "dir/some.xsl");
+        repo.addPackage(p3);
+        assertEquals("closure with p3", 3, p1.getClosure().size());
+        assertEquals("resolved in p3", "pkg 3 | component | dir/some.xsl",
+                p1.resolve("urn:test:3:some.xsl", URISpace.XSLT, true).toString());
+        // but not in the snapshot before p3
+        assertNull("not in the pinned snapshot", pinned.resolve(p1, "urn:test:3:some.xsl", URISpace.XSLT));
+        assertEquals("closure in the pinned snapshot", 2, p1.getClosure(pinned).size());
+    }
+
+    /**
+     * Transitive resolution through the flat URI table of a package.
+     */
+    @Test
+    public void flatUriTable()
+            throws PackageException
+    {
+        // the fixture, p1 -> p2 -> p3, p2 has a non-indexable info
+        Repository repo = new Repository();
+        repo.setFlatUriTables(true);
+        Package p1 = new Package(repo, new TestResolver("pkg 1"), "urn:test:1", "p1", "1.0.0", "title 1", null);
+        p1.addPackageDep("urn:test:2", null, null, null, null);
+        p1.addPublicUri(URISpace.XSLT, "urn:test:1:some.xsl", "dir/some.xsl");
+        repo.addPackage(p1);
+        Package p2 = new Package(repo, new TestResolver("pkg 2"), "urn:test:2", "p2", "1.0.0", "title 2", null);
+        p2.addPackageDep("urn:test:3", null, null, null, null);
+        p2.addInfo("test", new TestInfo(p2, "urn:test:3:query", false));
+        repo.addPackage(p2);
+        Package p3 = new Package(repo, new TestResolver("pkg 3"), "urn:test:3", "p3", "1.0.0", "title 3", null);
+        p3.addPublicUri(URISpace.XQUERY, "urn:test:3:query", "dir/query.xq");
+        p3.addPublicUri(URISpace.XSLT, "urn:test:3:some.xsl", "dir/some.xsl");
+        repo.addPackage(p3);
+        // do it, and assert
+        assertEquals("in the package itself", "pkg 1 | component | dir/some.xsl",
+                p1.resolve("urn:test:1:some.xsl", URISpace.XSLT, true).toString());
+        assertEquals("in a transitive dependency", "pkg 3 | component | dir/some.xsl",
+                p1.resolve("urn:test:3:some.xsl", URISpace.XSLT, true).toString());
+        assertEquals("the non-indexed info comes first", "urn:test:2 | info | urn:test:3:query",
+                p1.resolve("urn:test:3:query", URISpace.XQUERY, true).toString());
+        assertNull("not in the closure", p1.resolve("urn:test:4:some.xsl", URISpace.XSLT, true));
+        UriIndex table = p1.getUriTable();
+        assertSame("table built once", table, p1.getUriTable());
+        // installing a package builds it again
+        Package p4 = new Package(repo, new TestResolver("pkg 4"), "urn:test:4", "p4", "1.0.0", "title 4", null);
+        repo.addPackage(p4);
+        assertNotSame("table built again", table, p1.getUriTable());
+    }
+
+    /**
+     * The URI filter answers the URIs not in the repository right away.
+     */
+    @Test
+    public void uriFilter()
+            throws PackageException
+    {
+        // the fixture
+        Repository repo = new Repository();
+        Package p1 = new Package(repo, new TestResolver("pkg 1"), "urn:test:1", "p1", "1.0", "title 1", null);
+        p1.addPublicUri(URISpace.XSLT, "urn:test:1:some.xsl", "dir/some.xsl");
+        p1.addInfo("test", new TestInfo(p1, "urn:test:1:info", true));
+        repo.addPackage(p1);
+        // do it, and assert
+        assertEquals("in the repo", "pkg 1 | component | dir/some.xsl",
+                repo.resolve("urn:test:1:some.xsl", URISpace.XSLT).toString());
+        assertEquals("in an info", "urn:test:1 | info | urn:test:1:info",
+                repo.resolve("urn:test:1:info", URISpace.XQUERY).toString());
+        assertNull("not in the repo", repo.resolve("http://www.w3.org/2001/XMLSchema", URISpace.XSLT));
+        assertNull("not in the package", p1.resolve("urn:test:1:other.xsl", URISpace.XSLT, true));
+        UriFilter filter = repo.getUriFilter();
+        assertTrue("enabled", filter.isEnabled());
+        assertEquals("lookups", 4, filter.getLookupCount());
+        assertEquals("hits", 2, filter.getHitCount());
+        assertEquals("misses (or false positives)", 2, filter.getMissCount() + filter.getFalsePositiveCount());
+        assertTrue("expected false positive rate", filter.getExpectedFalsePositiveRate() < 0.05);
+        // a package with an info not able to list its URIs disables it
+        Package p2 = new Package(repo, new TestResolver("pkg 2"), "urn:test:2", "p2", "1.0", "title 2", null);
+        p2.addInfo("test", new TestInfo(p2, "urn:test:2:info", false));
+        repo.addPackage(p2);
+        assertFalse("disabled", repo.getUriFilter().isEnabled());
+        assertEquals("non-indexed info", "urn:test:2 | info | urn:test:2:info",
+                repo.resolve("urn:test:2:info", URISpace.XQUERY).toString());
+    }
+
     /**
      * Use one package
      */
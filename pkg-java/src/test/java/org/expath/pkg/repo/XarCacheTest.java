@@ -0,0 +1,151 @@
+package org.expath.pkg.repo;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.expath.pkg.repo.tui.BatchUserInteraction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link XarCache}, against a local HTTP server.
+ */
+public class XarCacheTest
+{
+    @Before
+    public void startServer()
+            throws Exception
+    {
+        myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        myServer.createContext("/pkg.xar", exchange -> {
+            myRequests.incrementAndGet();
+            String etag = "\"" + myVersion + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if ( etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ) {
+                myNotModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            }
+            else {
+                exchange.sendResponseHeaders(200, myContent.length);
+                try ( OutputStream out = exchange.getResponseBody() ) {
+                    out.write(myContent);
+                }
+            }
+            exchange.close();
+        });
+        myServer.start();
+        myUri = new URI("http://localhost:" + myServer.getAddress().getPort() + "/pkg.xar");
+    }
+
+    @After
+    public void stopServer()
+    {
+        myServer.stop(0);
+    }
+
+    @Test
+    public void testRevalidation()
+            throws Exception
+    {
+        XarCache sut = new XarCache(myTmp.newFolder("cache").toPath());
+        myContent = new byte[] { 1, 2, 3 };
+        Path first = sut.fetch(myUri);
+        assertArrayEquals("downloaded", myContent, Files.readAllBytes(first));
+        // not modified, not downloaded again
+        Path second = sut.fetch(myUri);
+        assertEquals("same file", first, second);
+        assertEquals("requests", 2, myRequests.get());
+        assertEquals("not modified", 1, myNotModified.get());
+        // modified, downloaded again
+        myVersion = 2;
+        myContent = new byte[] { 4, 5 };
+        assertArrayEquals("downloaded again", myContent, Files.readAllBytes(sut.fetch(myUri)));
+        assertEquals("not modified", 1, myNotModified.get());
+    }
+
+    @Test
+    public void testOffline()
+            throws Exception
+    {
+        XarCache sut = new XarCache(myTmp.newFolder("cache").toPath());
+        myContent = new byte[] { 1, 2, 3 };
+        sut.fetch(myUri);
+        sut.setOffline(true);
+        assertArrayEquals("cached", myContent, Files.readAllBytes(sut.fetch(myUri)));
+        assertEquals("requests", 1, myRequests.get());
+        try {
+            sut.fetch(myUri.resolve("other.xar"));
+            fail("not in the cache");
+        }
+        catch ( IOException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Not in the cache"));
+        }
+    }
+
+    @Test
+    public void testCorrupted()
+            throws Exception
+    {
+        XarCache sut = new XarCache(myTmp.newFolder("cache").toPath());
+        myContent = new byte[] { 1, 2, 3 };
+        Path xar = sut.fetch(myUri);
+        // e.g. replaced, but its properties not written yet
+        Files.write(xar, new byte[] { 9, 9 });
+        sut.setOffline(true);
+        try {
+            sut.fetch(myUri);
+            fail("does not match its digest");
+        }
+        catch ( IOException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Not in the cache"));
+        }
+        // not revalidated, downloaded again
+        sut.setOffline(false);
+        assertArrayEquals("downloaded again", myContent, Files.readAllBytes(sut.fetch(myUri)));
+        assertEquals("not modified", 0, myNotModified.get());
+    }
+
+    @Test
+    public void testInstallFromCache()
+            throws Exception
+    {
+        Path src = TestFiles.DEPS.resolve("lib-x-12.9.0");
+        myContent = Files.readAllBytes(TestFiles.zip(src, myTmp.newFile("lib-x.xar").toPath()));
+        Repository sut = new Repository(new FileSystemStorage(myTmp.newFolder("repo").toPath()));
+        XarCache cache = new XarCache(myTmp.newFolder("cache").toPath());
+        sut.setDownloadCache(cache);
+        sut.installPackage(myUri, false, new BatchUserInteraction());
+        assertNotNull("installed", sut.getPackages("http://example.org/lib-x"));
+        // the next install on another node does not download it again
+        Repository other = new Repository(new FileSystemStorage(myTmp.newFolder("other").toPath()));
+        other.setDownloadCache(cache);
+        other.installPackage(myUri, false, new BatchUserInteraction());
+        assertEquals("not modified", 1, myNotModified.get());
+        assertSame(cache, other.getDownloadCache());
+    }
+
+    private HttpServer myServer;
+    private URI myUri;
+    private volatile int myVersion = 1;
+    private volatile byte[] myContent;
+    private final AtomicInteger myRequests = new AtomicInteger();
+    private final AtomicInteger myNotModified = new AtomicInteger();
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
@@ -0,0 +1,85 @@
+package org.expath.pkg.repo;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import org.expath.pkg.repo.tui.BatchUserInteraction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ZipStorage}.
+ */
+public class ZipStorageTest
+{
+    @Test
+    public void testInstallResolveRemove()
+            throws Exception
+    {
+        Path src = TestFiles.DEPS.resolve("lib-a-2.3.0");
+        Path xar = TestFiles.zip(src, myTmp.newFile("lib-a.xar").toPath());
+        Path dir = myTmp.newFolder("repo").toPath();
+        ZipStorage storage = new ZipStorage(dir);
+        Repository sut = new Repository(storage);
+        Package pkg = sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        // the archive is stored as is
+        Path stored = dir.resolve("lib-a-2.3.0.xar");
+        assertArrayEquals("archive copied", Files.readAllBytes(xar), Files.readAllBytes(stored));
+        assertFalse("not unzipped", Files.exists(dir.resolve("lib-a-2.3.0")));
+        assertComponent(src, sut.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT), stored);
+        // a new repository object, reading the archive
+        storage.close();
+        ZipStorage storage2 = new ZipStorage(dir);
+        Repository sut2 = new Repository(storage2);
+        assertEquals(0, sut2.init().size());
+        assertNotNull("lib-a loaded", sut2.getPackages("http://example.org/lib-a"));
+        assertComponent(src, sut2.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT), stored);
+        // removing it is a single delete
+        assertTrue("removed", sut2.removePackage("http://example.org/lib-a", false, new BatchUserInteraction()));
+        assertFalse("archive deleted", Files.exists(stored));
+        assertNull("lib-a removed", sut2.getPackages("http://example.org/lib-a"));
+    }
+
+    @Test
+    public void testCloseWhileReading()
+            throws Exception
+    {
+        Path src = TestFiles.DEPS.resolve("lib-a-2.3.0");
+        Path xar = TestFiles.zip(src, myTmp.newFile("lib-a.xar").toPath());
+        ZipStorage storage = new ZipStorage(myTmp.newFolder("repo").toPath());
+        Repository sut = new Repository(storage);
+        sut.installPackage(new XarFileSource(xar), false, new BatchUserInteraction());
+        Source reading = sut.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT);
+        storage.close();
+        // the stream opened before is still readable
+        try ( InputStream in = ((StreamSource) reading).getInputStream() ) {
+            assertArrayEquals("content", Files.readAllBytes(src.resolve("lib-a/style.xsl")), TestFiles.readAll(in));
+        }
+        // and the archive is opened again
+        assertComponent(src, sut.resolve("http://example.org/lib-a/style.xsl", URISpace.XSLT),
+                storage.getRootDirectory().resolve("lib-a-2.3.0.xar"));
+    }
+
+    private static void assertComponent(Path src, Source actual, Path xar)
+            throws Exception
+    {
+        assertNotNull("component resolved", actual);
+        assertEquals("system ID", "jar:" + xar.toUri() + "!/lib-a/style.xsl", actual.getSystemId());
+        try ( InputStream in = ((StreamSource) actual).getInputStream() ) {
+            assertArrayEquals("content", Files.readAllBytes(src.resolve("lib-a/style.xsl")), TestFiles.readAll(in));
+        }
+    }
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
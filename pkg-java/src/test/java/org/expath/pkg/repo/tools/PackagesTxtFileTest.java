@@ -0,0 +1,71 @@
+package org.expath.pkg.repo.tools;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.expath.pkg.repo.PackageException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.expath.pkg.repo.tools.PackagesXmlFileTest.dirs;
+import static org.expath.pkg.repo.tools.PackagesXmlFileTest.entry;
+import static org.expath.pkg.repo.tools.PackagesXmlFileTest.read;
+import static org.expath.pkg.repo.tools.PackagesXmlFileTest.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link PackagesTxtFile}.
+ */
+public class PackagesTxtFileTest
+{
+    @Test
+    public void testWriteAndRead()
+            throws Exception
+    {
+        Path file = myTmp.getRoot().toPath().resolve("packages.txt");
+        PackagesTxtFile sut = new PackagesTxtFile(file);
+        assertEquals("empty", 0, sut.parsePackages().size());
+        sut.setPackages(Arrays.asList(entry("a-1.0", "http://example.org/a", "1.0"), entry("b-2.0", "http://example.org/b", "2.0")));
+        assertEquals("content", "a-1.0 http://example.org/a 1.0\nb-2.0 http://example.org/b 2.0\n", read(file));
+        sut.removePackageByDir("a-1.0");
+        assertEquals("dirs", Collections.singleton("b-2.0"), new PackagesTxtFile(file).parseDirectories());
+    }
+
+    @Test
+    public void testChangedByAnotherProcess()
+            throws Exception
+    {
+        Path file = myTmp.getRoot().toPath().resolve("packages.txt");
+        PackagesTxtFile sut = new PackagesTxtFile(file);
+        sut.setPackages(Arrays.asList(entry("a-1.0", "http://example.org/a", "1.0")));
+        assertEquals("dirs", Collections.singleton("a-1.0"), sut.parseDirectories());
+        write(file, "a-1.0 http://example.org/a 1.0\n\nb-2.0 http://example.org/b 2.0\n");
+        assertEquals("read again", new HashSet<>(Arrays.asList("a-1.0", "b-2.0")), sut.parseDirectories());
+        // the update applies to the file as changed
+        sut.removePackageByDir("a-1.0");
+        assertEquals("packages", Arrays.asList("b-2.0"), dirs(new PackagesTxtFile(file).parsePackages()));
+    }
+
+    @Test
+    public void testInvalidLine()
+            throws Exception
+    {
+        Path file = myTmp.getRoot().toPath().resolve("packages.txt");
+        write(file, "a-1.0 http://example.org/a 1.0\nb-2.0 http://example.org/b\n");
+        try {
+            // the directories are checked like the packages now
+            new PackagesTxtFile(file).parseDirectories();
+            fail("no version");
+        }
+        catch ( PackageException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Invalid line"));
+        }
+    }
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
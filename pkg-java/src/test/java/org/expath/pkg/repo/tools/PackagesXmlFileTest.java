@@ -0,0 +1,139 @@
+package org.expath.pkg.repo.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.expath.pkg.repo.PackageException;
+import org.expath.pkg.repo.Storage.PackageEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link PackagesXmlFile}.
+ */
+public class PackagesXmlFileTest
+{
+    @Test
+    public void testWriteAndRead()
+            throws Exception
+    {
+        Path file = myTmp.getRoot().toPath().resolve("packages.xml");
+        PackagesXmlFile sut = new PackagesXmlFile(file);
+        assertEquals("empty", 0, sut.parsePackages().size());
+        sut.setPackages(Arrays.asList(entry("a-1.0", "http://example.org/a", "1.0"), entry("b-2.0", "http://example.org/b", "2.0")));
+        String xml = read(file);
+        assertTrue(xml, xml.contains("<package name=\"http://example.org/a\" dir=\"a-1.0\" version=\"1.0\"/>"));
+        sut.removePackageByDir("a-1.0");
+        List<PackageEntry> entries = new PackagesXmlFile(file).parsePackages();
+        assertEquals("packages", 1, entries.size());
+        assertEquals("dir", "b-2.0", entries.get(0).getDir());
+        assertEquals("name", "http://example.org/b", entries.get(0).getName());
+        assertEquals("version", "2.0", entries.get(0).getVersion());
+    }
+
+    @Test
+    public void testKeepUnknownContent()
+            throws Exception
+    {
+        Path file = myTmp.getRoot().toPath().resolve("packages.xml");
+        write(file, "<packages xmlns='http://expath.org/ns/repo/packages' xmlns:x='urn:x'>\n"
+                + "   <package name='http://example.org/a' dir='a-1.0' version='1.0' x:origin='central'>\n"
+                + "      <x:note>Installed by <x:who>ops</x:who></x:note>\n"
+                + "      <!-- keep me -->\n"
+                + "   </package>\n"
+                + "   <x:meta x:stamp='42'/>\n"
+                + "   <package name='http://example.org/b' dir='b-2.0' version='2.0'/>\n"
+                + "</packages>\n");
+        PackagesXmlFile sut = new PackagesXmlFile(file);
+        sut.removePackageByDir("b-2.0");
+        String xml = read(file);
+        assertTrue(xml, xml.contains("x:origin=\"central\""));
+        assertTrue(xml, xml.contains("<x:note>Installed by <x:who>ops</x:who></x:note>"));
+        assertTrue(xml, xml.contains("<!-- keep me -->"));
+        assertTrue(xml, xml.contains("<x:meta x:stamp=\"42\"/>"));
+        assertFalse(xml, xml.contains("b-2.0"));
+        // the same package keeps its content, another version does not
+        sut.setPackages(Arrays.asList(entry("a-1.0", "http://example.org/a", "1.0"), entry("c-3.0", "http://example.org/c", "3.0")));
+        assertTrue(read(file), read(file).contains("x:origin=\"central\""));
+        sut.setPackages(Arrays.asList(entry("a-1.0", "http://example.org/a", "1.1")));
+        xml = read(file);
+        assertFalse(xml, xml.contains("x:origin"));
+        assertTrue(xml, xml.contains("<x:meta x:stamp=\"42\"/>"));
+        assertEquals("packages", 1, new PackagesXmlFile(file).parsePackages().size());
+    }
+
+    @Test
+    public void testChangedByAnotherProcess()
+            throws Exception
+    {
+        Path file = myTmp.getRoot().toPath().resolve("packages.xml");
+        PackagesXmlFile sut = new PackagesXmlFile(file);
+        sut.setPackages(Arrays.asList(entry("a-1.0", "http://example.org/a", "1.0")));
+        assertEquals("packages", 1, sut.parsePackages().size());
+        write(file, "<packages xmlns='http://expath.org/ns/repo/packages'>\n"
+                + "   <package name='http://example.org/a' dir='a-1.0' version='1.0'/>\n"
+                + "   <package name='http://example.org/b' dir='b-2.0' version='2.0'/>\n"
+                + "</packages>\n");
+        assertEquals("read again", 2, sut.parsePackages().size());
+        // the update applies to the file as changed
+        sut.removePackageByDir("a-1.0");
+        assertEquals("packages", Arrays.asList("b-2.0"), dirs(new PackagesXmlFile(file).parsePackages()));
+    }
+
+    @Test
+    public void testInvalidPackage()
+            throws Exception
+    {
+        Path file = myTmp.getRoot().toPath().resolve("packages.xml");
+        write(file, "<packages xmlns='http://expath.org/ns/repo/packages'>\n"
+                + "   <package name='http://example.org/a' dir='a-1.0'/>\n"
+                + "</packages>\n");
+        try {
+            new PackagesXmlFile(file).parsePackages();
+            fail("no version");
+        }
+        catch ( PackageException ex ) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Invalid package element"));
+        }
+    }
+
+    static PackageEntry entry(String dir, String name, String version)
+    {
+        return new PackageEntry(dir, name, version);
+    }
+
+    static List<String> dirs(List<PackageEntry> entries)
+    {
+        String[] dirs = new String[entries.size()];
+        for ( int i = 0; i < dirs.length; ++i ) {
+            dirs[i] = entries.get(i).getDir();
+        }
+        return Arrays.asList(dirs);
+    }
+
+    /**
+     * Write a file as another process would, with a different size than before.
+     */
+    static void write(Path file, String content)
+            throws Exception
+    {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String read(Path file)
+            throws Exception
+    {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    @Rule
+    public TemporaryFolder myTmp = new TemporaryFolder();
+}
@@ -0,0 +1,8 @@
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                version="1.0">
+
+   <xsl:template name="hello">
+      <xsl:text>Hello, included</xsl:text>
+   </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,12 @@
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                version="1.0">
+
+   <xsl:include href="common/hello.xsl"/>
+
+   <xsl:output method="text"/>
+
+   <xsl:template match="/">
+      <xsl:call-template name="hello"/>
+   </xsl:template>
+
+</xsl:stylesheet>
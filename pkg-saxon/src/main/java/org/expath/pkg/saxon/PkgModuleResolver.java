@@ -14,6 +14,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.Map;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
@@ -87,6 +88,20 @@ public class PkgModuleResolver
                 }
                 return new StreamSource[]{ (StreamSource) s };
             }
+            // the location hints relative to a module in a storage without URLs
+            if ( base_uri != null ) {
+                URI base = URI.create(base_uri);
+                for ( String l : locations ) {
+                    s = myParent.resolveSystemId(base.resolve(l).toString());
+                    if ( s instanceof StreamSource ) {
+                        return new StreamSource[]{ (StreamSource) s };
+                    }
+                }
+            }
+        }
+        catch ( IllegalArgumentException ex ) {
+            // not a valid URI, let Saxon handle it
+            LOG.debug("Invalid location or base URI: {}", ex.toString());
         }
         catch ( PackageException ex ) {
             throw new XPathException("Error resolving the URI", ex);
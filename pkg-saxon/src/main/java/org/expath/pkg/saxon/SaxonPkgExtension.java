@@ -9,6 +9,8 @@
 
 package org.expath.pkg.saxon;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -167,6 +169,32 @@ public class SaxonPkgExtension
         setupClasspath(pkg, info);
     }
 
+    /**
+     * Write the whole Saxon info (the content of saxon.xml), if any.
+     */
+    @Override
+    public boolean writeInfo(Package pkg, DataOutput out)
+            throws IOException
+                 , PackageException
+    {
+        SaxonPkgInfo info = getInfo(pkg);
+        out.writeBoolean(info != null);
+        if ( info != null ) {
+            info.write(out);
+        }
+        return true;
+    }
+
+    @Override
+    public void readInfo(Package pkg, DataInput in)
+            throws IOException
+                 , PackageException
+    {
+        if ( in.readBoolean() ) {
+            pkg.addInfo(getName(), SaxonPkgInfo.read(pkg, in));
+        }
+    }
+
     private SaxonPkgInfo getInfo(Package pkg)
             throws PackageException
     {
@@ -9,6 +9,9 @@
 
 package org.expath.pkg.saxon;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.net.MalformedURLException;
@@ -16,6 +19,8 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.AccessControlException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -173,6 +178,25 @@ public class SaxonPkgInfo
         return null;
     }
 
+    @Override
+    public Collection<String> getPublicUris(URISpace space)
+    {
+        // the same spaces as in resolve(), with both direct components and wrappers
+        Set<String> uris = new HashSet<String>();
+        if ( space == URISpace.XQUERY ) {
+            uris.addAll(myXquery.keySet());
+            uris.addAll(myXqueryWrappers.keySet());
+        }
+        else if ( space == URISpace.XSLT ) {
+            uris.addAll(myXslt.keySet());
+            uris.addAll(myXsltWrappers.keySet());
+        }
+        else {
+            return Collections.emptySet();
+        }
+        return uris;
+    }
+
     /**
      * Must resolve to the empty wrapper.
      */
@@ -258,6 +282,75 @@ public class SaxonPkgInfo
         myXqueryWrappers.put(href, file);
     }
 
+    /**
+     * Write this info, for the repository index.
+     */
+    void write(DataOutput out)
+            throws IOException
+    {
+        writeSet(out, myJars);
+        writeSet(out, myFuns);
+        writeSet(out, myLibs);
+        writeMap(out, myXslt);
+        writeMap(out, myXquery);
+        writeMap(out, myXsltWrappers);
+        writeMap(out, myXqueryWrappers);
+    }
+
+    /**
+     * Read an info written by {@link #write(DataOutput)}.
+     */
+    static SaxonPkgInfo read(Package pkg, DataInput in)
+            throws IOException
+    {
+        SaxonPkgInfo info = new SaxonPkgInfo(pkg);
+        readSet(in, info.myJars);
+        readSet(in, info.myFuns);
+        readSet(in, info.myLibs);
+        readMap(in, info.myXslt);
+        readMap(in, info.myXquery);
+        readMap(in, info.myXsltWrappers);
+        readMap(in, info.myXqueryWrappers);
+        return info;
+    }
+
+    private static void writeSet(DataOutput out, Set<String> set)
+            throws IOException
+    {
+        out.writeInt(set.size());
+        for ( String s : set ) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static void readSet(DataInput in, Set<String> set)
+            throws IOException
+    {
+        int size = in.readInt();
+        for ( int i = 0; i < size; ++i ) {
+            set.add(in.readUTF());
+        }
+    }
+
+    private static void writeMap(DataOutput out, Map<String, String> map)
+            throws IOException
+    {
+        out.writeInt(map.size());
+        for ( Map.Entry<String, String> e : map.entrySet() ) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+    }
+
+    private static void readMap(DataInput in, Map<String, String> map)
+            throws IOException
+    {
+        int size = in.readInt();
+        for ( int i = 0; i < size; ++i ) {
+            map.put(in.readUTF(), in.readUTF());
+        }
+    }
+
     private final Set<String>         myJars = new HashSet<String>();
     private final Set<String>         myFuns = new HashSet<String>();
     private final Set<String>         myLibs = new HashSet<String>();